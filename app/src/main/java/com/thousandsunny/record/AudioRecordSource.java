@@ -0,0 +1,84 @@
+package com.thousandsunny.record;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.io.IOException;
+
+/**
+ * Mono 16-bit PCM from the camcorder microphone.
+ */
+public class AudioRecordSource implements AudioSource {
+    /**
+     * The platform buffer holds this much audio, a late read of the capture thread does not lose samples.
+     */
+    private static final int BUFFER_MILLIS = 200;
+
+    private final int sampleRate;
+
+    private AudioRecord audioRecord;
+
+    public AudioRecordSource(final int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return 1;
+    }
+
+    @Override
+    public void open() throws IOException {
+        final int minBufferSize = AudioRecord.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            throw new IOException("Unsupported sample rate " + sampleRate);
+        }
+
+        audioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER,
+                sampleRate,
+                AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBufferSize, sampleRate * BUFFER_MILLIS / 1000 * 2));
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            release();
+            throw new IOException("Cannot open the microphone");
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        audioRecord.startRecording();
+        if (audioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            release();
+            throw new IOException("Microphone in use");
+        }
+    }
+
+    @Override
+    public int read(final short[] buffer, final int offset, final int length) {
+        return audioRecord.read(buffer, offset, length);
+    }
+
+    @Override
+    public void stop() {
+        if (audioRecord != null && audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+            audioRecord.stop();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (audioRecord != null) {
+            audioRecord.release();
+            audioRecord = null;
+        }
+    }
+}
@@ -2,8 +2,10 @@ package com.thousandsunny.record;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.graphics.Point;
 import android.hardware.Camera;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
@@ -15,33 +17,114 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.FrameLayout;
 
-import org.bytedeco.javacv.FrameRecorder;
-
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class CameraActivity extends Activity {
     private static final String TAG = CameraActivity.class.getSimpleName();
 
+    private static final String PREFERENCES_RECORDER = "recorder";
+
+    private static final int OUTPUT_SQUARE_SIDE_LENGTH = 120;
+
+    /**
+     * Upper bound of the deferred encoding spool, which is mapped into the address space as a whole.
+     */
+    private static final long MAX_SPOOL_BYTES = 512L * 1024 * 1024;
+
+    /**
+     * Side of the larger rendition recorded for sharing, limited by the preview size.
+     */
+    private static final int SHARE_SQUARE_SIDE_LENGTH = 480;
+
+    private static final int SHARE_VIDEO_BITRATE = 1000000;
+
+    private static final String RENDITIONS_DIRECTORY = "renditions";
+
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+
+    private static final double PREVIEW_FRAME_RATE = 30;
+
+    /**
+     * Boolean extra, also writes the raw preview frames of every recording next to the video for offline replay.
+     */
+    public static final String EXTRA_DUMP_FRAMES = "dump_frames";
+
+    /**
+     * Int extra, records in instant replay mode keeping the last that many seconds; a long press on the capture
+     * button saves them as a new video.
+     */
+    public static final String EXTRA_INSTANT_REPLAY_SECONDS = "instant_replay_seconds";
+
+    private static final int INSTANT_REPLAY_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Int extra, records live recordings as MP4 segments of that many seconds readable while recording; they are
+     * joined into the video for the gallery after the stop.
+     */
+    public static final String EXTRA_STREAM_SEGMENT_SECONDS = "stream_segment_seconds";
+
     private FrameLayout cameraPreview;
 
     private Button capture;
 
+    private Button pause;
+
+    private Button switchCamera;
+
+    private int cameraId;
+
     private Camera camera;
 
+    /**
+     * Display orientation of the preview.
+     */
     private int degrees;
 
+    /**
+     * Clockwise rotation of the sensor image for the recorder, without the mirror compensation of {@link #degrees}.
+     */
+    private int recordingDegrees;
+
+    /**
+     * The camera faces the user, recordings are mirrored like its preview.
+     */
+    private boolean mirror;
+
+    private PreviewConfiguration previewConfiguration;
+
     private CameraView cameraView;
 
     private AtomicReference<OpenCVRecorder> openCVRecorderRef = new AtomicReference<>();
 
+    /**
+     * The next recording, prepared in the background while the preview is shown.
+     */
+    private AtomicReference<OpenCVRecorder> preparedRecorderRef = new AtomicReference<>();
+
+    /**
+     * Identifies the camera being opened in the background, cleared when the activity pauses meanwhile.
+     */
+    private Object cameraOpenToken;
+
+    private AtomicReference<FrameDumpWriter> frameDumpWriterRef = new AtomicReference<>();
+
+    private RecordingIndex recordingIndex;
+
+    private RecordingUploader recordingUploader;
+
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_camera);
 
+        recordingIndex = RecordingIndex.getInstance(this);
+        recordingUploader = RecordingUploader.getInstance(this);
+
         cameraPreview = (FrameLayout) findViewById(R.id.camera_preview);
         capture = (Button) findViewById(R.id.button_capture);
         capture.setOnClickListener(new View.OnClickListener() {
@@ -50,12 +133,61 @@ public class CameraActivity extends Activity {
                 if (openCVRecorderRef.get() == null) {
                     startRecording();
                     capture.setText("Stop");
+                    pause.setEnabled(true);
                 } else {
                     stopRecording();
+                    // after stopRecording() saved the governor level the next recording starts from
+                    prepareNextRecorder();
                     capture.setText("Start");
+                    pause.setEnabled(false);
+                    pause.setText("Pause");
                 }
             }
         });
+
+        capture.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(final View v) {
+                final OpenCVRecorder openCVRecorder = openCVRecorderRef.get();
+                if (openCVRecorder == null || openCVRecorder.getReplayEncoder() == null) {
+                    return false;
+                }
+
+                saveInstantReplay(openCVRecorder);
+                return true;
+            }
+        });
+
+        pause = (Button) findViewById(R.id.button_pause);
+        pause.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(final View v) {
+                final OpenCVRecorder openCVRecorder = openCVRecorderRef.get();
+                if (openCVRecorder == null) {
+                    return;
+                }
+
+                if (openCVRecorder.isPaused()) {
+                    try {
+                        openCVRecorder.resume();
+                        pause.setText("Pause");
+                    } catch (EncoderException e) {
+                        Log.e(TAG, e.getLocalizedMessage(), e);
+                    }
+                } else {
+                    openCVRecorder.pause();
+                    pause.setText("Resume");
+                }
+            }
+        });
+
+        switchCamera = (Button) findViewById(R.id.button_switch);
+        switchCamera.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(final View v) {
+                switchCamera();
+            }
+        });
     }
 
     @Override
@@ -67,23 +199,126 @@ public class CameraActivity extends Activity {
     @Override
     protected void onPause() {
         stopRecording();
+        discardPreparedRecorder();
         stopCamera();
         super.onPause();
     }
 
+    /**
+     * Opens the camera in the background, opening takes hundreds of milliseconds on some devices; the preview and
+     * the next recorder are set up once it is open.
+     */
     private void startCamera() {
-        if (camera != null) {
+        if (camera != null || cameraOpenToken != null) {
             return;
         }
 
-        camera = Camera.open(0);
-        degrees = setCameraDisplayOrientation(0, camera);
+        final Object token = new Object();
+        final int cameraId = this.cameraId;
+        cameraOpenToken = token;
+        if (openCVRecorderRef.get() == null) {
+            capture.setEnabled(false);
+        }
+        switchCamera.setEnabled(false);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Camera opened;
+                final PreviewConfiguration configuration;
+                try {
+                    opened = Camera.open(cameraId);
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "Cannot open the camera", e);
+                    return;
+                }
+                try {
+                    configuration = new PreviewNegotiator(getRecorderPreferences())
+                            .negotiate(cameraId, opened, getRequiredPreviewSide(), PREVIEW_FRAME_RATE);
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "Cannot set the camera up", e);
+                    opened.release();
+                    return;
+                }
 
-        cameraView = new CameraView(this, camera, degrees, openCVRecorderRef);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (cameraOpenToken != token) {
+                            // paused while opening
+                            opened.release();
+                            return;
+                        }
+                        cameraOpenToken = null;
+                        onCameraOpened(opened, configuration);
+                    }
+                });
+            }
+        }, "camera-open").start();
+    }
+
+    private void onCameraOpened(final Camera opened, final PreviewConfiguration configuration) {
+        camera = opened;
+        previewConfiguration = configuration;
+        degrees = setCameraDisplayOrientation(cameraId, camera);
+        final Camera.CameraInfo info = new Camera.CameraInfo();
+        Camera.getCameraInfo(cameraId, info);
+        mirror = info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+        recordingDegrees = mirror
+                ? (info.orientation + getDisplayRotation()) % 360
+                : (info.orientation - getDisplayRotation() + 360) % 360;
+        calibrateConversionEngine();
+
+        final OpenCVRecorder openCVRecorder = openCVRecorderRef.get();
+        if (openCVRecorder != null && openCVRecorder.isSwitchingSource()) {
+            // before the preview starts, its first frame ends the repeat
+            openCVRecorder.switchSource(configuration.getWidth(),
+                    configuration.getHeight(),
+                    recordingDegrees,
+                    mirror);
+        }
+
+        cameraView = new CameraView(this,
+                camera,
+                configuration,
+                degrees,
+                openCVRecorderRef,
+                frameDumpWriterRef);
         cameraPreview.addView(new CroppedCameraView(getApplicationContext(), cameraView));
+        if (openCVRecorder == null) {
+            prepareNextRecorder();
+        }
+        capture.setEnabled(true);
+        switchCamera.setEnabled(Camera.getNumberOfCameras() > 1);
+    }
+
+    /**
+     * Opens the next camera. A recording goes on into the same file: the recorder repeats the last frame of this
+     * camera until the new one delivers and swaps its crop and rotation meanwhile, the encoders stay open.
+     */
+    private void switchCamera() {
+        if (camera == null || cameraOpenToken != null || Camera.getNumberOfCameras() < 2) {
+            return;
+        }
+
+        final OpenCVRecorder openCVRecorder = openCVRecorderRef.get();
+        if (openCVRecorder != null) {
+            // no frame of this camera may reach the recorder after the switch began
+            cameraView.getPreviewBufferPool().detach();
+            camera.stopPreview();
+            openCVRecorder.beginSourceSwitch();
+            // the dump has the geometry of this camera
+            closeFrameDump();
+        }
+        // configured for this camera
+        discardPreparedRecorder();
+        stopCamera();
+
+        cameraId = (cameraId + 1) % Camera.getNumberOfCameras();
+        startCamera();
     }
 
     private void stopCamera() {
+        cameraOpenToken = null;
         cameraPreview.removeAllViews();
 
         if (camera != null) {
@@ -98,16 +333,166 @@ public class CameraActivity extends Activity {
             return;
         }
 
-        final String videoFilename = UUID.randomUUID().toString() + ".mp4";
-        final File videoFile = new File(getVideoDir(), videoFilename);
-
-        final OpenCVRecorder openCVRecorder = new OpenCVRecorder(camera, degrees, 120, videoFile);
+        OpenCVRecorder openCVRecorder = preparedRecorderRef.getAndSet(null);
+        if (openCVRecorder == null) {
+            openCVRecorder = createRecorder();
+        }
         openCVRecorderRef.set(openCVRecorder);
         try {
+            // waits for a prepare still running in the background, prepares here if there was none
             openCVRecorder.start();
-        } catch (FrameRecorder.Exception e) {
+        } catch (EncoderException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+
+        if (getIntent().getBooleanExtra(EXTRA_DUMP_FRAMES, false)) {
+            final String videoFilename = openCVRecorder.getOutputVideoFile().getName();
+            final String dumpFilename = videoFilename.substring(0, videoFilename.lastIndexOf('.')) + FrameDump.EXTENSION;
+            try {
+                frameDumpWriterRef.set(new FrameDumpWriter(new File(getVideoDir(), dumpFilename),
+                        previewConfiguration.getWidth(),
+                        previewConfiguration.getHeight(),
+                        previewConfiguration.getFormat(),
+                        recordingDegrees,
+                        mirror));
+            } catch (IOException e) {
+                Log.w(TAG, e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Configures a recorder for the current camera and the saved governor level, without starting it.
+     */
+    private OpenCVRecorder createRecorder() {
+        final String videoFilename = UUID.randomUUID().toString() + ".mp4";
+        final File videoFile = new File(getVideoDir(), videoFilename);
+
+        final OpenCVRecorder openCVRecorder = new OpenCVRecorder(previewConfiguration.getWidth(),
+                previewConfiguration.getHeight(),
+                recordingDegrees,
+                mirror,
+                OUTPUT_SQUARE_SIDE_LENGTH,
+                videoFile);
+        openCVRecorder.setPipelined(3, FrameRing.OverflowPolicy.DROP_OLDEST);
+        final ConversionEngine.Factory conversionEngine = ConversionEngines.find(getRecorderPreferences()
+                .getString(getConversionEngineKey(previewConfiguration), NV21Converter.NAME));
+        if (conversionEngine != null) {
+            openCVRecorder.setConversionEngine(conversionEngine);
+        }
+
+        // start where the last recording on this device model ended up
+        final List<EncoderSettings> ladder = EncoderGovernor.createDefaultLadder(OUTPUT_SQUARE_SIDE_LENGTH);
+        final int governorLevel = getRecorderPreferences().getInt(getGovernorLevelKey(), 1);
+        final EncoderGovernor governor = new EncoderGovernor(ladder, governorLevel, 30, 3);
+        openCVRecorder.setGovernor(governor);
+
+        // the encoder could not keep up even on the cheapest rung, capture first and encode afterwards; the instant
+        // replay has to encode live, it keeps no frames to encode later
+        final int instantReplaySeconds = getIntent().getIntExtra(EXTRA_INSTANT_REPLAY_SECONDS, 0);
+        if (governorLevel >= ladder.size() - 1 && instantReplaySeconds <= 0) {
+            final String spoolFilename = videoFilename.substring(0, videoFilename.lastIndexOf('.')) + ".spool";
+            openCVRecorder.setDeferredEncoding(new File(getCacheDir(), spoolFilename),
+                    getSpoolCapacity(ladder.get(governorLevel).getOutputSide()),
+                    false,
+                    new SpoolEncoder.Listener() {
+                        @Override
+                        public void onProgress(final int encoded, final int total) {
+                            if (encoded % 30 == 0 || encoded == total) {
+                                Log.d(TAG, "Encoded " + encoded + "/" + total + " spooled frames");
+                            }
+                        }
+
+                        @Override
+                        public void onFinished(final File videoFile) {
+                            Log.i(TAG, "Encoded " + videoFile);
+                            recordingIndex.add(videoFile);
+                            recordingUploader.upload(videoFile);
+                            // the spooled encode times may have stepped the governor back up to live encoding
+                            saveGovernorLevel(governor);
+                        }
+
+                        @Override
+                        public void onFailed(final File videoFile, final Exception e) {
+                            Log.w(TAG, "Cannot encode " + videoFile, e);
+                        }
+                    });
+        }
+
+        if (instantReplaySeconds > 0) {
+            openCVRecorder.setInstantReplay(instantReplaySeconds * 1000000L, INSTANT_REPLAY_MAX_BYTES);
+        } else if (governorLevel < ladder.size() - 1) {
+            // outside the video directory so the gallery does not list it twice
+            final File renditionDir = new File(getVideoDir(), RENDITIONS_DIRECTORY);
+            if (renditionDir.isDirectory() || renditionDir.mkdirs()) {
+                final int shareSide = Math.min(SHARE_SQUARE_SIDE_LENGTH,
+                        Math.min(previewConfiguration.getWidth(), previewConfiguration.getHeight())) & ~1;
+                openCVRecorder.addRendition(new Rendition(new File(renditionDir, videoFilename),
+                        new EncoderSettings(false, 30, "ultrafast", shareSide, SHARE_VIDEO_BITRATE),
+                        2,
+                        FrameRing.OverflowPolicy.DROP_OLDEST));
+            } else {
+                Log.w(TAG, "Cannot create " + renditionDir);
+            }
+            openCVRecorder.setAudioSource(new AudioRecordSource(AUDIO_SAMPLE_RATE));
+
+            final int segmentSeconds = getIntent().getIntExtra(EXTRA_STREAM_SEGMENT_SECONDS, 0);
+            if (segmentSeconds > 0) {
+                openCVRecorder.setStreamingOutput(segmentSeconds * 1000000L, new StreamSegmenter.Listener() {
+                    @Override
+                    public void onSegment(final File segment, final int index, final long durationMicros) {
+                        Log.d(TAG, "Segment " + index + " ready: " + segment + ", " + durationMicros / 1000 + "ms");
+                        recordingUploader.upload(segment, getStreamUploadName(segment));
+                    }
+
+                    @Override
+                    public void onFinished(final File playlist, final List<File> segments) {
+                        // the backend has the segments already
+                        recordingUploader.upload(playlist, getStreamUploadName(playlist));
+                        joinStream(playlist.getParentFile(), segments, videoFile);
+                    }
+                });
+            }
+        }
+
+        final List<VideoEncoder.Factory> encoderFactories = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            encoderFactories.add(MediaCodecVideoEncoder.FACTORY);
+        }
+        encoderFactories.add(FFmpegVideoEncoder.FACTORY);
+        openCVRecorder.setEncoderFactories(encoderFactories);
+        return openCVRecorder;
+    }
+
+    /**
+     * Opens the encoder and allocates the buffers of the next recording in the background, so the capture button
+     * only has to flip the recorder's flag.
+     */
+    private void prepareNextRecorder() {
+        if (camera == null || preparedRecorderRef.get() != null) {
+            return;
+        }
+
+        final OpenCVRecorder openCVRecorder = createRecorder();
+        preparedRecorderRef.set(openCVRecorder);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    openCVRecorder.prepare();
+                } catch (EncoderException | IllegalStateException e) {
+                    // start() tries again
+                    Log.w(TAG, "Cannot prepare the recorder", e);
+                }
+            }
+        }, "recorder-prepare").start();
+    }
+
+    private void discardPreparedRecorder() {
+        final OpenCVRecorder openCVRecorder = preparedRecorderRef.getAndSet(null);
+        if (openCVRecorder != null) {
+            openCVRecorder.stop();
+        }
     }
 
     public void stopRecording() {
@@ -118,32 +503,177 @@ public class CameraActivity extends Activity {
 
         openCVRecorder.stop();
         openCVRecorderRef.set(null);
+        // the instant replay only writes the flushed windows, uploaded as they are saved
+        if (openCVRecorder.getSpoolEncoder() == null
+                && !openCVRecorder.isStreamingOutput()
+                && !openCVRecorder.isInstantReplay()) {
+            recordingIndex.add(openCVRecorder.getOutputVideoFile());
+            recordingUploader.upload(openCVRecorder.getOutputVideoFile());
+        }
+        final RecordingMetrics metrics = openCVRecorder.getMetrics();
+        if (metrics != null) {
+            Log.i(TAG, "Prepared in " + metrics.getPrepareMicros() / 1000 + "ms, first frame recorded "
+                    + metrics.getTimeToFirstFrameMicros() / 1000 + "ms after the start");
+            if (metrics.getSourceSwitchCount() > 0) {
+                Log.i(TAG, metrics.getSourceSwitchCount() + " camera switches, longest gap "
+                        + metrics.getMaxSourceSwitchGapMicros() / 1000 + "ms, "
+                        + metrics.getRepeatedFrameCount() + " frames repeated");
+            }
+        }
+
+        closeFrameDump();
+        saveGovernorLevel(openCVRecorder.getGovernor());
+    }
+
+    private void saveGovernorLevel(final EncoderGovernor governor) {
+        getRecorderPreferences().edit()
+                .putInt(getGovernorLevelKey(), governor.getCurrentLevel())
+                .apply();
+    }
+
+    /**
+     * @return frames of {@code outputSide} the deferred encoding spool can hold in at most half the free space of
+     * the cache directory
+     */
+    private int getSpoolCapacity(final int outputSide) {
+        final long frameBytes = outputSide * outputSide * 3 / 2 + 8;
+        final long spoolBytes = Math.min(MAX_SPOOL_BYTES, getCacheDir().getUsableSpace() / 2);
+        return (int) Math.max(1, spoolBytes / frameBytes);
+    }
+
+    private void closeFrameDump() {
+        final FrameDumpWriter frameDumpWriter = frameDumpWriterRef.getAndSet(null);
+        if (frameDumpWriter != null) {
+            try {
+                frameDumpWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @return {@code video.stream/segment00000.mp4}, every recording names its segments and playlist alike
+     */
+    private static String getStreamUploadName(final File file) {
+        return file.getParentFile().getName() + "/" + file.getName();
+    }
+
+    /**
+     * Copies the packets of the segments into one video for the gallery, off the main thread. The stream directory
+     * goes away once the backend has the segments and the playlist, the video keeps the recording.
+     */
+    private void joinStream(final File streamDirectory, final List<File> segments, final File videoFile) {
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SegmentConcatenator.concat(segments, videoFile);
+                    recordingIndex.add(videoFile);
+                    recordingUploader.deleteWhenUploaded(streamDirectory);
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot join the segments into " + videoFile, e);
+                }
+            }
+        }, "stream-join").start();
+    }
+
+    private void saveInstantReplay(final OpenCVRecorder openCVRecorder) {
+        final File videoFile = new File(getVideoDir(), UUID.randomUUID().toString() + ".mp4");
+        // muxing is I/O, keep it off the main thread; the recording goes on meanwhile
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    openCVRecorder.flushReplay(videoFile);
+                    recordingIndex.add(videoFile);
+                    recordingUploader.upload(videoFile);
+                } catch (IOException | IllegalStateException e) {
+                    Log.w(TAG, "Cannot save the instant replay", e);
+                }
+            }
+        }, "instant-replay").start();
+    }
+
+    /**
+     * Picks the fastest colour conversion for the preview size once per device, in the background; recordings use
+     * the reference until it is known.
+     */
+    private void calibrateConversionEngine() {
+        final String key = getConversionEngineKey(previewConfiguration);
+        if (getRecorderPreferences().contains(key)) {
+            return;
+        }
+
+        final int width = previewConfiguration.getWidth();
+        final int height = previewConfiguration.getHeight();
+        final SharedPreferences preferences = getRecorderPreferences();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                // the stripes of the recordings, see OpenCVRecorder#setConversionStripes
+                final StripeExecutor executor = new StripeExecutor(StripeExecutor.AUTO);
+                final ConversionEngine.Factory fastest;
+                try {
+                    fastest = ConversionEngines.calibrate(ConversionEngines.FACTORIES, width, height, executor);
+                } finally {
+                    executor.shutdown();
+                }
+                Log.i(TAG, "Calibrated the colour conversion in " + (System.nanoTime() - start) / 1000000 + "ms: "
+                        + fastest.getName());
+                preferences.edit().putString(key, fastest.getName()).apply();
+            }
+        }, "conversion-calibration").start();
+    }
+
+    private SharedPreferences getRecorderPreferences() {
+        return getSharedPreferences(PREFERENCES_RECORDER, MODE_PRIVATE);
+    }
+
+    private String getGovernorLevelKey() {
+        return "governor_level_" + Build.MODEL;
+    }
+
+    private String getConversionEngineKey(final PreviewConfiguration configuration) {
+        return "conversion_engine_" + Build.MODEL + "_" + configuration.getWidth() + "x" + configuration.getHeight();
+    }
+
+    /**
+     * @return the side of the rendition for sharing, or of the output alone when instant replay records none
+     */
+    private int getRequiredPreviewSide() {
+        return getIntent().getIntExtra(EXTRA_INSTANT_REPLAY_SECONDS, 0) > 0
+                ? OUTPUT_SQUARE_SIDE_LENGTH
+                : SHARE_SQUARE_SIDE_LENGTH;
     }
 
     private File getVideoDir() {
         return getApplicationContext().getExternalFilesDir(Environment.DIRECTORY_MOVIES);
     }
 
-    private int setCameraDisplayOrientation(final int cameraId,
-                                            final Camera camera) {
-        final Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(cameraId, info);
-        final int rotation = getWindowManager().getDefaultDisplay().getRotation();
-        int degrees = 0;
-        switch (rotation) {
-            case Surface.ROTATION_0:
-                degrees = 0;
-                break;
+    private int getDisplayRotation() {
+        switch (getWindowManager().getDefaultDisplay().getRotation()) {
             case Surface.ROTATION_90:
-                degrees = 90;
-                break;
+                return 90;
             case Surface.ROTATION_180:
-                degrees = 180;
-                break;
+                return 180;
             case Surface.ROTATION_270:
-                degrees = 270;
-                break;
+                return 270;
+            default:
+                return 0;
         }
+    }
+
+    private int setCameraDisplayOrientation(final int cameraId,
+                                            final Camera camera) {
+        final Camera.CameraInfo info = new Camera.CameraInfo();
+        Camera.getCameraInfo(cameraId, info);
+        final int degrees = getDisplayRotation();
 
         int result;
         if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
@@ -197,18 +727,29 @@ public class CameraActivity extends Activity {
 
         private final Camera camera;
 
+        private final PreviewConfiguration configuration;
+
         private final int degree;
 
         private final AtomicReference<OpenCVRecorder> openCVRecorderRef;
 
+        private final AtomicReference<FrameDumpWriter> frameDumpWriterRef;
+
+        private final PreviewBufferPool previewBufferPool;
+
         public CameraView(final Context context,
                           final Camera camera,
+                          final PreviewConfiguration configuration,
                           final int degree,
-                          final AtomicReference<OpenCVRecorder> openCVRecorderRef) {
+                          final AtomicReference<OpenCVRecorder> openCVRecorderRef,
+                          final AtomicReference<FrameDumpWriter> frameDumpWriterRef) {
             super(context);
             this.degree = degree;
             this.openCVRecorderRef = openCVRecorderRef;
+            this.frameDumpWriterRef = frameDumpWriterRef;
             this.camera = camera;
+            this.configuration = configuration;
+            previewBufferPool = new PreviewBufferPool(camera, configuration, 3);
 
             // Install a SurfaceHolder.Callback so we get notified when the
             // underlying surface is created and destroyed.
@@ -223,7 +764,7 @@ public class CameraActivity extends Activity {
             // The Surface has been created, now tell the camera where to draw the preview.
             try {
                 camera.setPreviewDisplay(holder);
-                camera.setPreviewCallback(this);
+                previewBufferPool.attach(this);
                 camera.startPreview();
             } catch (final IOException e) {
                 Log.e(TAG, "Error setting camera preview: " + e.getMessage(), e);
@@ -233,7 +774,7 @@ public class CameraActivity extends Activity {
         public void surfaceDestroyed(final SurfaceHolder holder) {
             try {
                 holder.addCallback(null);
-                camera.setPreviewCallback(null);
+                previewBufferPool.detach();
             } catch (final Exception e) {
                 // The camera has probably just been released, ignore.
             }
@@ -259,7 +800,7 @@ public class CameraActivity extends Activity {
             // start preview with new settings
             try {
                 camera.setPreviewDisplay(holder);
-                camera.setPreviewCallback(this);
+                previewBufferPool.attach(this);
                 camera.startPreview();
             } catch (final IOException e) {
                 Log.e(TAG, "Error starting camera preview: " + e.getLocalizedMessage(), e);
@@ -268,23 +809,36 @@ public class CameraActivity extends Activity {
 
         @Override
         public void onPreviewFrame(final byte[] bytes, final Camera camera) {
-            final OpenCVRecorder openCVRecorder = openCVRecorderRef.get();
-            if (openCVRecorder == null) {
-                return;
+            previewBufferPool.onBufferDelivered();
+            try {
+                final OpenCVRecorder openCVRecorder = openCVRecorderRef.get();
+                if (openCVRecorder == null) {
+                    return;
+                }
+
+                final long timestamp = System.nanoTime();
+                final FrameDumpWriter frameDumpWriter = frameDumpWriterRef.get();
+                if (frameDumpWriter != null) {
+                    frameDumpWriter.write(bytes, timestamp);
+                }
+                openCVRecorder.onPreviewFrame(bytes, timestamp);
+            } finally {
+                previewBufferPool.recycle(bytes);
             }
+        }
 
-            openCVRecorder.onPreviewFrame(bytes);
+        public PreviewBufferPool getPreviewBufferPool() {
+            return previewBufferPool;
         }
 
         public Point getDisplayPreviewSize() {
-            final Camera.Size previewSize = camera.getParameters().getPreviewSize();
             switch (degree) {
                 case 0:
                 case 180:
-                    return new Point(previewSize.width, previewSize.height);
+                    return new Point(configuration.getWidth(), configuration.getHeight());
                 case 90:
                 case 270:
-                    return new Point(previewSize.height, previewSize.width);
+                    return new Point(configuration.getHeight(), configuration.getWidth());
                 default:
                     throw new IllegalArgumentException("Unknown degree:" + degree);
             }
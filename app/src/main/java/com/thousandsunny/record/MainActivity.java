@@ -1,12 +1,9 @@
 package com.thousandsunny.record;
 
-import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
-import android.media.MediaPlayer;
-import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
 import android.support.v7.app.ActionBarActivity;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
@@ -17,37 +14,80 @@ import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 
 import org.lucasr.twowayview.widget.TwoWayView;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 
 public class MainActivity extends ActionBarActivity {
     private static final String TAG = MainActivity.class.getSimpleName();
 
+    private static final int MAX_PLAYING_VIDEOS = 2;
+
+    /**
+     * Playing players plus prepared ones kept for cells which scroll back into view.
+     */
+    private static final int MAX_MEDIA_PLAYERS = 3;
+
     private TwoWayView videos;
 
     private Adapter adapter;
 
+    private ThumbnailCache thumbnailCache;
+
+    private MediaPlayerPool mediaPlayerPool;
+
+    private PlaybackScheduler playbackScheduler;
+
+    private RecordingIndex recordingIndex;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        final int thumbnailSide = getResources().getDimensionPixelSize(R.dimen.thumbnail_side);
+        thumbnailCache = new ThumbnailCache(new File(getCacheDir(), "thumbnails"),
+                (int) (Runtime.getRuntime().maxMemory() / 16),
+                8 * 1024 * 1024,
+                thumbnailSide);
+
+        // hardware decoders are scarce, only the most visible cells of the grid play
+        mediaPlayerPool = new MediaPlayerPool(getApplicationContext(), MAX_MEDIA_PLAYERS);
+
         videos = (TwoWayView) findViewById(R.id.videos);
         adapter = new Adapter();
         videos.setAdapter(adapter);
+        playbackScheduler = new PlaybackScheduler(videos, MAX_PLAYING_VIDEOS);
+
+        // kept up to date while the activity is in the background, so resuming does not touch the disk
+        recordingIndex = RecordingIndex.getInstance(this);
+        recordingIndex.addListener(adapter);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        adapter.load();
+        playbackScheduler.update();
+    }
+
+    @Override
+    protected void onPause() {
+        playbackScheduler.pauseAll();
+        Log.d(TAG, "Media players: " + mediaPlayerPool);
+        mediaPlayerPool.releaseAll();
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        recordingIndex.removeListener(adapter);
+        thumbnailCache.shutdown();
+        super.onDestroy();
     }
 
     @Override
@@ -74,80 +114,31 @@ public class MainActivity extends ActionBarActivity {
         return super.onOptionsItemSelected(item);
     }
 
-    public static class MediaPlayerHolder {
-        private Context applicationContext;
-
-        private final SurfaceTexture surfaceTexture;
-
-        private final File videoFile;
+    public static class VideoViewHolder extends RecyclerView.ViewHolder implements PlaybackScheduler.Playable {
 
-        private MediaPlayer mediaPlayer;
-
-        public MediaPlayerHolder(final Context applicationContext,
-                                 final SurfaceTexture surfaceTexture,
-                                 final File videoFile) {
-            this.applicationContext = applicationContext;
-            this.surfaceTexture = surfaceTexture;
-            this.videoFile = videoFile;
-        }
-
-        public void start() throws IOException {
-            if (mediaPlayer != null) {
-                return;
-            }
+        private final TextureView video;
 
-            mediaPlayer = new MediaPlayer();
-            mediaPlayer.setDataSource(applicationContext, Uri.fromFile(videoFile));
-            mediaPlayer.setSurface(new Surface(surfaceTexture));
-            mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-                @Override
-                public void onPrepared(final MediaPlayer mp) {
-                    mediaPlayer.setLooping(true);
-                    mediaPlayer.start();
-                }
-            });
-            mediaPlayer.prepareAsync();
-        }
+        private final ImageView poster;
 
-        public void stop() {
-            if (mediaPlayer == null) {
-                return;
-            }
+        private final MediaPlayerPool mediaPlayerPool;
 
-            if (mediaPlayer.isPlaying()) {
-                mediaPlayer.stop();
-            }
-            mediaPlayer.reset();
-            mediaPlayer.release();
-            mediaPlayer = null;
-        }
-    }
+        private File boundVideoFile;
 
-    public static class VideoViewHolder extends RecyclerView.ViewHolder {
+        private Surface surface;
 
-        private final TextureView video;
+        private boolean playing;
 
-        private final Context applicationContext;
-
-        private MediaPlayerHolder mediaPlayerHolder;
-
-        public VideoViewHolder(final View itemView, final Context applicationContext) {
+        public VideoViewHolder(final View itemView, final MediaPlayerPool mediaPlayerPool) {
             super(itemView);
-            this.applicationContext = applicationContext;
+            this.mediaPlayerPool = mediaPlayerPool;
             video = (TextureView) itemView.findViewById(R.id.video);
-        }
-
-        public void bind(final File videoFile) {
+            poster = (ImageView) itemView.findViewById(R.id.poster);
             video.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
                 @Override
                 public void onSurfaceTextureAvailable(final SurfaceTexture surfaceTexture, final int width, final int height) {
-                    try {
-                        mediaPlayerHolder = new MediaPlayerHolder(applicationContext,
-                                surfaceTexture,
-                                videoFile);
-                        mediaPlayerHolder.start();
-                    } catch (IOException e) {
-                        Log.w(TAG, e.getLocalizedMessage(), e);
+                    surface = new Surface(surfaceTexture);
+                    if (playing) {
+                        mediaPlayerPool.play(boundVideoFile, surface);
                     }
                 }
 
@@ -156,48 +147,121 @@ public class MainActivity extends ActionBarActivity {
                 }
 
                 @Override
-                public boolean onSurfaceTextureDestroyed(final SurfaceTexture surface) {
-                    mediaPlayerHolder.stop();
-                    mediaPlayerHolder = null;
+                public boolean onSurfaceTextureDestroyed(final SurfaceTexture surfaceTexture) {
+                    if (surface != null) {
+                        if (boundVideoFile != null) {
+                            mediaPlayerPool.detach(boundVideoFile, surface);
+                        }
+                        surface.release();
+                        surface = null;
+                    }
                     return true;
                 }
 
                 @Override
                 public void onSurfaceTextureUpdated(final SurfaceTexture surface) {
+                    if (playing) {
+                        poster.setVisibility(View.GONE);
+                    }
                 }
             });
         }
+
+        public void bind(final File videoFile, final ThumbnailCache thumbnailCache) {
+            setPlaying(false);
+            boundVideoFile = videoFile;
+
+            // the poster covers the video until the player has rendered its first frame
+            final Bitmap cached = thumbnailCache.getCached(videoFile);
+            poster.setImageBitmap(cached);
+            poster.setVisibility(View.VISIBLE);
+            if (cached == null) {
+                thumbnailCache.load(videoFile, new ThumbnailCache.Callback() {
+                    @Override
+                    public void onThumbnail(final File file, final Bitmap thumbnail) {
+                        if (file.equals(boundVideoFile)) {
+                            poster.setImageBitmap(thumbnail);
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Called by the {@link PlaybackScheduler}, playback starts once the surface is available.
+         */
+        @Override
+        public void setPlaying(final boolean playing) {
+            if (this.playing == playing) {
+                return;
+            }
+
+            this.playing = playing;
+            if (surface == null || boundVideoFile == null) {
+                return;
+            }
+            if (playing) {
+                mediaPlayerPool.play(boundVideoFile, surface);
+            } else {
+                mediaPlayerPool.pause(boundVideoFile, surface);
+            }
+        }
     }
 
-    private class Adapter extends RecyclerView.Adapter<VideoViewHolder> {
-        private final List<File> videoFiles = new ArrayList<>();
+    private class Adapter extends RecyclerView.Adapter<VideoViewHolder> implements RecordingIndex.Listener {
+        private final List<RecordingIndex.Recording> recordings = new ArrayList<>();
 
         @Override
         public VideoViewHolder onCreateViewHolder(final ViewGroup viewGroup, final int i) {
             final View view = LayoutInflater.from(viewGroup.getContext()).inflate(R.layout.item_video, viewGroup, false);
-            return new VideoViewHolder(view, getApplicationContext());
+            return new VideoViewHolder(view, mediaPlayerPool);
+        }
+
+        @Override
+        public void onViewRecycled(final VideoViewHolder viewHolder) {
+            viewHolder.setPlaying(false);
         }
 
         @Override
         public void onBindViewHolder(final VideoViewHolder viewHolder, final int i) {
-            final File videoFile = videoFiles.get(i);
-            viewHolder.bind(videoFile);
+            final RecordingIndex.Recording recording = recordings.get(i);
+            viewHolder.bind(recording.getFile(), thumbnailCache);
         }
 
         @Override
         public int getItemCount() {
-            return videoFiles.size();
+            return recordings.size();
         }
 
-        public void load() {
-            final File[] files = getVideoDir().listFiles();
-            videoFiles.clear();
-            videoFiles.addAll(Arrays.asList(files));
+        @Override
+        public void onLoaded(final List<RecordingIndex.Recording> recordings) {
+            this.recordings.clear();
+            this.recordings.addAll(recordings);
             notifyDataSetChanged();
+            schedulePlayback();
+        }
+
+        @Override
+        public void onInserted(final int position, final RecordingIndex.Recording recording) {
+            recordings.add(position, recording);
+            notifyItemInserted(position);
+            schedulePlayback();
+        }
+
+        @Override
+        public void onRemoved(final int position, final RecordingIndex.Recording recording) {
+            recordings.remove(position);
+            notifyItemRemoved(position);
+            schedulePlayback();
         }
 
-        private File getVideoDir() {
-            return getApplicationContext().getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        private void schedulePlayback() {
+            videos.post(new Runnable() {
+                @Override
+                public void run() {
+                    playbackScheduler.update();
+                }
+            });
         }
     }
 }
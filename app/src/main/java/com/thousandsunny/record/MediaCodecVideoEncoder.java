@@ -0,0 +1,544 @@
+package com.thousandsunny.record;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+
+import org.bytedeco.javacpp.opencv_core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hardware H.264 and AAC through {@link MediaCodec} and {@link MediaMuxer}, only takes NV21 frames.
+ * Many hardware encoders reject or silently corrupt sizes which are not a multiple of 16,
+ * {@link #start(File, EncoderSettings)} fails for those so the recorder can fall back to another backend. Frames are
+ * laid out with the row stride and slice height the codec asks for, where it tells them.
+ * <p/>
+ * The muxer needs the format of every track before it starts, which each codec only reports with its first output:
+ * samples encoded meanwhile are held back, and the audio track is left out if it has no format by the time
+ * {@link #MAX_PENDING_SAMPLES} samples are waiting.
+ * <p/>
+ * Encoding never waits for an input buffer: without one the output is drained once more, then the frame or the rest
+ * of the audio is dropped and counted.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaCodecVideoEncoder implements VideoEncoder {
+    private static final String TAG = MediaCodecVideoEncoder.class.getSimpleName();
+
+    public static final String NAME = "mediacodec";
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public VideoEncoder create() {
+            return new MediaCodecVideoEncoder();
+        }
+    };
+
+    private static final String MIME_TYPE = "video/avc";
+
+    private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+
+    private static final int AUDIO_BITRATE = 64000;
+
+    /**
+     * For the end of stream only, encoding does not wait.
+     */
+    private static final long TIMEOUT_US = 10000;
+
+    private static final int END_OF_STREAM_ATTEMPTS = 100;
+
+    /**
+     * Input format keys of the plane layout, only public from API 23 on.
+     */
+    private static final String KEY_STRIDE = "stride";
+
+    private static final String KEY_SLICE_HEIGHT = "slice-height";
+
+    /**
+     * About a second of video, the audio codec reports its format within a few buffers.
+     */
+    private static final int MAX_PENDING_SAMPLES = 64;
+
+    /**
+     * One codec feeding one track of the muxer.
+     */
+    private class Track {
+        private final MediaCodec codec;
+
+        private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+        private ByteBuffer[] inputBuffers;
+
+        /**
+         * Native order views of the input buffers, made once per buffer.
+         */
+        private ShortBuffer[] shortInputBuffers;
+
+        private ByteBuffer[] outputBuffers;
+
+        private MediaFormat outputFormat;
+
+        private int index = -1;
+
+        private Track(final MediaCodec codec) {
+            this.codec = codec;
+        }
+
+        private void start() {
+            codec.start();
+            inputBuffers = codec.getInputBuffers();
+            shortInputBuffers = new ShortBuffer[inputBuffers.length];
+            outputBuffers = codec.getOutputBuffers();
+        }
+
+        /**
+         * @return an input buffer, -1 if the codec has none free even once its output is drained
+         */
+        private int dequeueInput() {
+            int index = codec.dequeueInputBuffer(0);
+            if (index < 0) {
+                drain(false);
+                index = codec.dequeueInputBuffer(0);
+            }
+            return index;
+        }
+
+        private ShortBuffer getShortInput(final int index) {
+            if (shortInputBuffers[index] == null) {
+                shortInputBuffers[index] = inputBuffers[index].order(ByteOrder.nativeOrder()).asShortBuffer();
+            }
+            final ShortBuffer input = shortInputBuffers[index];
+            input.clear();
+            return input;
+        }
+
+        /**
+         * Writes what the codec has encoded so far, with {@code endOfStream} until its end of stream.
+         */
+        private void drain(final boolean endOfStream) {
+            int attempts = 0;
+            while (true) {
+                final int outputIndex = codec.dequeueOutputBuffer(bufferInfo, endOfStream ? TIMEOUT_US : 0);
+                if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    if (!endOfStream || ++attempts >= END_OF_STREAM_ATTEMPTS) {
+                        return;
+                    }
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = codec.getOutputBuffers();
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    outputFormat = codec.getOutputFormat();
+                    startMuxer(false);
+                } else if (outputIndex >= 0) {
+                    final ByteBuffer output = outputBuffers[outputIndex];
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        // already part of the format handed to the muxer
+                        bufferInfo.size = 0;
+                    }
+                    if (bufferInfo.size > 0) {
+                        output.position(bufferInfo.offset);
+                        output.limit(bufferInfo.offset + bufferInfo.size);
+                        writeSample(this, output, bufferInfo);
+                    }
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void endOfStream(final long timestamp) {
+            final int inputIndex = codec.dequeueInputBuffer(TIMEOUT_US * 10);
+            if (inputIndex >= 0) {
+                codec.queueInputBuffer(inputIndex, 0, 0, timestamp, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            }
+            drain(true);
+            codec.stop();
+        }
+    }
+
+    /**
+     * An encoded sample waiting for the muxer to start.
+     */
+    private static class PendingSample {
+        private final Track track;
+
+        private final ByteBuffer data;
+
+        private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+        private PendingSample(final Track track, final ByteBuffer source, final MediaCodec.BufferInfo sourceInfo) {
+            this.track = track;
+            data = ByteBuffer.allocate(source.remaining());
+            data.put(source);
+            data.flip();
+            bufferInfo.set(0, sourceInfo.size, sourceInfo.presentationTimeUs, sourceInfo.flags);
+        }
+    }
+
+    private Track video;
+
+    private Track audio;
+
+    private MediaMuxer muxer;
+
+    private boolean muxerStarted;
+
+    private final List<PendingSample> pendingSamples = new ArrayList<>();
+
+    private int colorFormat;
+
+    private int outputSide;
+
+    /**
+     * Bytes between the starts of two luma rows of an input buffer.
+     */
+    private int stride;
+
+    /**
+     * Rows of the luma plane of an input buffer, the chroma starts after them.
+     */
+    private int sliceHeight;
+
+    private int audioSampleRate;
+
+    private int audioChannelCount;
+
+    private long lastTimestamp = -1;
+
+    private long lastAudioTimestamp = -1;
+
+    private long droppedFrameCount;
+
+    private long droppedAudioCount;
+
+    private byte[] frame;
+
+    private byte[] chroma;
+
+    @Override
+    public boolean supportsAudio() {
+        return true;
+    }
+
+    @Override
+    public void setAudioFormat(final int sampleRate, final int channelCount) {
+        audioSampleRate = sampleRate;
+        audioChannelCount = channelCount;
+    }
+
+    @Override
+    public void start(final File outputFile, final EncoderSettings settings) throws EncoderException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            throw new EncoderException("MediaMuxer needs API 18");
+        }
+
+        outputSide = settings.getOutputSide();
+        if (outputSide % 16 != 0) {
+            throw new EncoderException("Output side " + outputSide + " is not a multiple of 16");
+        }
+        frame = new byte[outputSide * outputSide * 3 / 2];
+        chroma = new byte[outputSide * outputSide / 2];
+
+        try {
+            video = new Track(MediaCodec.createEncoderByType(MIME_TYPE));
+            colorFormat = selectColorFormat(video.codec.getCodecInfo());
+
+            final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, outputSide, outputSide);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, settings.getVideoBitrate());
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, (int) Math.round(settings.getFrameRate()));
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            video.codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            video.start();
+            readInputLayout();
+
+            if (audioSampleRate > 0) {
+                audio = new Track(MediaCodec.createEncoderByType(AUDIO_MIME_TYPE));
+                final MediaFormat audioFormat = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE,
+                        audioSampleRate,
+                        audioChannelCount);
+                audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+                audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BITRATE);
+                audio.codec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                audio.start();
+            }
+
+            muxer = new MediaMuxer(outputFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (final IOException | RuntimeException e) {
+            throw new EncoderException(e);
+        }
+    }
+
+    /**
+     * Takes the stride and slice height of the input format, a tightly packed frame if the codec does not tell.
+     */
+    private void readInputLayout() throws EncoderException {
+        stride = outputSide;
+        sliceHeight = outputSide;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final MediaFormat inputFormat = getInputFormat(video.codec);
+            if (inputFormat.containsKey(KEY_STRIDE)) {
+                stride = Math.max(outputSide, inputFormat.getInteger(KEY_STRIDE));
+            }
+            if (inputFormat.containsKey(KEY_SLICE_HEIGHT)) {
+                sliceHeight = Math.max(outputSide, inputFormat.getInteger(KEY_SLICE_HEIGHT));
+            }
+        }
+
+        final int inputSize = stride * sliceHeight * 3 / 2;
+        if (video.inputBuffers[0].capacity() < inputSize) {
+            throw new EncoderException("Input buffers of " + video.inputBuffers[0].capacity()
+                    + " bytes cannot hold " + stride + "x" + sliceHeight + " frames");
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static MediaFormat getInputFormat(final MediaCodec codec) {
+        return codec.getInputFormat();
+    }
+
+    private static int selectColorFormat(final MediaCodecInfo codecInfo) throws EncoderException {
+        final MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(MIME_TYPE);
+        for (final int format : capabilities.colorFormats) {
+            if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar
+                    || format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+                return format;
+            }
+        }
+        throw new EncoderException("No supported color format in " + codecInfo.getName());
+    }
+
+    @Override
+    public boolean encode(final opencv_core.IplImage image, final long timestampMicros) throws EncoderException {
+        if (image.nChannels() != 2 || image.width() != outputSide || image.height() != outputSide) {
+            throw new EncoderException("Only takes " + outputSide + "x" + outputSide + " NV21 frames");
+        }
+
+        final boolean ahead = timestampMicros > lastTimestamp;
+        final long timestamp = ahead ? timestampMicros : lastTimestamp + 1;
+
+        try {
+            final int index = video.dequeueInput();
+            if (index < 0) {
+                droppedFrameCount++;
+                return ahead;
+            }
+
+            final ByteBuffer nv21 = image.getByteBuffer();
+            nv21.position(0);
+            nv21.get(frame);
+
+            final ByteBuffer input = video.inputBuffers[index];
+            input.clear();
+            final int length = putFrame(input);
+            video.codec.queueInputBuffer(index, 0, length, timestamp, 0);
+            lastTimestamp = timestamp;
+
+            video.drain(false);
+        } catch (final RuntimeException e) {
+            throw new EncoderException(e);
+        }
+        return ahead;
+    }
+
+    /**
+     * Writes the NV21 frame as NV12 or I420, depending on what the codec takes, row by row at the codec's stride.
+     *
+     * @return bytes up to the end of the last chroma row
+     */
+    private int putFrame(final ByteBuffer input) {
+        final int lumaSize = outputSide * outputSide;
+        for (int row = 0; row < outputSide; ++row) {
+            input.position(row * stride);
+            input.put(frame, row * outputSide, outputSide);
+        }
+
+        final int half = outputSide / 2;
+        final int quarter = lumaSize / 4;
+        final int chromaStart = stride * sliceHeight;
+        if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+            for (int i = 0; i < quarter; ++i) {
+                chroma[2 * i] = frame[lumaSize + 2 * i + 1];
+                chroma[2 * i + 1] = frame[lumaSize + 2 * i];
+            }
+            for (int row = 0; row < half; ++row) {
+                input.position(chromaStart + row * stride);
+                input.put(chroma, row * outputSide, outputSide);
+            }
+        } else {
+            for (int i = 0; i < quarter; ++i) {
+                chroma[i] = frame[lumaSize + 2 * i + 1];
+                chroma[quarter + i] = frame[lumaSize + 2 * i];
+            }
+            final int chromaStride = stride / 2;
+            final int vStart = chromaStart + chromaStride * (sliceHeight / 2);
+            for (int row = 0; row < half; ++row) {
+                input.position(chromaStart + row * chromaStride);
+                input.put(chroma, row * half, half);
+            }
+            for (int row = 0; row < half; ++row) {
+                input.position(vStart + row * chromaStride);
+                input.put(chroma, quarter + row * half, half);
+            }
+        }
+        return input.position();
+    }
+
+    @Override
+    public void encodeAudio(final short[] samples,
+                            final int length,
+                            final long timestampMicros) throws EncoderException {
+        if (audio == null) {
+            throw new EncoderException("No audio format was set");
+        }
+        if (timestampMicros <= lastAudioTimestamp) {
+            // the muxer rejects samples going back in time
+            droppedAudioCount++;
+            return;
+        }
+
+        try {
+            int offset = 0;
+            while (offset < length) {
+                final int index = audio.dequeueInput();
+                if (index < 0) {
+                    droppedAudioCount++;
+                    break;
+                }
+
+                final ShortBuffer input = audio.getShortInput(index);
+                // whole frames of interleaved samples only
+                final int count = Math.min(length - offset,
+                        input.capacity() / audioChannelCount * audioChannelCount);
+                input.put(samples, offset, count);
+                final long timestamp = timestampMicros
+                        + offset / audioChannelCount * 1000000L / audioSampleRate;
+                audio.codec.queueInputBuffer(index, 0, count * 2, timestamp, 0);
+                lastAudioTimestamp = timestamp;
+                offset += count;
+            }
+            audio.drain(false);
+        } catch (final RuntimeException e) {
+            throw new EncoderException(e);
+        }
+    }
+
+    /**
+     * Adds the tracks whose format is known and starts the muxer once every track has one, or with
+     * {@code force} without the audio.
+     */
+    private void startMuxer(final boolean force) {
+        if (muxerStarted || video.outputFormat == null) {
+            return;
+        }
+        final boolean withAudio = audio != null && audio.outputFormat != null;
+        if (audio != null && !withAudio && !force) {
+            return;
+        }
+
+        video.index = muxer.addTrack(video.outputFormat);
+        if (withAudio) {
+            audio.index = muxer.addTrack(audio.outputFormat);
+        } else if (audio != null) {
+            Log.w(TAG, "The audio codec reported no format, recording video only");
+        }
+        muxer.start();
+        muxerStarted = true;
+
+        for (final PendingSample sample : pendingSamples) {
+            if (sample.track.index >= 0) {
+                muxer.writeSampleData(sample.track.index, sample.data, sample.bufferInfo);
+            }
+        }
+        pendingSamples.clear();
+    }
+
+    private void writeSample(final Track track, final ByteBuffer data, final MediaCodec.BufferInfo bufferInfo) {
+        if (muxerStarted) {
+            if (track.index >= 0) {
+                muxer.writeSampleData(track.index, data, bufferInfo);
+            }
+            return;
+        }
+
+        pendingSamples.add(new PendingSample(track, data, bufferInfo));
+        if (pendingSamples.size() >= MAX_PENDING_SAMPLES) {
+            startMuxer(true);
+        }
+    }
+
+    @Override
+    public void stop() throws EncoderException {
+        try {
+            video.endOfStream(lastTimestamp + 1);
+            if (audio != null) {
+                audio.endOfStream(lastAudioTimestamp + 1);
+            }
+            startMuxer(true);
+            if (muxerStarted) {
+                muxer.stop();
+            }
+        } catch (final RuntimeException e) {
+            throw new EncoderException(e);
+        }
+
+        if (droppedFrameCount > 0) {
+            Log.w(TAG, "No input buffer for " + droppedFrameCount + " frames");
+        }
+        if (droppedAudioCount > 0) {
+            Log.w(TAG, "Dropped " + droppedAudioCount + " audio buffers");
+        }
+    }
+
+    /**
+     * @return frames dropped for want of an input buffer
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    /**
+     * @return audio buffers dropped, in part or whole, for want of an input buffer or for going back in time
+     */
+    public long getDroppedAudioCount() {
+        return droppedAudioCount;
+    }
+
+    @Override
+    public void release() {
+        if (video != null) {
+            video.codec.release();
+            video = null;
+        }
+        if (audio != null) {
+            audio.codec.release();
+            audio = null;
+        }
+        if (muxer != null) {
+            muxer.release();
+            muxer = null;
+        }
+        pendingSamples.clear();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,199 @@
+package com.thousandsunny.record;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * At most {@code maxPlayers} {@link MediaPlayer}s for the gallery, keyed by video. A video that comes back into
+ * view reuses its prepared player, possibly on the surface of another view holder; a new video takes over the
+ * least recently used player with {@link MediaPlayer#reset()} instead of creating one once the pool is full.
+ * <p/>
+ * Must be used from the main thread.
+ */
+public class MediaPlayerPool {
+    private static final String TAG = MediaPlayerPool.class.getSimpleName();
+
+    private static class Player {
+        private final MediaPlayer mediaPlayer;
+
+        private File videoFile;
+
+        private Surface surface;
+
+        private boolean prepared;
+
+        private boolean playWhenPrepared;
+
+        private Player(final MediaPlayer mediaPlayer) {
+            this.mediaPlayer = mediaPlayer;
+        }
+    }
+
+    private final Context applicationContext;
+
+    private final int maxPlayers;
+
+    /**
+     * In access order, the first entry is the least recently used one.
+     */
+    private final LinkedHashMap<File, Player> players = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long prepareCount;
+
+    private long reuseCount;
+
+    private long evictionCount;
+
+    public MediaPlayerPool(final Context applicationContext, final int maxPlayers) {
+        if (maxPlayers < 1) {
+            throw new IllegalArgumentException("maxPlayers=" + maxPlayers);
+        }
+        this.applicationContext = applicationContext;
+        this.maxPlayers = maxPlayers;
+    }
+
+    public int getMaxPlayers() {
+        return maxPlayers;
+    }
+
+    /**
+     * Loops the video on the surface, preparing a player first if there is none for it.
+     */
+    public void play(final File videoFile, final Surface surface) {
+        Player player = players.get(videoFile);
+        if (player != null) {
+            reuseCount++;
+        } else {
+            player = obtainPlayer();
+            if (!prepare(player, videoFile)) {
+                player.mediaPlayer.release();
+                return;
+            }
+            players.put(videoFile, player);
+        }
+
+        if (player.surface != surface) {
+            player.surface = surface;
+            player.mediaPlayer.setSurface(surface);
+        }
+        player.playWhenPrepared = true;
+        if (player.prepared && !player.mediaPlayer.isPlaying()) {
+            player.mediaPlayer.start();
+        }
+    }
+
+    /**
+     * Pauses the video if it is playing on this surface, the player stays prepared.
+     */
+    public void pause(final File videoFile, final Surface surface) {
+        final Player player = players.get(videoFile);
+        if (player == null || player.surface != surface) {
+            return;
+        }
+
+        player.playWhenPrepared = false;
+        if (player.prepared && player.mediaPlayer.isPlaying()) {
+            player.mediaPlayer.pause();
+        }
+    }
+
+    /**
+     * Pauses the video and lets go of the surface, which is about to be destroyed.
+     */
+    public void detach(final File videoFile, final Surface surface) {
+        final Player player = players.get(videoFile);
+        if (player == null || player.surface != surface) {
+            return;
+        }
+
+        pause(videoFile, surface);
+        player.surface = null;
+        player.mediaPlayer.setSurface(null);
+    }
+
+    public void releaseAll() {
+        for (final Player player : players.values()) {
+            player.mediaPlayer.release();
+        }
+        players.clear();
+    }
+
+    public long getPrepareCount() {
+        return prepareCount;
+    }
+
+    public long getReuseCount() {
+        return reuseCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public String toString() {
+        return "players=" + players.size() + "/" + maxPlayers
+                + ", prepares=" + prepareCount
+                + ", reuses=" + reuseCount
+                + ", evictions=" + evictionCount;
+    }
+
+    private Player obtainPlayer() {
+        if (players.size() < maxPlayers) {
+            return new Player(new MediaPlayer());
+        }
+
+        final Iterator<Map.Entry<File, Player>> iterator = players.entrySet().iterator();
+        final Player eldest = iterator.next().getValue();
+        iterator.remove();
+        evictionCount++;
+
+        eldest.mediaPlayer.reset();
+        return new Player(eldest.mediaPlayer);
+    }
+
+    private boolean prepare(final Player player, final File videoFile) {
+        player.videoFile = videoFile;
+        final MediaPlayer mediaPlayer = player.mediaPlayer;
+        try {
+            mediaPlayer.setDataSource(applicationContext, Uri.fromFile(videoFile));
+        } catch (IOException e) {
+            Log.w(TAG, e.getLocalizedMessage(), e);
+            return false;
+        }
+
+        mediaPlayer.setLooping(true);
+        mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(final MediaPlayer mp) {
+                player.prepared = true;
+                if (player.playWhenPrepared) {
+                    mediaPlayer.start();
+                }
+            }
+        });
+        mediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(final MediaPlayer mp, final int what, final int extra) {
+                Log.w(TAG, "Cannot play " + player.videoFile + ": what=" + what + ", extra=" + extra);
+                if (players.get(player.videoFile) == player) {
+                    players.remove(player.videoFile);
+                    mediaPlayer.release();
+                }
+                return true;
+            }
+        });
+        mediaPlayer.prepareAsync();
+        prepareCount++;
+        return true;
+    }
+}
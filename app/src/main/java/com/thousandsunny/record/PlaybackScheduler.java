@@ -0,0 +1,110 @@
+package com.thousandsunny.record;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Plays the {@code maxPlaying} most visible cells of a {@link RecyclerView} and pauses all others, re-evaluated
+ * whenever the list scrolls. Cells which are less than half visible never play.
+ */
+public class PlaybackScheduler {
+    private static final float MIN_VISIBLE_FRACTION = 0.5f;
+
+    public interface Playable {
+        void setPlaying(boolean playing);
+    }
+
+    private static class Candidate {
+        private final Playable playable;
+
+        private final float visibleFraction;
+
+        private Candidate(final Playable playable, final float visibleFraction) {
+            this.playable = playable;
+            this.visibleFraction = visibleFraction;
+        }
+    }
+
+    private static final Comparator<Candidate> MOST_VISIBLE_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(final Candidate lhs, final Candidate rhs) {
+            return Float.compare(rhs.visibleFraction, lhs.visibleFraction);
+        }
+    };
+
+    private final RecyclerView recyclerView;
+
+    private final int maxPlaying;
+
+    private final List<Candidate> candidates = new ArrayList<>();
+
+    public PlaybackScheduler(final RecyclerView recyclerView, final int maxPlaying) {
+        this.recyclerView = recyclerView;
+        this.maxPlaying = maxPlaying;
+        recyclerView.setOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(final int newState) {
+            }
+
+            @Override
+            public void onScrolled(final int dx, final int dy) {
+                update();
+            }
+        });
+    }
+
+    /**
+     * Also to be called after the data set changed, once the list has been laid out.
+     */
+    public void update() {
+        candidates.clear();
+        final int width = recyclerView.getWidth();
+        final int height = recyclerView.getHeight();
+        for (int i = 0; i < recyclerView.getChildCount(); ++i) {
+            final View child = recyclerView.getChildAt(i);
+            final RecyclerView.ViewHolder holder = recyclerView.getChildViewHolder(child);
+            if (!(holder instanceof Playable) || child.getWidth() == 0 || child.getHeight() == 0) {
+                continue;
+            }
+
+            final int visibleWidth = Math.min(child.getRight(), width) - Math.max(child.getLeft(), 0);
+            final int visibleHeight = Math.min(child.getBottom(), height) - Math.max(child.getTop(), 0);
+            final float visibleFraction = visibleWidth <= 0 || visibleHeight <= 0
+                    ? 0
+                    : (float) visibleWidth * visibleHeight / (child.getWidth() * child.getHeight());
+            candidates.add(new Candidate((Playable) holder, visibleFraction));
+        }
+        Collections.sort(candidates, MOST_VISIBLE_FIRST);
+
+        // pause first so the pool has a free player for the cells that start
+        for (int i = 0; i < candidates.size(); ++i) {
+            if (!shouldPlay(i)) {
+                candidates.get(i).playable.setPlaying(false);
+            }
+        }
+        for (int i = 0; i < candidates.size(); ++i) {
+            if (shouldPlay(i)) {
+                candidates.get(i).playable.setPlaying(true);
+            }
+        }
+        candidates.clear();
+    }
+
+    public void pauseAll() {
+        for (int i = 0; i < recyclerView.getChildCount(); ++i) {
+            final RecyclerView.ViewHolder holder = recyclerView.getChildViewHolder(recyclerView.getChildAt(i));
+            if (holder instanceof Playable) {
+                ((Playable) holder).setPlaying(false);
+            }
+        }
+    }
+
+    private boolean shouldPlay(final int rank) {
+        return rank < maxPlaying && candidates.get(rank).visibleFraction >= MIN_VISIBLE_FRACTION;
+    }
+}
@@ -0,0 +1,99 @@
+package com.thousandsunny.record;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.util.Log;
+
+/**
+ * Preallocated preview buffers registered through {@link Camera#addCallbackBuffer(byte[])}, so the camera does not
+ * allocate a new frame for every callback. A buffer goes back to the camera with {@link #recycle(byte[])} once the
+ * recorder is done with it. While a callback is late the following frames hold the other buffers and the camera
+ * silently drops frames; {@link FrameGapMonitor} counts them from the callback gaps.
+ */
+public class PreviewBufferPool {
+    private static final String TAG = PreviewBufferPool.class.getSimpleName();
+
+    private final Camera camera;
+
+    private final byte[][] buffers;
+
+    private final int bufferSize;
+
+    private final FrameGapMonitor gapMonitor;
+
+    /**
+     * @param configuration what the camera has been set up with
+     */
+    public PreviewBufferPool(final Camera camera, final PreviewConfiguration configuration, final int count) {
+        this.camera = camera;
+
+        final int bitsPerPixel = ImageFormat.getBitsPerPixel(configuration.getFormat());
+        if (bitsPerPixel <= 0) {
+            throw new IllegalArgumentException("Unsupported preview format:" + configuration.getFormat());
+        }
+        bufferSize = configuration.getWidth() * configuration.getHeight() * bitsPerPixel / 8;
+
+        buffers = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            buffers[i] = new byte[bufferSize];
+        }
+        gapMonitor = new FrameGapMonitor(configuration.getMaxFps() / 1000.0);
+    }
+
+    /**
+     * Registers the callback and hands every buffer to the camera. Call it whenever the preview is (re)started, on
+     * the thread receiving the callbacks so no buffer is out meanwhile.
+     */
+    public void attach(final Camera.PreviewCallback callback) {
+        // a null callback empties the camera's buffer queue, re-adding the buffers would queue each of them twice
+        // and let the camera write into one the callback still reads
+        camera.setPreviewCallbackWithBuffer(null);
+        camera.setPreviewCallbackWithBuffer(callback);
+        gapMonitor.reset();
+        for (final byte[] buffer : buffers) {
+            camera.addCallbackBuffer(buffer);
+        }
+    }
+
+    public void detach() {
+        camera.setPreviewCallbackWithBuffer(null);
+    }
+
+    /**
+     * Must be called first thing in the preview callback, for every buffer delivered.
+     */
+    public void onBufferDelivered() {
+        final int dropped = gapMonitor.onDelivered(System.nanoTime());
+        if (dropped > 0) {
+            final long exhausted = gapMonitor.getExhaustedCount();
+            if ((exhausted & (exhausted - 1)) == 0) {
+                Log.w(TAG, "Preview buffer pool exhausted " + exhausted + " times, "
+                        + gapMonitor.getDroppedFrameCount() + " frames dropped, pool size=" + buffers.length);
+            }
+        }
+    }
+
+    /**
+     * Hands a delivered buffer back to the camera, last thing in the preview callback.
+     */
+    public void recycle(final byte[] buffer) {
+        camera.addCallbackBuffer(buffer);
+        gapMonitor.onReturned(System.nanoTime());
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getBufferCount() {
+        return buffers.length;
+    }
+
+    public long getExhaustedCount() {
+        return gapMonitor.getExhaustedCount();
+    }
+
+    public long getDroppedFrameCount() {
+        return gapMonitor.getDroppedFrameCount();
+    }
+}
@@ -0,0 +1,77 @@
+package com.thousandsunny.record;
+
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Probes the preview sizes, frame rate ranges and formats of a camera and sets it up with the cheapest
+ * configuration covering the recording, see {@link PreviewConfigurations#choose}. The decision is kept per camera
+ * id and recording profile, later starts apply it without probing again.
+ */
+public class PreviewNegotiator {
+    private static final String TAG = PreviewNegotiator.class.getSimpleName();
+
+    private final SharedPreferences preferences;
+
+    public PreviewNegotiator(final SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    /**
+     * Sets the preview up without starting it. May be called off the main thread, before the camera is handed to
+     * the views.
+     *
+     * @param requiredSide largest output square the recording renders
+     * @return what the camera has been set up with
+     */
+    public PreviewConfiguration negotiate(final int cameraId,
+                                          final Camera camera,
+                                          final int requiredSide,
+                                          final double frameRate) {
+        final String key = "preview_" + Build.MODEL + "_" + cameraId + "_" + requiredSide + "_" + (int) frameRate;
+        final PreviewConfiguration cached = PreviewConfiguration.parse(preferences.getString(key, null));
+        if (cached != null) {
+            try {
+                apply(camera, cached);
+                return cached;
+            } catch (final RuntimeException e) {
+                // e.g. after a system update changed the supported sizes
+                Log.w(TAG, "Cannot apply the cached preview " + cached + ", probing again", e);
+            }
+        }
+
+        final long start = System.nanoTime();
+        final PreviewConfiguration configuration = probe(camera, requiredSide, frameRate);
+        apply(camera, configuration);
+        preferences.edit().putString(key, configuration.format()).apply();
+        Log.i(TAG, "Camera " + cameraId + " negotiated " + configuration + " in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+        return configuration;
+    }
+
+    private static PreviewConfiguration probe(final Camera camera, final int requiredSide, final double frameRate) {
+        final Camera.Parameters parameters = camera.getParameters();
+        final List<int[]> sizes = new ArrayList<>();
+        for (final Camera.Size size : parameters.getSupportedPreviewSizes()) {
+            sizes.add(new int[]{size.width, size.height});
+        }
+        return PreviewConfigurations.choose(sizes,
+                parameters.getSupportedPreviewFpsRange(),
+                parameters.getSupportedPreviewFormats(),
+                requiredSide,
+                frameRate);
+    }
+
+    private static void apply(final Camera camera, final PreviewConfiguration configuration) {
+        final Camera.Parameters parameters = camera.getParameters();
+        parameters.setPreviewSize(configuration.getWidth(), configuration.getHeight());
+        parameters.setPreviewFpsRange(configuration.getMinFps(), configuration.getMaxFps());
+        parameters.setPreviewFormat(configuration.getFormat());
+        camera.setParameters(parameters);
+    }
+}
@@ -0,0 +1,447 @@
+package com.thousandsunny.record;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.os.Environment;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Recordings of the app, newest first, persisted as JSON so opening the gallery only reads one file instead of
+ * listing and probing the video directory. The index is maintained on a background thread: {@link CameraActivity}
+ * adds a recording when it has been written and a {@link FileObserver} on the video directory picks up files
+ * created or deleted by anyone else while the process is alive. The video directory is only scanned once, when
+ * there is no index yet.
+ * <p/>
+ * {@link Listener}s are called on the main thread with the position of every change.
+ */
+public class RecordingIndex {
+    private static final String TAG = RecordingIndex.class.getSimpleName();
+
+    private static final String INDEX_FILENAME = "recordings.json";
+
+    private static final int VERSION = 1;
+
+    private static final String VIDEO_EXTENSION = ".mp4";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static class Recording {
+        private final File file;
+
+        private final long size;
+
+        private final long durationMillis;
+
+        private final long createdMillis;
+
+        private final File posterFile;
+
+        private final int width;
+
+        private final int height;
+
+        public Recording(final File file,
+                         final long size,
+                         final long durationMillis,
+                         final long createdMillis,
+                         final File posterFile,
+                         final int width,
+                         final int height) {
+            this.file = file;
+            this.size = size;
+            this.durationMillis = durationMillis;
+            this.createdMillis = createdMillis;
+            this.posterFile = posterFile;
+            this.width = width;
+            this.height = height;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public long getCreatedMillis() {
+            return createdMillis;
+        }
+
+        /**
+         * @return null if the recording has no poster
+         */
+        public File getPosterFile() {
+            return posterFile;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called once the index has been read, or right away if it already has.
+         */
+        void onLoaded(List<Recording> recordings);
+
+        void onInserted(int position, Recording recording);
+
+        void onRemoved(int position, Recording recording);
+    }
+
+    private static RecordingIndex instance;
+
+    private final File indexFile;
+
+    private final File videoDir;
+
+    private final Handler handler;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final FileObserver fileObserver;
+
+    /**
+     * Owned by the background thread.
+     */
+    private final List<Recording> recordings = new ArrayList<>();
+
+    /**
+     * Copy of {@link #recordings} owned by the main thread, the changes are applied in the same order.
+     */
+    private final List<Recording> mainRecordings = new ArrayList<>();
+
+    private final List<Listener> listeners = new ArrayList<>();
+
+    private boolean loaded;
+
+    public static synchronized RecordingIndex getInstance(final Context context) {
+        if (instance == null) {
+            final Context applicationContext = context.getApplicationContext();
+            instance = new RecordingIndex(new File(applicationContext.getFilesDir(), INDEX_FILENAME),
+                    applicationContext.getExternalFilesDir(Environment.DIRECTORY_MOVIES));
+        }
+        return instance;
+    }
+
+    private RecordingIndex(final File indexFile, final File videoDir) {
+        this.indexFile = indexFile;
+        this.videoDir = videoDir;
+
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        // process wide, like the index itself
+        fileObserver = new FileObserver(videoDir.getAbsolutePath(),
+                FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE | FileObserver.MOVED_FROM) {
+            @Override
+            public void onEvent(final int event, final String path) {
+                if (path == null || !path.endsWith(VIDEO_EXTENSION)) {
+                    return;
+                }
+
+                final File file = new File(RecordingIndex.this.videoDir, path);
+                if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+                    remove(file);
+                } else {
+                    add(file);
+                }
+            }
+        };
+        fileObserver.startWatching();
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+        if (loaded) {
+            listener.onLoaded(Collections.unmodifiableList(new ArrayList<>(mainRecordings)));
+        }
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Indexes a finished recording, replaces the entry if the file has changed since it was indexed.
+     */
+    public void add(final File videoFile) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                final int index = indexOf(videoFile);
+                if (index >= 0 && recordings.get(index).getSize() == videoFile.length()) {
+                    return;
+                }
+                if (!videoFile.isFile()) {
+                    return;
+                }
+
+                final Recording recording = probe(videoFile);
+                if (index >= 0) {
+                    removeAt(index);
+                }
+                int position = 0;
+                while (position < recordings.size()
+                        && recordings.get(position).getCreatedMillis() > recording.getCreatedMillis()) {
+                    position++;
+                }
+                recordings.add(position, recording);
+                save();
+
+                final int insertedPosition = position;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mainRecordings.add(insertedPosition, recording);
+                        for (final Listener listener : new ArrayList<>(listeners)) {
+                            listener.onInserted(insertedPosition, recording);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    public void remove(final File videoFile) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                final int index = indexOf(videoFile);
+                if (index >= 0) {
+                    removeAt(index);
+                    save();
+                }
+            }
+        });
+    }
+
+    private void removeAt(final int position) {
+        final Recording recording = recordings.remove(position);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mainRecordings.remove(position);
+                for (final Listener listener : new ArrayList<>(listeners)) {
+                    listener.onRemoved(position, recording);
+                }
+            }
+        });
+    }
+
+    private int indexOf(final File videoFile) {
+        for (int i = 0; i < recordings.size(); ++i) {
+            if (recordings.get(i).getFile().equals(videoFile)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void load() {
+        if (indexFile.exists()) {
+            try {
+                recordings.addAll(read());
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Cannot read " + indexFile + ", rebuilding it", e);
+                recordings.clear();
+                scan();
+            }
+        } else {
+            scan();
+        }
+
+        final List<Recording> snapshot = new ArrayList<>(recordings);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mainRecordings.addAll(snapshot);
+                loaded = true;
+                for (final Listener listener : new ArrayList<>(listeners)) {
+                    listener.onLoaded(Collections.unmodifiableList(new ArrayList<>(mainRecordings)));
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the index of the recordings made before there was one.
+     */
+    private void scan() {
+        final File[] files = videoDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String filename) {
+                return filename.endsWith(VIDEO_EXTENSION);
+            }
+        });
+        if (files != null) {
+            for (final File file : files) {
+                recordings.add(probe(file));
+            }
+        }
+        Collections.sort(recordings, new Comparator<Recording>() {
+            @Override
+            public int compare(final Recording lhs, final Recording rhs) {
+                final long l = lhs.getCreatedMillis();
+                final long r = rhs.getCreatedMillis();
+                return l > r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        save();
+    }
+
+    private static Recording probe(final File videoFile) {
+        long durationMillis = 0;
+        int width = 0;
+        int height = 0;
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(videoFile.getAbsolutePath());
+            durationMillis = parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+            width = (int) parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            height = (int) parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot read the metadata of " + videoFile, e);
+        } finally {
+            retriever.release();
+        }
+
+        final File posterFile = PosterFrame.getPosterFile(videoFile);
+        return new Recording(videoFile,
+                videoFile.length(),
+                durationMillis,
+                videoFile.lastModified(),
+                posterFile.exists() ? posterFile : null,
+                width,
+                height);
+    }
+
+    private static long parseLong(final String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private List<Recording> read() throws IOException, JSONException {
+        final byte[] bytes = new byte[(int) indexFile.length()];
+        final InputStream in = new FileInputStream(indexFile);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int read = in.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    throw new IOException("Truncated " + indexFile);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        final JSONObject json = new JSONObject(new String(bytes, UTF_8));
+        if (json.getInt("version") != VERSION) {
+            throw new JSONException("Unsupported version " + json.getInt("version"));
+        }
+
+        final JSONArray array = json.getJSONArray("recordings");
+        final List<Recording> result = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); ++i) {
+            final JSONObject item = array.getJSONObject(i);
+            final String posterPath = item.optString("posterPath", null);
+            result.add(new Recording(new File(item.getString("path")),
+                    item.getLong("size"),
+                    item.getLong("durationMillis"),
+                    item.getLong("createdMillis"),
+                    posterPath == null ? null : new File(posterPath),
+                    item.getInt("width"),
+                    item.getInt("height")));
+        }
+        return result;
+    }
+
+    /**
+     * Writes a temporary file and renames it, so a crash never leaves a truncated index behind.
+     */
+    private void save() {
+        try {
+            final JSONArray array = new JSONArray();
+            for (final Recording recording : recordings) {
+                final JSONObject item = new JSONObject();
+                item.put("path", recording.getFile().getAbsolutePath());
+                item.put("size", recording.getSize());
+                item.put("durationMillis", recording.getDurationMillis());
+                item.put("createdMillis", recording.getCreatedMillis());
+                if (recording.getPosterFile() != null) {
+                    item.put("posterPath", recording.getPosterFile().getAbsolutePath());
+                }
+                item.put("width", recording.getWidth());
+                item.put("height", recording.getHeight());
+                array.put(item);
+            }
+            final JSONObject json = new JSONObject();
+            json.put("version", VERSION);
+            json.put("recordings", array);
+
+            final File tempFile = new File(indexFile.getParentFile(), INDEX_FILENAME + ".tmp");
+            final OutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(json.toString().getBytes(UTF_8));
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("Cannot rename " + tempFile + " to " + indexFile);
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, e.getLocalizedMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.thousandsunny.record;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Ships the recordings of the app to the backend at {@code R.string.upload_url} through one {@link UploadQueue} per
+ * process, resuming what a previous process left. Uploading is off while the URL is empty.
+ */
+public class RecordingUploader {
+    private static final String TAG = RecordingUploader.class.getSimpleName();
+
+    private static final String STATE_DIRECTORY = "uploads";
+
+    /**
+     * Enough to hide the latency of one request behind another without competing with the recording for I/O.
+     */
+    private static final int CONCURRENCY = 2;
+
+    private static RecordingUploader instance;
+
+    private final UploadQueue queue;
+
+    /**
+     * Directories whose files go away once their uploads are over.
+     */
+    private final Set<File> disposableDirectories = new HashSet<>();
+
+    public static synchronized RecordingUploader getInstance(final Context context) {
+        if (instance == null) {
+            final Context applicationContext = context.getApplicationContext();
+            instance = new RecordingUploader(new File(applicationContext.getFilesDir(), STATE_DIRECTORY),
+                    applicationContext.getString(R.string.upload_url));
+        }
+        return instance;
+    }
+
+    private RecordingUploader(final File stateDirectory, final String url) {
+        queue = createQueue(stateDirectory, url);
+        if (queue != null) {
+            queue.start();
+        }
+    }
+
+    /**
+     * @return null if uploading is off
+     */
+    private UploadQueue createQueue(final File stateDirectory, final String url) {
+        if (url.isEmpty()) {
+            return null;
+        }
+        try {
+            return new UploadQueue(stateDirectory,
+                    new HttpUploadTransport(new URL(url)),
+                    UploadQueue.DEFAULT_CHUNK_SIZE,
+                    CONCURRENCY,
+                    new Listener());
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Invalid upload URL " + url, e);
+            return null;
+        }
+    }
+
+    /**
+     * Queues a recording once it has been written completely, may be called from any thread.
+     */
+    public void upload(final File file) {
+        if (queue != null) {
+            queue.enqueue(file);
+        }
+    }
+
+    /**
+     * Queues a part of a recording, e.g. a streamed segment, under a name prefixed with the recording.
+     */
+    public void upload(final File file, final String name) {
+        if (queue != null) {
+            queue.enqueue(file, name);
+        }
+    }
+
+    /**
+     * Deletes the files of the directory as soon as none of them is queued, then the directory itself, e.g. the
+     * segments of a stream once they are joined into one video. Forgotten by the next process, the leftovers stay.
+     */
+    public void deleteWhenUploaded(final File directory) {
+        synchronized (disposableDirectories) {
+            disposableDirectories.add(directory);
+        }
+        deleteUploaded(directory);
+    }
+
+    /**
+     * Resumes the uploads suspended after too many failures.
+     */
+    public void retry() {
+        if (queue != null) {
+            queue.retry();
+        }
+    }
+
+    /**
+     * @return null if uploading is off
+     */
+    public UploadQueue getQueue() {
+        return queue;
+    }
+
+    private void deleteUploaded(final File directory) {
+        synchronized (disposableDirectories) {
+            if (!disposableDirectories.contains(directory)) {
+                return;
+            }
+
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    if ((queue == null || !queue.isQueued(file)) && !file.delete()) {
+                        Log.w(TAG, "Cannot delete " + file);
+                    }
+                }
+            }
+            final String[] left = directory.list();
+            if (left == null || left.length == 0) {
+                if (directory.exists() && !directory.delete()) {
+                    Log.w(TAG, "Cannot delete " + directory);
+                }
+                disposableDirectories.remove(directory);
+            }
+        }
+    }
+
+    private class Listener implements UploadQueue.Listener {
+        @Override
+        public void onProgress(final UploadQueue.Upload upload) {
+            Log.v(TAG, upload.getFile().getName() + ": " + upload.getWatermark() + "/" + upload.getChunkCount());
+        }
+
+        @Override
+        public void onUploaded(final UploadQueue.Upload upload) {
+            Log.i(TAG, "Uploaded " + upload.getFile() + ", " + queue.getQueuedCount() + " queued, "
+                    + queue.getPendingBytes() / 1024 + "KB pending, " + queue.getThroughput() / 1024 + "KB/s, "
+                    + queue.getRetryCount() + " retries");
+            deleteUploaded(upload.getFile().getParentFile());
+        }
+
+        @Override
+        public void onFailed(final UploadQueue.Upload upload, final IOException e, final boolean suspended) {
+            Log.w(TAG, (suspended ? "Suspended " : "Dropped ") + upload.getFile(), e);
+            if (!suspended) {
+                deleteUploaded(upload.getFile().getParentFile());
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.thousandsunny.record;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Posters of the gallery. Lookups go through a bounded in-memory LRU, then the poster {@link OpenCVRecorder} wrote
+ * beside the video, then a disk tier of frames extracted from older videos. Extraction with
+ * {@link MediaMetadataRetriever} runs on a single background thread and its result is kept in the disk tier,
+ * so every video is decoded at most once.
+ * <p/>
+ * Must be used from the main thread, callbacks are delivered on it.
+ */
+public class ThumbnailCache {
+    private static final String TAG = ThumbnailCache.class.getSimpleName();
+
+    public interface Callback {
+        void onThumbnail(File videoFile, Bitmap thumbnail);
+    }
+
+    private final LruCache<String, Bitmap> memoryCache;
+
+    private final File diskDir;
+
+    private final long maxDiskBytes;
+
+    private final int thumbnailSide;
+
+    private final Map<String, List<Callback>> pending = new HashMap<>();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, TAG);
+        }
+    });
+
+    /**
+     * @param maxMemoryBytes size of the in-memory tier in bitmap bytes
+     * @param thumbnailSide  extracted frames are scaled down to fit into this square
+     */
+    public ThumbnailCache(final File diskDir,
+                          final int maxMemoryBytes,
+                          final long maxDiskBytes,
+                          final int thumbnailSide) {
+        this.diskDir = diskDir;
+        this.maxDiskBytes = maxDiskBytes;
+        this.thumbnailSide = thumbnailSide;
+        memoryCache = new LruCache<String, Bitmap>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(final String key, final Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    /**
+     * @return the poster if it is in memory, never touches the disk
+     */
+    public Bitmap getCached(final File videoFile) {
+        return memoryCache.get(getKey(videoFile));
+    }
+
+    /**
+     * Loads the poster in the background unless it is in memory, in which case the callback is called right away.
+     */
+    public void load(final File videoFile, final Callback callback) {
+        final String key = getKey(videoFile);
+        final Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            callback.onThumbnail(videoFile, cached);
+            return;
+        }
+
+        List<Callback> callbacks = pending.get(key);
+        if (callbacks != null) {
+            callbacks.add(callback);
+            return;
+        }
+        callbacks = new ArrayList<>();
+        callbacks.add(callback);
+        pending.put(key, callbacks);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap thumbnail = loadFromDisk(videoFile, key);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (thumbnail != null) {
+                            memoryCache.put(key, thumbnail);
+                        }
+                        for (final Callback pendingCallback : pending.remove(key)) {
+                            pendingCallback.onThumbnail(videoFile, thumbnail);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        memoryCache.evictAll();
+    }
+
+    private Bitmap loadFromDisk(final File videoFile, final String key) {
+        final File posterFile = PosterFrame.getPosterFile(videoFile);
+        if (posterFile.exists()) {
+            final Bitmap poster = BitmapFactory.decodeFile(posterFile.getAbsolutePath());
+            if (poster != null) {
+                return poster;
+            }
+        }
+
+        final File diskFile = new File(diskDir, key + ".jpg");
+        if (diskFile.exists()) {
+            final Bitmap thumbnail = BitmapFactory.decodeFile(diskFile.getAbsolutePath());
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+
+        final Bitmap thumbnail = extract(videoFile);
+        if (thumbnail != null) {
+            try {
+                save(thumbnail, diskFile);
+                trimDisk();
+            } catch (IOException e) {
+                Log.w(TAG, e.getLocalizedMessage(), e);
+            }
+        }
+        return thumbnail;
+    }
+
+    private Bitmap extract(final File videoFile) {
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(videoFile.getAbsolutePath());
+            final Bitmap frame = retriever.getFrameAtTime(0, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            if (frame == null || (frame.getWidth() <= thumbnailSide && frame.getHeight() <= thumbnailSide)) {
+                return frame;
+            }
+
+            final float scale = (float) thumbnailSide / Math.max(frame.getWidth(), frame.getHeight());
+            final Bitmap scaled = Bitmap.createScaledBitmap(frame,
+                    Math.round(frame.getWidth() * scale),
+                    Math.round(frame.getHeight() * scale),
+                    true);
+            frame.recycle();
+            return scaled;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot extract a frame from " + videoFile, e);
+            return null;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    private void save(final Bitmap thumbnail, final File file) throws IOException {
+        if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+            throw new IOException("Cannot create " + diskDir);
+        }
+
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Deletes the least recently written thumbnails until the disk tier fits into its budget.
+     */
+    private void trimDisk() {
+        final File[] files = diskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (final File file : files) {
+            total += file.length();
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (final File file : files) {
+            if (total <= maxDiskBytes) {
+                break;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    /**
+     * Keyed by name and modification time so a rewritten video gets a new thumbnail.
+     */
+    private static String getKey(final File videoFile) {
+        return videoFile.getName() + "-" + videoFile.lastModified();
+    }
+}
@@ -0,0 +1,73 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+
+/**
+ * Full frame colour conversion per {@link ConversionEngine}, the setup fails if an engine is outside
+ * {@link ConversionEngines#TOLERANCE} of the reference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConversionEngineBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String previewSize;
+
+    @Param({NV21Converter.NAME, LUTConversionEngine.NAME, NativeConversionEngine.NAME})
+    public String engineName;
+
+    private byte[] frame;
+
+    private ConversionEngine engine;
+
+    private opencv_core.IplImage image;
+
+    @Setup
+    public void setUp() {
+        final int width = SyntheticFrames.parseWidth(previewSize);
+        final int height = SyntheticFrames.parseHeight(previewSize);
+        frame = SyntheticFrames.nv21(width, height, 0);
+        engine = ConversionEngines.find(engineName).create(width, height, null);
+        image = opencv_core.IplImage.create(width, height, IPL_DEPTH_8U, 4);
+
+        final opencv_core.IplImage reference = opencv_core.IplImage.create(width, height, IPL_DEPTH_8U, 4);
+        new NV21Converter(width, height, null).convert(frame, reference);
+        engine.convert(frame, image);
+        final int difference = ConversionEngines.maxDifference(reference, image);
+        reference.release();
+        if (difference > ConversionEngines.TOLERANCE) {
+            throw new IllegalStateException(engineName + " differs by " + difference);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.release();
+        image.release();
+    }
+
+    @Benchmark
+    public opencv_core.IplImage convert() {
+        engine.convert(frame, image);
+        return image;
+    }
+}
@@ -0,0 +1,82 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.FrameRecorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+
+/**
+ * Cost of {@link FFmpegFrameRecorder#record(opencv_core.IplImage)} with the settings of {@link OpenCVRecorder},
+ * for the packed BGR image of the fused path and the NV21 image of the YUV path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncoderBenchmark {
+    @Param({"120", "480"})
+    public int outputSide;
+
+    @Param({"BGRA", "NV21"})
+    public String pixelFormat;
+
+    private File outputFile;
+
+    private FFmpegFrameRecorder recorder;
+
+    private opencv_core.IplImage image;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] frame = SyntheticFrames.nv21(640, 480, 0);
+        final SquareCropTransform transform = new SquareCropTransform(640, 480, 90, outputSide);
+        if ("NV21".equals(pixelFormat)) {
+            image = opencv_core.IplImage.create(outputSide, outputSide, IPL_DEPTH_8U, 2);
+            new YUVSquareKernel(transform).process(frame, image.getByteBuffer());
+        } else {
+            image = opencv_core.IplImage.create(outputSide, outputSide, IPL_DEPTH_8U, 4);
+            new FusedBGRKernel(transform).process(frame, image.getIntBuffer());
+        }
+
+        outputFile = File.createTempFile("encoder-benchmark", ".mp4");
+        recorder = new FFmpegFrameRecorder(outputFile, outputSide, outputSide, 0);
+        recorder.setFormat("mp4");
+        recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+        recorder.setVideoOption("preset", "ultrafast");
+        recorder.setVideoBitrate(168000);
+        recorder.setFrameRate(30);
+        recorder.start();
+    }
+
+    @TearDown
+    public void tearDown() throws FrameRecorder.Exception {
+        recorder.stop();
+        recorder.release();
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public boolean record() throws FrameRecorder.Exception {
+        return recorder.record(image);
+    }
+}
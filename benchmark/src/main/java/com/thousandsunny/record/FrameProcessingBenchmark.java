@@ -0,0 +1,155 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+
+/**
+ * Per-frame cost of every stage of the recording paths, one invocation processes one preview frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameProcessingBenchmark {
+    /**
+     * Side of the master frame the renditions are downscaled from.
+     */
+    private static final int MASTER_SIDE = 480;
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String previewSize;
+
+    @Param({"0", "90", "180", "270"})
+    public int degree;
+
+    @Param({"120", "480"})
+    public int outputSide;
+
+    private byte[] frame;
+
+    private FullFrameProcessor serialProcessor;
+
+    private FullFrameProcessor parallelProcessor;
+
+    private StripeExecutor executor;
+
+    private FusedBGRKernel fusedKernel;
+
+    private YUVSquareKernel yuvKernel;
+
+    private opencv_core.IplImage fusedImage;
+
+    private opencv_core.IplImage yuvImage;
+
+    private YUVSquareKernel masterKernel;
+
+    private byte[] masterFrame;
+
+    private ByteBuffer masterBuffer;
+
+    private NV21Scaler scaler;
+
+    @Setup
+    public void setUp() {
+        final int width = SyntheticFrames.parseWidth(previewSize);
+        final int height = SyntheticFrames.parseHeight(previewSize);
+        frame = SyntheticFrames.nv21(width, height, 0);
+
+        executor = new StripeExecutor(StripeExecutor.AUTO);
+        serialProcessor = new FullFrameProcessor(width, height, degree, null);
+        parallelProcessor = new FullFrameProcessor(width, height, degree, executor);
+        serialProcessor.convert(frame);
+        serialProcessor.crop();
+
+        final SquareCropTransform transform = new SquareCropTransform(width, height, degree, outputSide);
+        fusedKernel = new FusedBGRKernel(transform);
+        yuvKernel = new YUVSquareKernel(transform);
+        fusedImage = opencv_core.IplImage.create(outputSide, outputSide, IPL_DEPTH_8U, 4);
+        yuvImage = opencv_core.IplImage.create(outputSide, outputSide, IPL_DEPTH_8U, 2);
+
+        masterKernel = new YUVSquareKernel(new SquareCropTransform(width, height, degree, MASTER_SIDE));
+        masterFrame = new byte[masterKernel.getFrameSize()];
+        masterBuffer = ByteBuffer.wrap(masterFrame);
+        masterKernel.process(frame, masterBuffer);
+        scaler = new NV21Scaler(MASTER_SIDE, outputSide);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public void fullFrameConvert() {
+        serialProcessor.convert(frame);
+    }
+
+    @Benchmark
+    public void fullFrameConvertParallel() {
+        parallelProcessor.convert(frame);
+    }
+
+    @Benchmark
+    public void fullFrameCrop() {
+        serialProcessor.crop();
+    }
+
+    @Benchmark
+    public void fullFrameRotate() {
+        serialProcessor.rotate();
+    }
+
+    @Benchmark
+    public opencv_core.IplImage fullFrame() {
+        return serialProcessor.process(frame);
+    }
+
+    @Benchmark
+    public opencv_core.IplImage fused() {
+        fusedKernel.process(frame, fusedImage.getIntBuffer());
+        return fusedImage;
+    }
+
+    @Benchmark
+    public opencv_core.IplImage yuv() {
+        yuvKernel.process(frame, yuvImage.getByteBuffer());
+        return yuvImage;
+    }
+
+    /**
+     * Downscaling the shared master frame, what a rendition costs on top of the single crop and rotate pass.
+     */
+    @Benchmark
+    public opencv_core.IplImage yuvDownscale() {
+        scaler.scale(masterFrame, yuvImage.getByteBuffer());
+        return yuvImage;
+    }
+
+    /**
+     * One pass at the master side plus the downscale, compare with {@link #yuv()} at both sides.
+     */
+    @Benchmark
+    public opencv_core.IplImage yuvFanOut() {
+        masterKernel.process(frame, masterBuffer);
+        scaler.scale(masterFrame, yuvImage.getByteBuffer());
+        return yuvImage;
+    }
+}
@@ -0,0 +1,90 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+
+/**
+ * Steady-state cost of {@link ReplayEncoder}: {@code encode} covers encoding plus the packet ring and shows the
+ * allocation rate per frame with {@code -prof gc}, {@code flush} is the latency of writing a full window.
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InstantReplayBenchmark {
+    private static final long FRAME_INTERVAL_MICROS = 1000000 / 30;
+
+    @Param({"120", "480"})
+    public int outputSide;
+
+    @Param({"10"})
+    public int windowSeconds;
+
+    private ReplayEncoder encoder;
+
+    private opencv_core.IplImage image;
+
+    private File outputFile;
+
+    private long timestamp;
+
+    @Setup
+    public void setUp() throws EncoderException, IOException {
+        final byte[] frame = SyntheticFrames.nv21(640, 480, 0);
+        image = opencv_core.IplImage.create(outputSide, outputSide, IPL_DEPTH_8U, 2);
+        new YUVSquareKernel(new SquareCropTransform(640, 480, 90, outputSide)).process(frame, image.getByteBuffer());
+
+        final EncoderSettings settings = new EncoderSettings(false, 30, "ultrafast", outputSide, 168000);
+        encoder = new ReplayEncoder(4 * 1024 * 1024, windowSeconds * 1000000L, settings.getFrameRate());
+        encoder.start(null, settings);
+        // fill the window so every flush writes all of it
+        for (int i = 0; i < (windowSeconds + 1) * 30; ++i) {
+            encodeNext();
+        }
+
+        outputFile = File.createTempFile("instant-replay-benchmark", ".mp4");
+    }
+
+    @TearDown
+    public void tearDown() throws EncoderException {
+        encoder.stop();
+        encoder.release();
+        outputFile.delete();
+    }
+
+    private boolean encodeNext() throws EncoderException {
+        timestamp += FRAME_INTERVAL_MICROS;
+        return encoder.encode(image, timestamp);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean encode() throws EncoderException {
+        return encodeNext();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void flush() throws IOException {
+        encoder.flush(outputFile);
+    }
+}
@@ -0,0 +1,33 @@
+package com.thousandsunny.record;
+
+import java.util.Random;
+
+public final class SyntheticFrames {
+    private SyntheticFrames() {
+    }
+
+    /**
+     * @return an NV21 frame with a luma gradient, some noise and varying chroma, so nothing is trivially constant
+     */
+    public static byte[] nv21(final int width, final int height, final long seed) {
+        final Random random = new Random(seed);
+        final byte[] frame = new byte[width * height * 3 / 2];
+        for (int i = 0; i < height; ++i) {
+            for (int j = 0; j < width; ++j) {
+                frame[i * width + j] = (byte) (((i + j) & 0xff) ^ random.nextInt(16));
+            }
+        }
+        for (int i = width * height; i < frame.length; ++i) {
+            frame[i] = (byte) (128 + random.nextInt(64) - 32);
+        }
+        return frame;
+    }
+
+    public static int parseWidth(final String size) {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+
+    public static int parseHeight(final String size) {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+}
@@ -0,0 +1,97 @@
+package com.thousandsunny.record;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Reads an {@link AudioSource} on a dedicated high-priority thread into an {@link AudioSampleRing}. Buffers are
+ * stamped with {@link System#nanoTime()} when their last sample arrives minus their duration, the clock the camera
+ * frames are stamped with, so both tracks share one timeline.
+ */
+public class AudioCapture {
+    private static final Logger LOGGER = Logger.getLogger(AudioCapture.class.getSimpleName());
+
+    private final AudioSource source;
+
+    private final AudioSampleRing ring;
+
+    private final Thread thread;
+
+    /**
+     * Read target while the ring is full, the samples are discarded.
+     */
+    private final short[] overflow;
+
+    private volatile boolean running;
+
+    /**
+     * @param framesPerBuffer samples per channel of one ring buffer
+     */
+    public AudioCapture(final AudioSource source, final int bufferCount, final int framesPerBuffer) {
+        this.source = source;
+        final int samplesPerBuffer = framesPerBuffer * source.getChannelCount();
+        ring = new AudioSampleRing(bufferCount, samplesPerBuffer);
+        overflow = new short[samplesPerBuffer];
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                capture();
+            }
+        }, AudioCapture.class.getSimpleName());
+        // maps to an urgent nice value on Android, a late read loses samples for good
+        thread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    public AudioSampleRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Acquires the source, nothing is captured until {@link #start()}.
+     */
+    public void open() throws IOException {
+        source.open();
+    }
+
+    public void start() throws IOException {
+        source.start();
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops the source and joins the capture thread, the buffers already captured stay in the ring. Only releases
+     * the source if the capture has not been started.
+     */
+    public void stop() {
+        if (running) {
+            running = false;
+            source.stop();
+            try {
+                thread.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        source.release();
+        LOGGER.info("captured=" + ring.getPublishedCount() + ", dropped=" + ring.getDroppedCount());
+    }
+
+    private void capture() {
+        final int sampleRate = source.getSampleRate();
+        final int channelCount = source.getChannelCount();
+        while (running) {
+            final short[] buffer = ring.claim();
+            final short[] target = buffer != null ? buffer : overflow;
+            final int length = source.read(target, 0, target.length);
+            final long now = System.nanoTime();
+            if (length < 0) {
+                LOGGER.warning("Audio read failed: " + length);
+                break;
+            }
+            if (length > 0 && buffer != null) {
+                ring.publish(length, now - length / channelCount * 1000000000L / sampleRate);
+            }
+        }
+    }
+}
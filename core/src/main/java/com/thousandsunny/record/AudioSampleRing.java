@@ -0,0 +1,126 @@
+package com.thousandsunny.record;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring of preallocated sample buffers between exactly one producer, the audio capture thread, and one
+ * consumer, the recording thread. Each side only writes its own counter and publishes it with an ordered store,
+ * nothing blocks and nothing is allocated. When the ring is full the producer drops the new buffer.
+ */
+public class AudioSampleRing {
+    private final short[][] buffers;
+
+    private final int[] lengths;
+
+    private final long[] timestamps;
+
+    /**
+     * Next buffer to read, only written by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Next buffer to write, only written by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * The producer's last view of {@link #head}, saves reading the consumer's cache line on every buffer.
+     */
+    private long cachedHead;
+
+    /**
+     * @param samplesPerBuffer interleaved samples of one buffer
+     */
+    public AudioSampleRing(final int capacity, final int samplesPerBuffer) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2:" + capacity);
+        }
+
+        buffers = new short[capacity][samplesPerBuffer];
+        lengths = new int[capacity];
+        timestamps = new long[capacity];
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return the buffer to fill before {@link #publish(int, long)}, null if the ring is full
+     */
+    public short[] claim() {
+        final long t = tail.get();
+        if (t - cachedHead >= buffers.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= buffers.length) {
+                droppedCount.incrementAndGet();
+                return null;
+            }
+        }
+        return buffers[index(t)];
+    }
+
+    /**
+     * Producer side, hands the claimed buffer to the consumer.
+     *
+     * @param timestamp capture time of the first sample in {@link System#nanoTime()} nanoseconds
+     */
+    public void publish(final int length, final long timestamp) {
+        final long t = tail.get();
+        lengths[index(t)] = length;
+        timestamps[index(t)] = timestamp;
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return the oldest published buffer, null if there is none; valid until {@link #release()}
+     */
+    public short[] peek() {
+        final long h = head.get();
+        return h == tail.get() ? null : buffers[index(h)];
+    }
+
+    /**
+     * Consumer side, number of samples of the buffer returned by {@link #peek()}.
+     */
+    public int getLength() {
+        return lengths[index(head.get())];
+    }
+
+    /**
+     * Consumer side, capture time of the buffer returned by {@link #peek()}.
+     */
+    public long getTimestamp() {
+        return timestamps[index(head.get())];
+    }
+
+    /**
+     * Consumer side, hands the buffer returned by {@link #peek()} back to the producer.
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+
+    public int getCapacity() {
+        return buffers.length;
+    }
+
+    public int getSamplesPerBuffer() {
+        return buffers[0].length;
+    }
+
+    public long getPublishedCount() {
+        return tail.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private int index(final long sequence) {
+        return (int) (sequence % buffers.length);
+    }
+}
@@ -0,0 +1,39 @@
+package com.thousandsunny.record;
+
+import java.io.IOException;
+
+/**
+ * 16-bit PCM input read by {@link AudioCapture} on its own thread: {@link #open()}, {@link #start()}, any number of
+ * {@link #read(short[], int, int)}, then {@link #stop()} from another thread and {@link #release()}. A source which
+ * has been opened but never started is only released.
+ */
+public interface AudioSource {
+    int getSampleRate();
+
+    int getChannelCount();
+
+    /**
+     * Acquires the input without capturing anything yet, so it can be done ahead of recording.
+     */
+    void open() throws IOException;
+
+    /**
+     * Starts capturing, the microphone is live from here on.
+     */
+    void start() throws IOException;
+
+    /**
+     * Blocks until samples are available.
+     *
+     * @param length interleaved samples to read at most, a multiple of the channel count
+     * @return interleaved samples read, 0 once stopped, negative on error
+     */
+    int read(short[] buffer, int offset, int length);
+
+    /**
+     * Unblocks a pending {@link #read(short[], int, int)}.
+     */
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,30 @@
+package com.thousandsunny.record;
+
+public final class ColorConversion {
+    private ColorConversion() {
+    }
+
+    /**
+     * Converts one NV21 sample to the packed int layout written into the 4-channel recorder images.
+     * Uses the same fixed-point coefficients as the original full-frame loop so the output is bit-identical.
+     */
+    public static int toPackedBGR(int y, final int v, final int u) {
+        y = y < 16 ? 16 : y;
+
+        final int a0 = 1192 * (y - 16);
+        final int a1 = 1634 * (v - 128);
+        final int a2 = 832 * (v - 128);
+        final int a3 = 400 * (u - 128);
+        final int a4 = 2066 * (u - 128);
+
+        int r = (a0 + a1) >> 10;
+        int g = (a0 - a2 - a3) >> 10;
+        int b = (a0 + a4) >> 10;
+
+        r = r < 0 ? 0 : (r > 255 ? 255 : r);
+        g = g < 0 ? 0 : (g > 255 ? 255 : g);
+        b = b < 0 ? 0 : (b > 255 ? 255 : b);
+
+        return 0xff000000 | (b << 16) | (g << 8) | r;
+    }
+}
@@ -0,0 +1,28 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+
+/**
+ * Converts a full NV21 preview frame to the packed 4-channel layout of {@link ColorConversion#toPackedBGR}.
+ * An engine is created for one preview size and used by a single recording thread.
+ * {@link ConversionEngines#TOLERANCE} bounds how far an engine may differ from the {@link NV21Converter} reference.
+ */
+public interface ConversionEngine {
+    interface Factory {
+        String getName();
+
+        /**
+         * @param executor null to convert on the calling thread, engines that cannot split a frame ignore it
+         */
+        ConversionEngine create(int width, int height, StripeExecutor executor);
+    }
+
+    /**
+     * @param bgr a 4-channel image of the preview size
+     */
+    void convert(byte[] nv21, opencv_core.IplImage bgr);
+
+    void release();
+
+    String getName();
+}
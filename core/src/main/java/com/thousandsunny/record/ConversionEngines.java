@@ -0,0 +1,151 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+
+public final class ConversionEngines {
+    private static final Logger LOGGER = Logger.getLogger(ConversionEngines.class.getSimpleName());
+
+    /**
+     * Largest difference of any channel of any pixel to the {@link NV21Converter} reference an engine may have.
+     * The lookup table engine is exact, OpenCV rounds its fixed-point products instead of truncating them and
+     * differs by up to 2.
+     */
+    public static final int TOLERANCE = 2;
+
+    public static final List<ConversionEngine.Factory> FACTORIES = Collections.unmodifiableList(Arrays.asList(
+            NV21Converter.FACTORY,
+            LUTConversionEngine.FACTORY,
+            NativeConversionEngine.FACTORY));
+
+    private static final int WARMUP_FRAMES = 3;
+
+    private static final int MEASURED_FRAMES = 10;
+
+    private ConversionEngines() {
+    }
+
+    /**
+     * @return null if there is no engine of that name
+     */
+    public static ConversionEngine.Factory find(final String name) {
+        for (final ConversionEngine.Factory factory : FACTORIES) {
+            if (factory.getName().equals(name)) {
+                return factory;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs every engine on a frame of the preview size, rejects those outside {@link #TOLERANCE} or failing to
+     * load and keeps the fastest. Takes a few hundred milliseconds at most, callers cache the result per device
+     * and preview size.
+     *
+     * @param executor the stripes the recording converts with, null for the calling thread; the engines do not scale
+     *                 alike across cores so the winner depends on it
+     * @return the reference if no other engine is both faster and accurate enough
+     */
+    public static ConversionEngine.Factory calibrate(final List<ConversionEngine.Factory> factories,
+                                                     final int width,
+                                                     final int height,
+                                                     final StripeExecutor executor) {
+        // random samples cover the clamping at both ends of every channel
+        final byte[] frame = new byte[width * height * 3 / 2];
+        new Random(width * 31 + height).nextBytes(frame);
+
+        final opencv_core.IplImage reference = opencv_core.IplImage.create(width, height, IPL_DEPTH_8U, 4);
+        final opencv_core.IplImage image = opencv_core.IplImage.create(width, height, IPL_DEPTH_8U, 4);
+        try {
+            final ConversionEngine referenceEngine = NV21Converter.FACTORY.create(width, height, null);
+            referenceEngine.convert(frame, reference);
+            referenceEngine.release();
+
+            ConversionEngine.Factory fastest = NV21Converter.FACTORY;
+            long fastestNanos = Long.MAX_VALUE;
+            for (final ConversionEngine.Factory factory : factories) {
+                final long nanos = measure(factory, frame, width, height, executor, reference, image);
+                if (nanos < fastestNanos) {
+                    fastest = factory;
+                    fastestNanos = nanos;
+                }
+            }
+            LOGGER.info("Fastest conversion for " + width + "x" + height + ": " + fastest.getName());
+            return fastest;
+        } finally {
+            reference.release();
+            image.release();
+        }
+    }
+
+    /**
+     * @return the average time per frame, {@link Long#MAX_VALUE} if the engine is unusable
+     */
+    private static long measure(final ConversionEngine.Factory factory,
+                                final byte[] frame,
+                                final int width,
+                                final int height,
+                                final StripeExecutor executor,
+                                final opencv_core.IplImage reference,
+                                final opencv_core.IplImage image) {
+        final ConversionEngine engine;
+        try {
+            engine = factory.create(width, height, executor);
+        } catch (final RuntimeException | LinkageError e) {
+            LOGGER.log(Level.WARNING, "Conversion " + factory.getName() + " is not available", e);
+            return Long.MAX_VALUE;
+        }
+
+        try {
+            engine.convert(frame, image);
+            final int difference = maxDifference(reference, image);
+            if (difference > TOLERANCE) {
+                LOGGER.warning("Conversion " + factory.getName() + " differs by " + difference);
+                return Long.MAX_VALUE;
+            }
+
+            for (int i = 0; i < WARMUP_FRAMES; ++i) {
+                engine.convert(frame, image);
+            }
+            final long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_FRAMES; ++i) {
+                engine.convert(frame, image);
+            }
+            final long nanos = (System.nanoTime() - start) / MEASURED_FRAMES;
+            LOGGER.info("Conversion " + factory.getName() + ": " + nanos / 1000 + "us, difference " + difference);
+            return nanos;
+        } catch (final RuntimeException | LinkageError e) {
+            LOGGER.log(Level.WARNING, "Conversion " + factory.getName() + " failed", e);
+            return Long.MAX_VALUE;
+        } finally {
+            engine.release();
+        }
+    }
+
+    /**
+     * @return the largest difference of any channel between two 4-channel images of the same size
+     */
+    public static int maxDifference(final opencv_core.IplImage expected, final opencv_core.IplImage actual) {
+        final IntBuffer expectedPixels = expected.getIntBuffer();
+        final IntBuffer actualPixels = actual.getIntBuffer();
+        final int count = expected.width() * expected.height();
+        int max = 0;
+        for (int i = 0; i < count; ++i) {
+            final int e = expectedPixels.get(i);
+            final int a = actualPixels.get(i);
+            for (int shift = 0; shift < 32; shift += 8) {
+                max = Math.max(max, Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff)));
+            }
+        }
+        return max;
+    }
+}
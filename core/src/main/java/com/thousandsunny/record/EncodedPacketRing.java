@@ -0,0 +1,239 @@
+package com.thousandsunny.record;
+
+/**
+ * The most recent {@code windowMicros} of encoded video in a preallocated byte array. Packets are evicted a whole
+ * GOP at a time, so the ring always starts with a key frame and can be muxed as it is; a packet that does not fit
+ * is dropped along with everything up to the next key frame. Appending never allocates.
+ * <p/>
+ * Packet indices used by the getters are relative to the oldest packet and only stable while nothing is appended,
+ * readers work on a {@link #copyTo(EncodedPacketRing) copy}.
+ */
+public class EncodedPacketRing {
+    private final byte[] data;
+
+    private final int maxPackets;
+
+    private final long windowMicros;
+
+    private final int[] offsets;
+
+    private final int[] lengths;
+
+    private final long[] presentationTimes;
+
+    private final long[] decodeTimes;
+
+    private final boolean[] keyFrames;
+
+    private int head;
+
+    private int count;
+
+    private boolean waitForKeyFrame = true;
+
+    private long evictedPacketCount;
+
+    private long droppedPacketCount;
+
+    /**
+     * @param maxBytes     encoded bytes kept at most, allocated up front
+     * @param maxPackets   packets kept at most, about {@code windowSeconds * frameRate} plus a GOP
+     * @param windowMicros packets are evicted once the following GOP alone covers the window
+     */
+    public EncodedPacketRing(final int maxBytes, final int maxPackets, final long windowMicros) {
+        data = new byte[maxBytes];
+        this.maxPackets = maxPackets;
+        this.windowMicros = windowMicros;
+        offsets = new int[maxPackets];
+        lengths = new int[maxPackets];
+        presentationTimes = new long[maxPackets];
+        decodeTimes = new long[maxPackets];
+        keyFrames = new boolean[maxPackets];
+    }
+
+    /**
+     * @return false if the packet has been dropped, because it is larger than the ring or does not follow a key frame
+     */
+    public synchronized boolean append(final byte[] packet,
+                                       final int packetOffset,
+                                       final int length,
+                                       final long presentationTimeMicros,
+                                       final long decodeTimeMicros,
+                                       final boolean keyFrame) {
+        if (keyFrame) {
+            waitForKeyFrame = false;
+        }
+        if (waitForKeyFrame || length <= 0 || length > data.length) {
+            drop();
+            return false;
+        }
+
+        // keep at least the window: a GOP goes once the next one starts early enough
+        while (count > 0) {
+            final int nextGop = findNextGop();
+            if (nextGop < 0 || presentationTimes[index(nextGop)] > presentationTimeMicros - windowMicros) {
+                break;
+            }
+            evict(nextGop);
+        }
+
+        int offset;
+        while ((offset = findSpace(length)) < 0 || count == maxPackets) {
+            final int nextGop = findNextGop();
+            evict(nextGop < 0 ? count : nextGop);
+        }
+        if (count == 0 && !keyFrame) {
+            drop();
+            return false;
+        }
+
+        System.arraycopy(packet, packetOffset, data, offset, length);
+        final int index = index(count);
+        offsets[index] = offset;
+        lengths[index] = length;
+        presentationTimes[index] = presentationTimeMicros;
+        decodeTimes[index] = decodeTimeMicros;
+        keyFrames[index] = keyFrame;
+        count++;
+        return true;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+        waitForKeyFrame = true;
+    }
+
+    /**
+     * Replaces the content of {@code target}, which must be at least as large as this ring.
+     */
+    public synchronized void copyTo(final EncodedPacketRing target) {
+        if (target.data.length < data.length || target.maxPackets < maxPackets) {
+            throw new IllegalArgumentException("Target ring is smaller");
+        }
+
+        synchronized (target) {
+            target.head = 0;
+            target.count = 0;
+            int offset = 0;
+            for (int i = 0; i < count; ++i) {
+                final int index = index(i);
+                System.arraycopy(data, offsets[index], target.data, offset, lengths[index]);
+                target.offsets[i] = offset;
+                target.lengths[i] = lengths[index];
+                target.presentationTimes[i] = presentationTimes[index];
+                target.decodeTimes[i] = decodeTimes[index];
+                target.keyFrames[i] = keyFrames[index];
+                offset += lengths[index];
+            }
+            target.count = count;
+            target.waitForKeyFrame = count == 0;
+        }
+    }
+
+    public synchronized int getPacketCount() {
+        return count;
+    }
+
+    public synchronized int getByteCount() {
+        int bytes = 0;
+        for (int i = 0; i < count; ++i) {
+            bytes += lengths[index(i)];
+        }
+        return bytes;
+    }
+
+    public synchronized long getDurationMicros() {
+        return count == 0 ? 0 : presentationTimes[index(count - 1)] - presentationTimes[head];
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    public long getWindowMicros() {
+        return windowMicros;
+    }
+
+    public synchronized long getEvictedPacketCount() {
+        return evictedPacketCount;
+    }
+
+    public synchronized long getDroppedPacketCount() {
+        return droppedPacketCount;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public synchronized int getOffset(final int packet) {
+        return offsets[index(packet)];
+    }
+
+    public synchronized int getLength(final int packet) {
+        return lengths[index(packet)];
+    }
+
+    public synchronized long getPresentationTime(final int packet) {
+        return presentationTimes[index(packet)];
+    }
+
+    public synchronized long getDecodeTime(final int packet) {
+        return decodeTimes[index(packet)];
+    }
+
+    public synchronized boolean isKeyFrame(final int packet) {
+        return keyFrames[index(packet)];
+    }
+
+    private int index(final int packet) {
+        return (head + packet) % maxPackets;
+    }
+
+    /**
+     * @return the position of the second key frame, -1 if the ring holds a single GOP
+     */
+    private int findNextGop() {
+        for (int i = 1; i < count; ++i) {
+            if (keyFrames[index(i)]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void evict(final int packets) {
+        head = index(packets);
+        count -= packets;
+        evictedPacketCount += packets;
+        if (count == 0) {
+            head = 0;
+        }
+    }
+
+    /**
+     * @return where a packet of {@code length} bytes fits after the newest packet, -1 if it does not
+     */
+    private int findSpace(final int length) {
+        if (count == 0) {
+            return 0;
+        }
+
+        final int headOffset = offsets[head];
+        final int tail = index(count - 1);
+        final int writeOffset = offsets[tail] + lengths[tail];
+        if (offsets[tail] >= headOffset) {
+            if (data.length - writeOffset >= length) {
+                return writeOffset;
+            }
+            return length <= headOffset ? 0 : -1;
+        }
+        return writeOffset + length <= headOffset ? writeOffset : -1;
+    }
+
+    private void drop() {
+        droppedPacketCount++;
+        waitForKeyFrame = true;
+    }
+}
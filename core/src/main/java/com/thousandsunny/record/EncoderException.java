@@ -0,0 +1,17 @@
+package com.thousandsunny.record;
+
+public class EncoderException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public EncoderException(final String message) {
+        super(message);
+    }
+
+    public EncoderException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+
+    public EncoderException(final Throwable cause) {
+        super(cause);
+    }
+}
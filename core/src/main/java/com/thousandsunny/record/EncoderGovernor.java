@@ -0,0 +1,163 @@
+package com.thousandsunny.record;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the recorder real-time by walking a ladder of {@link EncoderSettings}, ordered from the most expensive to
+ * the cheapest. Every {@code windowSize} frames the average time the recording thread spent per frame and the
+ * deepest frame queue seen are compared with the frame budget of the current rung: the governor steps down as soon
+ * as a window is over budget and steps back up after {@code stepUpWindows} consecutive windows with headroom.
+ * <p/>
+ * Frame skipping and frame rate are applied by the recorder right away. Rungs which need a new encoder
+ * (see {@link EncoderSettings#requiresRestart(EncoderSettings)}) take effect on the next recording, which should
+ * start at {@link #getCurrentLevel()}.
+ */
+public class EncoderGovernor {
+    private static final Logger LOGGER = Logger.getLogger(EncoderGovernor.class.getSimpleName());
+
+    public interface Listener {
+        void onLevelChanged(EncoderGovernor governor, int fromLevel, int toLevel, String reason);
+    }
+
+    private static final double STEP_DOWN_LOAD = 0.85;
+
+    private static final double STEP_UP_LOAD = 0.5;
+
+    private final List<EncoderSettings> ladder;
+
+    private final int windowSize;
+
+    private final int stepUpWindows;
+
+    private Listener listener;
+
+    private int level;
+
+    private int windowFrames;
+
+    private long windowBusyMicros;
+
+    private int windowMaxQueueDepth;
+
+    private int headroomWindows;
+
+    public EncoderGovernor(final List<EncoderSettings> ladder,
+                           final int startLevel,
+                           final int windowSize,
+                           final int stepUpWindows) {
+        if (ladder.isEmpty()) {
+            throw new IllegalArgumentException("Empty ladder");
+        }
+
+        this.ladder = Collections.unmodifiableList(new ArrayList<>(ladder));
+        this.windowSize = windowSize;
+        this.stepUpWindows = stepUpWindows;
+        level = Math.max(0, Math.min(ladder.size() - 1, startLevel));
+    }
+
+    /**
+     * @return the ladder used by the app: one quality rung above today's settings, then frame skipping,
+     * lower frame rates and finally a cheaper encoder configuration
+     */
+    public static List<EncoderSettings> createDefaultLadder(final int outputSide) {
+        final int reducedSide = (outputSide * 4 / 5) & ~1;
+        final List<EncoderSettings> ladder = new ArrayList<>();
+        ladder.add(new EncoderSettings(false, 30, "superfast", outputSide, 168000));
+        ladder.add(new EncoderSettings(false, 30, "ultrafast", outputSide, 168000));
+        ladder.add(new EncoderSettings(true, 30, "ultrafast", outputSide, 168000));
+        ladder.add(new EncoderSettings(true, 24, "ultrafast", outputSide, 168000));
+        ladder.add(new EncoderSettings(true, 20, "ultrafast", outputSide, 168000));
+        ladder.add(new EncoderSettings(true, 15, "ultrafast", outputSide, 168000));
+        ladder.add(new EncoderSettings(true, 15, "ultrafast", outputSide, 128000));
+        ladder.add(new EncoderSettings(true, 15, "ultrafast", reducedSide, 100000));
+        return ladder;
+    }
+
+    public synchronized void setListener(final Listener listener) {
+        this.listener = listener;
+    }
+
+    public List<EncoderSettings> getLadder() {
+        return ladder;
+    }
+
+    public synchronized int getCurrentLevel() {
+        return level;
+    }
+
+    public synchronized EncoderSettings getCurrent() {
+        return ladder.get(level);
+    }
+
+    /**
+     * Called by the recording thread after every recorded frame.
+     *
+     * @param busyMicros    time the recording thread spent on the frame, conversion and encoding
+     * @param queueDepth    frames waiting behind it
+     * @param queueCapacity 0 when recording synchronously
+     */
+    public synchronized void onFrameRecorded(final long busyMicros, final int queueDepth, final int queueCapacity) {
+        windowFrames++;
+        windowBusyMicros += busyMicros;
+        windowMaxQueueDepth = Math.max(windowMaxQueueDepth, queueDepth);
+        if (windowFrames < windowSize) {
+            return;
+        }
+
+        final long averageMicros = windowBusyMicros / windowFrames;
+        final int maxQueueDepth = windowMaxQueueDepth;
+        windowFrames = 0;
+        windowBusyMicros = 0;
+        windowMaxQueueDepth = 0;
+
+        final long budgetMicros = budgetMicros(ladder.get(level));
+        final boolean queueFull = queueCapacity > 0 && maxQueueDepth >= queueCapacity;
+        if ((averageMicros > budgetMicros * STEP_DOWN_LOAD || queueFull) && level < ladder.size() - 1) {
+            headroomWindows = 0;
+            changeLevel(level + 1, averageMicros, budgetMicros, maxQueueDepth, queueCapacity);
+            return;
+        }
+
+        if (level > 0
+                && averageMicros < budgetMicros(ladder.get(level - 1)) * STEP_UP_LOAD
+                && maxQueueDepth <= 1) {
+            if (++headroomWindows >= stepUpWindows) {
+                headroomWindows = 0;
+                changeLevel(level - 1, averageMicros, budgetMicros, maxQueueDepth, queueCapacity);
+            }
+        } else {
+            headroomWindows = 0;
+        }
+    }
+
+    private void changeLevel(final int newLevel,
+                             final long averageMicros,
+                             final long budgetMicros,
+                             final int maxQueueDepth,
+                             final int queueCapacity) {
+        final int oldLevel = level;
+        level = newLevel;
+
+        final EncoderSettings from = ladder.get(oldLevel);
+        final EncoderSettings to = ladder.get(newLevel);
+        final String reason = (newLevel > oldLevel ? "step down" : "step up")
+                + " " + oldLevel + "->" + newLevel
+                + " (" + from + " -> " + to + ")"
+                + ": avgFrame=" + averageMicros + "us"
+                + ", budget=" + budgetMicros + "us"
+                + ", maxQueue=" + maxQueueDepth + "/" + queueCapacity
+                + (to.requiresRestart(from) ? ", applies to the next recording" : "");
+        LOGGER.info(reason);
+
+        if (listener != null) {
+            listener.onLevelChanged(this, oldLevel, newLevel, reason);
+        }
+    }
+
+    private static long budgetMicros(final EncoderSettings settings) {
+        return (long) (1000000 / settings.getFrameRate());
+    }
+}
@@ -0,0 +1,68 @@
+package com.thousandsunny.record;
+
+/**
+ * One rung of the {@link EncoderGovernor} ladder.
+ */
+public class EncoderSettings {
+    private final boolean skipLateFrames;
+
+    private final double frameRate;
+
+    private final String preset;
+
+    private final int outputSide;
+
+    private final int videoBitrate;
+
+    /**
+     * @param skipLateFrames drop a queued frame when a newer one is already waiting behind it
+     * @param frameRate      frames per second actually handed to the encoder, the camera may deliver more
+     */
+    public EncoderSettings(final boolean skipLateFrames,
+                           final double frameRate,
+                           final String preset,
+                           final int outputSide,
+                           final int videoBitrate) {
+        this.skipLateFrames = skipLateFrames;
+        this.frameRate = frameRate;
+        this.preset = preset;
+        this.outputSide = outputSide;
+        this.videoBitrate = videoBitrate;
+    }
+
+    public boolean isSkipLateFrames() {
+        return skipLateFrames;
+    }
+
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    public String getPreset() {
+        return preset;
+    }
+
+    public int getOutputSide() {
+        return outputSide;
+    }
+
+    public int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    /**
+     * @return true if switching between the two settings needs a new encoder, frame skipping and frame rate
+     * are applied in front of the encoder and can change at any time
+     */
+    public boolean requiresRestart(final EncoderSettings other) {
+        return !preset.equals(other.preset)
+                || outputSide != other.outputSide
+                || videoBitrate != other.videoBitrate;
+    }
+
+    @Override
+    public String toString() {
+        return preset + "/" + frameRate + "fps/" + outputSide + "px/" + (videoBitrate / 1000) + "kbps"
+                + (skipLateFrames ? "/skip" : "");
+    }
+}
@@ -0,0 +1,167 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.File;
+import java.nio.ShortBuffer;
+
+/**
+ * Software x264 through javacv; works on the device and on a desktop JVM with the javacpp presets. With an audio
+ * format the video is muxed with an AAC track.
+ */
+public class FFmpegVideoEncoder implements VideoEncoder {
+    public static final String NAME = "ffmpeg";
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public VideoEncoder create() {
+            return new FFmpegVideoEncoder();
+        }
+    };
+
+    private static final int AUDIO_BITRATE = 64000;
+
+    /**
+     * Audio is resynchronised to its timestamps once it is further off, by inserting silence or dropping samples.
+     */
+    private static final int MAX_AUDIO_DRIFT_MILLIS = 50;
+
+    private FFmpegFrameRecorder recorder;
+
+    private int audioSampleRate;
+
+    private int audioChannelCount;
+
+    /**
+     * Samples per channel written so far.
+     */
+    private long audioFrameCount;
+
+    private short[] silence;
+
+    @Override
+    public boolean supportsAudio() {
+        return true;
+    }
+
+    @Override
+    public void setAudioFormat(final int sampleRate, final int channelCount) {
+        audioSampleRate = sampleRate;
+        audioChannelCount = channelCount;
+    }
+
+    @Override
+    public void start(final File outputFile, final EncoderSettings settings) throws EncoderException {
+        final int outputSide = settings.getOutputSide();
+        recorder = new FFmpegFrameRecorder(outputFile, outputSide, outputSide, audioChannelCount);
+        recorder.setFormat("mp4");
+        if (audioChannelCount > 0) {
+            recorder.setSampleRate(audioSampleRate);
+            recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+            recorder.setAudioBitrate(AUDIO_BITRATE);
+            audioFrameCount = 0;
+            silence = new short[audioSampleRate / 100 * audioChannelCount];
+        }
+        recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+        recorder.setVideoOption("preset", settings.getPreset());
+        recorder.setVideoBitrate(settings.getVideoBitrate());
+        recorder.setFrameRate(settings.getFrameRate());
+        try {
+            recorder.start();
+        } catch (final FrameRecorder.Exception e) {
+            throw new EncoderException(e);
+        }
+    }
+
+    @Override
+    public boolean encode(final opencv_core.IplImage image, final long timestampMicros) throws EncoderException {
+        final boolean ahead = timestampMicros > recorder.getTimestamp();
+        if (ahead) {
+            recorder.setTimestamp(timestampMicros);
+        }
+        try {
+            recorder.record(image);
+        } catch (final FrameRecorder.Exception e) {
+            throw new EncoderException(e);
+        }
+        return ahead;
+    }
+
+    @Override
+    public void encodeAudio(final short[] samples,
+                            final int length,
+                            final long timestampMicros) throws EncoderException {
+        if (audioChannelCount == 0) {
+            throw new EncoderException("No audio track");
+        }
+
+        int offset = 0;
+        int frames = length / audioChannelCount;
+        final long drift = timestampMicros * audioSampleRate / 1000000 - audioFrameCount;
+        final long maxDrift = audioSampleRate * MAX_AUDIO_DRIFT_MILLIS / 1000;
+        if (drift > maxDrift) {
+            // the capture lost samples, keep the following ones in sync with the video
+            long missing = drift;
+            while (missing > 0) {
+                final int silentFrames = (int) Math.min(missing, silence.length / audioChannelCount);
+                recordSamples(silence, 0, silentFrames);
+                missing -= silentFrames;
+            }
+        } else if (drift < -maxDrift) {
+            final int overlap = (int) Math.min(frames, -drift);
+            offset = overlap * audioChannelCount;
+            frames -= overlap;
+        }
+        if (frames > 0) {
+            recordSamples(samples, offset, frames);
+        }
+    }
+
+    private void recordSamples(final short[] samples, final int offset, final int frames) throws EncoderException {
+        try {
+            recorder.record(audioSampleRate,
+                    audioChannelCount,
+                    ShortBuffer.wrap(samples, offset, frames * audioChannelCount));
+        } catch (final FrameRecorder.Exception e) {
+            throw new EncoderException(e);
+        }
+        audioFrameCount += frames;
+    }
+
+    @Override
+    public void stop() throws EncoderException {
+        try {
+            recorder.stop();
+        } catch (final FrameRecorder.Exception e) {
+            throw new EncoderException(e);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (recorder == null) {
+            return;
+        }
+
+        try {
+            recorder.release();
+        } catch (final FrameRecorder.Exception e) {
+            // nothing left to clean up
+        } finally {
+            recorder = null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
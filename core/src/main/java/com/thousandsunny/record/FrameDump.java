@@ -0,0 +1,32 @@
+package com.thousandsunny.record;
+
+/**
+ * Layout of a raw preview capture, all values big-endian:
+ * <pre>
+ * header: int magic 'RFRM', int version, int width, int height, int format, int degree, int mirror
+ * frame:  long timestamp (nanoseconds), int length, byte[length] payload
+ * </pre>
+ * {@code format} is the {@code android.graphics.ImageFormat} of the payload, NV21 for everything the recorder takes.
+ * {@code degree} and {@code mirror} (0 or 1) are those of {@link OpenCVRecorder}; version 1 has no {@code mirror}.
+ */
+public final class FrameDump {
+    public static final int MAGIC = 0x5246524d;
+
+    public static final int VERSION = 2;
+
+    public static final int HEADER_SIZE = 7 * 4;
+
+    public static final int HEADER_SIZE_V1 = 6 * 4;
+
+    public static final int FRAME_HEADER_SIZE = 8 + 4;
+
+    /**
+     * {@code android.graphics.ImageFormat.NV21}
+     */
+    public static final int FORMAT_NV21 = 17;
+
+    public static final String EXTENSION = ".nv21dump";
+
+    private FrameDump() {
+    }
+}
@@ -0,0 +1,163 @@
+package com.thousandsunny.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a {@link FrameDump} file through memory-mapped windows, so captures larger than 2GB can be replayed and
+ * frames are copied straight from the page cache.
+ */
+public class FrameDumpReader implements Closeable {
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private final int width;
+
+    private final int height;
+
+    private final int format;
+
+    private final int degree;
+
+    private final boolean mirror;
+
+    private MappedByteBuffer window;
+
+    private long windowOffset;
+
+    private long position;
+
+    private long timestamp;
+
+    private int length;
+
+    private long payloadOffset;
+
+    public FrameDumpReader(final File dumpFile) throws IOException {
+        file = new RandomAccessFile(dumpFile, "r");
+        channel = file.getChannel();
+        size = channel.size();
+        if (size < FrameDump.HEADER_SIZE_V1) {
+            close();
+            throw new IOException("Truncated header: " + dumpFile);
+        }
+
+        map(0, FrameDump.HEADER_SIZE_V1);
+        final int magic = window.getInt(0);
+        final int version = window.getInt(4);
+        if (magic != FrameDump.MAGIC || (version != 1 && version != FrameDump.VERSION)) {
+            close();
+            throw new IOException("Not a frame dump: " + dumpFile);
+        }
+        width = window.getInt(8);
+        height = window.getInt(12);
+        format = window.getInt(16);
+        degree = window.getInt(20);
+        if (version == 1) {
+            mirror = false;
+            position = FrameDump.HEADER_SIZE_V1;
+        } else {
+            if (size < FrameDump.HEADER_SIZE) {
+                close();
+                throw new IOException("Truncated header: " + dumpFile);
+            }
+            map(0, FrameDump.HEADER_SIZE);
+            mirror = window.getInt(24) != 0;
+            position = FrameDump.HEADER_SIZE;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getDegree() {
+        return degree;
+    }
+
+    public boolean isMirror() {
+        return mirror;
+    }
+
+    /**
+     * Moves to the next frame.
+     *
+     * @return false at the end of the file, a truncated last frame is ignored
+     */
+    public boolean next() throws IOException {
+        if (position + FrameDump.FRAME_HEADER_SIZE > size) {
+            return false;
+        }
+
+        map(position, FrameDump.FRAME_HEADER_SIZE);
+        final int offset = (int) (position - windowOffset);
+        final long frameTimestamp = window.getLong(offset);
+        final int frameLength = window.getInt(offset + 8);
+        final long frameOffset = position + FrameDump.FRAME_HEADER_SIZE;
+        if (frameLength < 0 || frameOffset + frameLength > size) {
+            return false;
+        }
+
+        timestamp = frameTimestamp;
+        length = frameLength;
+        payloadOffset = frameOffset;
+        position = frameOffset + frameLength;
+        return true;
+    }
+
+    /**
+     * @return capture time of the current frame in nanoseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Copies the payload of the current frame.
+     */
+    public void read(final byte[] destination) throws IOException {
+        map(payloadOffset, length);
+        window.position((int) (payloadOffset - windowOffset));
+        window.get(destination, 0, length);
+    }
+
+    /**
+     * Makes sure {@code [offset, offset + count)} lies in the mapped window.
+     */
+    private void map(final long offset, final int count) throws IOException {
+        if (window != null && offset >= windowOffset && offset + count <= windowOffset + window.capacity()) {
+            return;
+        }
+
+        final long mapSize = Math.min(size - offset, Math.max(WINDOW_SIZE, count));
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapSize);
+        windowOffset = offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+}
@@ -0,0 +1,114 @@
+package com.thousandsunny.record;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes preview frames to a {@link FrameDump} file. {@link #write(byte[], long)} only copies the frame into a
+ * {@link FrameRing}, the file is written by a background thread so the camera callback never waits for I/O.
+ */
+public class FrameDumpWriter {
+    private static final Logger LOGGER = Logger.getLogger(FrameDumpWriter.class.getSimpleName());
+
+    private final FileOutputStream outputStream;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer frameHeader = ByteBuffer.allocateDirect(FrameDump.FRAME_HEADER_SIZE);
+
+    private final ByteBuffer payload;
+
+    private final FramePipeline pipeline;
+
+    private IOException failure;
+
+    public FrameDumpWriter(final File file,
+                           final int width,
+                           final int height,
+                           final int format,
+                           final int degree,
+                           final boolean mirror) throws IOException {
+        outputStream = new FileOutputStream(file);
+        channel = outputStream.getChannel();
+
+        final ByteBuffer header = ByteBuffer.allocate(FrameDump.HEADER_SIZE);
+        header.putInt(FrameDump.MAGIC)
+                .putInt(FrameDump.VERSION)
+                .putInt(width)
+                .putInt(height)
+                .putInt(format)
+                .putInt(degree)
+                .putInt(mirror ? 1 : 0);
+        header.flip();
+        writeFully(header);
+
+        final int frameSize = width * height * 3 / 2;
+        payload = ByteBuffer.allocateDirect(frameSize);
+        pipeline = new FramePipeline(new FrameRing(4, frameSize, FrameRing.OverflowPolicy.DROP_NEWEST),
+                new FramePipeline.FrameConsumer() {
+                    @Override
+                    public void onFrame(final byte[] bytes, final long timestamp) {
+                        writeFrame(bytes, timestamp);
+                    }
+                },
+                FrameDumpWriter.class.getSimpleName());
+        pipeline.start();
+    }
+
+    /**
+     * @param timestamp capture time in nanoseconds
+     * @return false if the writer is behind and the frame was dropped
+     */
+    public boolean write(final byte[] bytes, final long timestamp) {
+        return pipeline.offer(bytes, timestamp);
+    }
+
+    /**
+     * Writes the queued frames and closes the file.
+     */
+    public void close() throws IOException {
+        pipeline.stop();
+        final long dropped = pipeline.getRing().getDroppedCount();
+        if (dropped > 0) {
+            LOGGER.warning("Dropped " + dropped + " frames while dumping");
+        }
+
+        outputStream.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeFrame(final byte[] bytes, final long timestamp) {
+        if (failure != null) {
+            return;
+        }
+
+        try {
+            final int length = Math.min(bytes.length, payload.capacity());
+            frameHeader.clear();
+            frameHeader.putLong(timestamp).putInt(length);
+            frameHeader.flip();
+            writeFully(frameHeader);
+
+            payload.clear();
+            payload.put(bytes, 0, length);
+            payload.flip();
+            writeFully(payload);
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+            failure = e;
+        }
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.thousandsunny.record;
+
+/**
+ * Counts the frames a camera drops for want of a buffer, from the timestamps of its callbacks. While a callback is
+ * late the following frames wait in the camera's queue and arrive back to back once it returns; frames that found no
+ * buffer never arrive. So once the callbacks are on time again, the frame intervals elapsed since the backlog began
+ * that no callback accounts for are the frames dropped. Gaps without a late callback are the camera slowing down on
+ * its own, e.g. a longer exposure, and are not counted.
+ * <p>
+ * Callbacks are expected one at a time, as the camera delivers them.
+ */
+public class FrameGapMonitor {
+    private final long frameIntervalNanos;
+
+    private long lastDeliveredNanos;
+
+    private long lastReturnedNanos;
+
+    /**
+     * Frame intervals elapsed minus frames delivered since the callbacks were last on time.
+     */
+    private double backlogFrames;
+
+    private boolean backlogged;
+
+    private long exhaustedCount;
+
+    private long droppedFrameCount;
+
+    /**
+     * @param frameRate the rate the camera delivers at, the upper bound of its frame rate range
+     */
+    public FrameGapMonitor(final double frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("Invalid frame rate:" + frameRate);
+        }
+        frameIntervalNanos = (long) (1000000000L / frameRate);
+    }
+
+    /**
+     * Forgets the previous callbacks, e.g. when the preview restarts.
+     */
+    public synchronized void reset() {
+        lastDeliveredNanos = 0;
+        lastReturnedNanos = 0;
+        backlogFrames = 0;
+        backlogged = false;
+    }
+
+    /**
+     * @param nanos when the callback started
+     * @return the frames dropped before this one, known once the callbacks are on time again
+     */
+    public synchronized int onDelivered(final long nanos) {
+        if (lastDeliveredNanos == 0) {
+            lastDeliveredNanos = nanos;
+            return 0;
+        }
+
+        backlogFrames += (double) (nanos - lastDeliveredNanos) / frameIntervalNanos - 1;
+        lastDeliveredNanos = nanos;
+        // a frame waiting in the queue is delivered right after the previous callback returns
+        if (nanos - lastReturnedNanos < frameIntervalNanos / 2) {
+            backlogged = true;
+            return 0;
+        }
+
+        int dropped = 0;
+        if (backlogged) {
+            dropped = (int) Math.round(backlogFrames);
+            if (dropped > 0) {
+                exhaustedCount++;
+                droppedFrameCount += dropped;
+            } else {
+                dropped = 0;
+            }
+        }
+        backlogFrames = 0;
+        backlogged = false;
+        return dropped;
+    }
+
+    /**
+     * @param nanos when the callback returned
+     */
+    public synchronized void onReturned(final long nanos) {
+        if (nanos - lastDeliveredNanos > frameIntervalNanos) {
+            backlogged = true;
+        }
+        lastReturnedNanos = nanos;
+    }
+
+    /**
+     * @return backlogs that ended with frames dropped
+     */
+    public synchronized long getExhaustedCount() {
+        return exhaustedCount;
+    }
+
+    public synchronized long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+}
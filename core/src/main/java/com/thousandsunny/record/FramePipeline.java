@@ -0,0 +1,82 @@
+package com.thousandsunny.record;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decouples the camera callback from colour conversion and encoding: {@link #offer(byte[], long)} only copies
+ * the frame into a {@link FrameRing} slot and a dedicated encoder thread drains the ring.
+ */
+public class FramePipeline {
+    private static final Logger LOGGER = Logger.getLogger(FramePipeline.class.getSimpleName());
+
+    public interface FrameConsumer {
+        /**
+         * Called on the encoder thread, the buffer is only valid until this method returns.
+         *
+         * @param timestamp capture time in {@link System#nanoTime()} nanoseconds
+         */
+        void onFrame(byte[] bytes, long timestamp);
+    }
+
+    private final FrameRing ring;
+
+    private final FrameConsumer consumer;
+
+    private final Thread encoderThread;
+
+    public FramePipeline(final FrameRing ring, final FrameConsumer consumer, final String name) {
+        this.ring = ring;
+        this.consumer = consumer;
+        encoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, name);
+    }
+
+    public void start() {
+        encoderThread.start();
+    }
+
+    /**
+     * @return false if the frame was dropped because of the overflow policy
+     */
+    public boolean offer(final byte[] bytes, final long timestamp) {
+        return ring.offer(bytes, bytes.length, timestamp);
+    }
+
+    /**
+     * Rejects new frames, waits for the queued ones to be consumed and joins the encoder thread.
+     */
+    public void stop() {
+        ring.close();
+        try {
+            encoderThread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public FrameRing getRing() {
+        return ring;
+    }
+
+    private void drain() {
+        try {
+            FrameRing.Slot slot;
+            while ((slot = ring.take()) != null) {
+                try {
+                    consumer.onFrame(slot.getData(), slot.getTimestamp());
+                } catch (final RuntimeException e) {
+                    LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+                } finally {
+                    ring.release(slot);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
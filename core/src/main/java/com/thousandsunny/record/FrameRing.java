@@ -0,0 +1,218 @@
+package com.thousandsunny.record;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-size ring of preallocated frame slots handed from the camera thread to the encoder thread.
+ * The producer only holds the lock to pick a slot and to publish it, the copy itself happens outside of it.
+ */
+public class FrameRing {
+    public enum OverflowPolicy {
+        /**
+         * Recycles the oldest queued frame, the encoder always sees the most recent frames.
+         */
+        DROP_OLDEST,
+        /**
+         * Discards the incoming frame, the queued frames are kept.
+         */
+        DROP_NEWEST,
+        /**
+         * Blocks the camera thread until the encoder frees a slot.
+         */
+        BLOCK
+    }
+
+    public static class Slot {
+        private final byte[] data;
+
+        private int length;
+
+        private long timestamp;
+
+        private Slot(final int frameSize) {
+            data = new byte[frameSize];
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return capture time in {@link System#nanoTime()} nanoseconds
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final ArrayDeque<Slot> free;
+
+    private final ArrayDeque<Slot> ready;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final int capacity;
+
+    private final AtomicLong queuedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private boolean closed;
+
+    public FrameRing(final int capacity, final int frameSize, final OverflowPolicy overflowPolicy) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2:" + capacity);
+        }
+
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        free = new ArrayDeque<>(capacity);
+        ready = new ArrayDeque<>(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            free.add(new Slot(frameSize));
+        }
+    }
+
+    /**
+     * Copies the frame into a free slot.
+     *
+     * @return false if the frame was dropped
+     */
+    public boolean offer(final byte[] frame, final int length, final long timestamp) {
+        Slot slot;
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+
+            slot = free.poll();
+            if (slot == null) {
+                switch (overflowPolicy) {
+                    case DROP_OLDEST:
+                        slot = ready.poll();
+                        break;
+                    case BLOCK:
+                        while (slot == null && !closed) {
+                            notFull.await();
+                            slot = free.poll();
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        break;
+                }
+                if (slot == null || overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                    droppedCount.incrementAndGet();
+                }
+                if (slot == null) {
+                    return false;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            droppedCount.incrementAndGet();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+
+        if (length > slot.data.length) {
+            release(slot);
+            throw new IllegalArgumentException("Frame too large:" + length);
+        }
+        System.arraycopy(frame, 0, slot.data, 0, length);
+        slot.length = length;
+        slot.timestamp = timestamp;
+
+        lock.lock();
+        try {
+            ready.add(slot);
+            queuedCount.incrementAndGet();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest queued frame, or null once the ring is closed and drained.
+     * The slot must be handed back with {@link #release(Slot)}.
+     */
+    public Slot take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (ready.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            return ready.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(final Slot slot) {
+        lock.lock();
+        try {
+            free.add(slot);
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rejects further frames, {@link #take()} keeps returning the queued ones before returning null.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return ready.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
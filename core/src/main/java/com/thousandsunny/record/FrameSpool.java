@@ -0,0 +1,144 @@
+package com.thousandsunny.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Preallocated memory-mapped file of fixed-size output frames, each slot a {@code long} timestamp in microseconds
+ * followed by an NV21 frame. One thread appends while another one may read the frames already committed.
+ */
+public class FrameSpool {
+    private static final int TIMESTAMP_SIZE = 8;
+
+    private final File file;
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final MappedByteBuffer buffer;
+
+    private final int frameSize;
+
+    private final int slotSize;
+
+    private final int capacity;
+
+    private volatile int frameCount;
+
+    private volatile boolean finished;
+
+    private long overflowCount;
+
+    public FrameSpool(final File file, final int frameSize, final int capacity) throws IOException {
+        this.file = file;
+        this.frameSize = frameSize;
+        this.capacity = capacity;
+        slotSize = TIMESTAMP_SIZE + frameSize;
+
+        final long size = (long) slotSize * capacity;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Spool too large:" + size);
+        }
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(size);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (final IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reserves the next slot, fill the returned buffer from position 0 and call {@link #commit()}.
+     *
+     * @return null if the spool is full, the frame is counted as an overflow
+     */
+    public ByteBuffer beginAppend(final long timestampMicros) {
+        if (frameCount >= capacity) {
+            overflowCount++;
+            return null;
+        }
+
+        final int offset = frameCount * slotSize;
+        buffer.putLong(offset, timestampMicros);
+
+        final ByteBuffer slot = buffer.duplicate();
+        slot.position(offset + TIMESTAMP_SIZE);
+        slot.limit(offset + slotSize);
+        return slot.slice();
+    }
+
+    /**
+     * Publishes the slot returned by the last {@link #beginAppend(long)} to readers.
+     */
+    public void commit() {
+        frameCount++;
+    }
+
+    /**
+     * No more frames will be appended.
+     */
+    public void finish() {
+        finished = true;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Copies a committed frame into {@code destination} from position 0, may be called from another thread
+     * than the appending one, with its own destination.
+     *
+     * @return the timestamp of the frame in microseconds
+     */
+    public long read(final int index, final ByteBuffer destination) {
+        if (index >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame not committed:" + index);
+        }
+
+        final int offset = index * slotSize;
+        final ByteBuffer slot = buffer.duplicate();
+        slot.position(offset + TIMESTAMP_SIZE);
+        slot.limit(offset + slotSize);
+        destination.position(0);
+        destination.put(slot);
+        destination.position(0);
+        return buffer.getLong(offset);
+    }
+
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    /**
+     * Closes and deletes the spool file.
+     */
+    public void delete() throws IOException {
+        close();
+        if (!file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+}
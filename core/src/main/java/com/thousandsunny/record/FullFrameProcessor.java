@@ -0,0 +1,143 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+import static org.bytedeco.javacpp.opencv_core.cvCopy;
+import static org.bytedeco.javacpp.opencv_core.cvFlip;
+import static org.bytedeco.javacpp.opencv_core.cvTranspose;
+
+/**
+ * The original recording path: converts the whole preview frame to BGR, copies the centered square out of it and
+ * rotates/mirrors it with OpenCV transposes and flips. The stages are exposed separately so they can be timed on their own.
+ */
+public class FullFrameProcessor {
+    private final opencv_core.IplImage bgrImage;
+
+    private final opencv_core.IplImage squareImage;
+
+    private final opencv_core.IplImage transposed;
+
+    /**
+     * The centered square, native memory allocated once rather than per frame.
+     */
+    private final opencv_core.IplROI cropRoi;
+
+    private final ConversionEngine converter;
+
+    private final int squareSide;
+
+    private final int degree;
+
+    private final boolean mirror;
+
+    /**
+     * @param executor null to convert on the calling thread
+     */
+    public FullFrameProcessor(final int previewWidth,
+                              final int previewHeight,
+                              final int degree,
+                              final StripeExecutor executor) {
+        this(previewWidth, previewHeight, degree, false, NV21Converter.FACTORY, executor);
+    }
+
+    /**
+     * @param degree   clockwise rotation of the sensor image, as in {@link SquareCropTransform}
+     * @param mirror   flips the rotated image horizontally
+     * @param executor null to convert on the calling thread
+     */
+    public FullFrameProcessor(final int previewWidth,
+                              final int previewHeight,
+                              final int degree,
+                              final boolean mirror,
+                              final ConversionEngine.Factory conversionEngine,
+                              final StripeExecutor executor) {
+        this.degree = degree;
+        this.mirror = mirror;
+        converter = conversionEngine.create(previewWidth, previewHeight, executor);
+        squareSide = Math.min(previewWidth, previewHeight);
+
+        bgrImage = opencv_core.IplImage.create(previewWidth,
+                previewHeight,
+                IPL_DEPTH_8U,
+                4);
+
+        squareImage = opencv_core.IplImage.create(squareSide,
+                squareSide,
+                IPL_DEPTH_8U,
+                4);
+
+        transposed = opencv_core.IplImage.create(squareSide,
+                squareSide,
+                IPL_DEPTH_8U,
+                4);
+
+        cropRoi = new opencv_core.IplROI();
+        cropRoi.xOffset((previewWidth - squareSide) / 2);
+        cropRoi.yOffset((previewHeight - squareSide) / 2);
+        cropRoi.width(squareSide);
+        cropRoi.height(squareSide);
+    }
+
+    public opencv_core.IplImage process(final byte[] bytes) {
+        convert(bytes);
+        crop();
+        rotate();
+        return transposed;
+    }
+
+    public void convert(final byte[] bytes) {
+        converter.convert(bytes, bgrImage);
+    }
+
+    public void crop() {
+        try {
+            cvCopy(bgrImage.roi(cropRoi), squareImage);
+        } finally {
+            bgrImage.roi(null);
+        }
+    }
+
+    public void rotate() {
+        switch (degree) {
+            case 90:
+                // transpose + horizontal flip, the mirror cancels the flip
+                cvTranspose(squareImage, transposed);
+                if (!mirror) {
+                    cvFlip(transposed, transposed, 1);
+                }
+                break;
+            case 270:
+                // transpose + vertical flip
+                cvTranspose(squareImage, transposed);
+                cvFlip(transposed, transposed, mirror ? -1 : 0);
+                break;
+            case 180:
+                cvFlip(squareImage, transposed, mirror ? 0 : -1);
+                break;
+            default:
+                if (mirror) {
+                    cvFlip(squareImage, transposed, 1);
+                } else {
+                    cvCopy(squareImage, transposed);
+                }
+                break;
+        }
+    }
+
+    public opencv_core.IplImage getOutputImage() {
+        return transposed;
+    }
+
+    public String getConversionEngineName() {
+        return converter.getName();
+    }
+
+    public void release() {
+        converter.release();
+        cropRoi.deallocate();
+        bgrImage.release();
+        squareImage.release();
+        transposed.release();
+    }
+}
@@ -0,0 +1,108 @@
+package com.thousandsunny.record;
+
+import java.nio.IntBuffer;
+
+/**
+ * Single pass NV21 to BGR kernel which only reads the samples that end up in the output square.
+ * Crop, rotation and downscale are folded into the {@link SquareCropTransform} lookup tables, the luma and the
+ * chroma are box-averaged over their footprints like {@link YUVSquareKernel} does, so the cost of a frame depends on
+ * the output size and the downscale factor but not on the preview size.
+ */
+public class FusedBGRKernel {
+    private final SquareCropTransform transform;
+
+    private final int[] row;
+
+    public FusedBGRKernel(final SquareCropTransform transform) {
+        this.transform = transform;
+        row = new int[transform.getOutputSide()];
+    }
+
+    public SquareCropTransform getTransform() {
+        return transform;
+    }
+
+    /**
+     * @param bgr the buffer of a {@code outputSide x outputSide} 4-channel image, written from position 0
+     */
+    public void process(final byte[] yuv, final IntBuffer bgr) {
+        bgr.position(0);
+        if (transform.isPointSampled()) {
+            copy(yuv, bgr);
+        } else {
+            average(yuv, bgr);
+        }
+        bgr.position(0);
+    }
+
+    private void copy(final byte[] yuv, final IntBuffer bgr) {
+        final int side = transform.getOutputSide();
+        final int[] lumaOuter = transform.getLumaOuter();
+        final int[] lumaInner = transform.getLumaInner();
+        final int[] chromaOuter = transform.getChromaOuter();
+        final int[] chromaInner = transform.getChromaInner();
+
+        for (int i = 0; i < side; ++i) {
+            final int lumaRow = lumaOuter[i];
+            final int chromaRow = chromaOuter[i];
+            for (int j = 0; j < side; ++j) {
+                final int c = chromaRow + chromaInner[j];
+                row[j] = ColorConversion.toPackedBGR(0xff & yuv[lumaRow + lumaInner[j]],
+                        0xff & yuv[c],
+                        0xff & yuv[c + 1]);
+            }
+            bgr.put(row, 0, side);
+        }
+    }
+
+    private void average(final byte[] yuv, final IntBuffer bgr) {
+        final int side = transform.getOutputSide();
+        final int[] lumaOuter = transform.getLumaOuter();
+        final int[] lumaInner = transform.getLumaInner();
+        final int[] lumaOuterCount = transform.getLumaOuterCount();
+        final int[] lumaInnerCount = transform.getLumaInnerCount();
+        final int lumaOuterStep = transform.getLumaOuterStep();
+        final int lumaInnerStep = transform.getLumaInnerStep();
+        final int[] chromaOuter = transform.getChromaOuter();
+        final int[] chromaInner = transform.getChromaInner();
+        final int[] chromaOuterCount = transform.getChromaOuterCount();
+        final int[] chromaInnerCount = transform.getChromaInnerCount();
+        final int chromaOuterStep = transform.getChromaOuterStep();
+        final int chromaInnerStep = transform.getChromaInnerStep();
+
+        for (int i = 0; i < side; ++i) {
+            final int lumaRow = lumaOuter[i];
+            final int lumaCount = lumaOuterCount[i];
+            final int chromaRow = chromaOuter[i];
+            final int chromaCount = chromaOuterCount[i];
+            for (int j = 0; j < side; j += 2) {
+                // one chroma average for the two pixels of a 2x2 block on this row
+                final int chromaInnerCountJ = chromaInnerCount[j];
+                int v = 0;
+                int u = 0;
+                for (int a = 0, o = chromaRow + chromaInner[j]; a < chromaCount; ++a, o += chromaOuterStep) {
+                    for (int b = 0, p = o; b < chromaInnerCountJ; ++b, p += chromaInnerStep) {
+                        v += 0xff & yuv[p];
+                        u += 0xff & yuv[p + 1];
+                    }
+                }
+                final int chromaSamples = chromaCount * chromaInnerCountJ;
+                v = (v + chromaSamples / 2) / chromaSamples;
+                u = (u + chromaSamples / 2) / chromaSamples;
+
+                for (int k = j; k < j + 2; ++k) {
+                    final int innerCount = lumaInnerCount[k];
+                    int sum = 0;
+                    for (int a = 0, o = lumaRow + lumaInner[k]; a < lumaCount; ++a, o += lumaOuterStep) {
+                        for (int b = 0, p = o; b < innerCount; ++b, p += lumaInnerStep) {
+                            sum += 0xff & yuv[p];
+                        }
+                    }
+                    final int lumaSamples = lumaCount * innerCount;
+                    row[k] = ColorConversion.toPackedBGR((sum + lumaSamples / 2) / lumaSamples, v, u);
+                }
+            }
+            bgr.put(row, 0, side);
+        }
+    }
+}
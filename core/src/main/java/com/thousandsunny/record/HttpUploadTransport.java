@@ -0,0 +1,96 @@
+package com.thousandsunny.record;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Uploads with {@link HttpURLConnection}: each chunk is a {@code PUT <endpoint><uploadId>} with a
+ * {@code Content-Range} header, the completion a {@code POST} to the same URL. The name of the file goes in an
+ * {@code X-Upload-Name} header. Any 2xx status acknowledges the request.
+ */
+public class HttpUploadTransport implements UploadTransport {
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final URL endpoint;
+
+    /**
+     * @param endpoint ends with a slash, the upload id is appended to it
+     */
+    public HttpUploadTransport(final URL endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    public void sendChunk(final String uploadId,
+                          final String name,
+                          final long totalSize,
+                          final long offset,
+                          final ByteBuffer data) throws IOException {
+        final int length = data.remaining();
+        final HttpURLConnection connection = open(uploadId, name, "PUT");
+        try {
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Range",
+                    "bytes " + offset + "-" + (offset + length - 1) + "/" + totalSize);
+            connection.setFixedLengthStreamingMode(length);
+            final WritableByteChannel channel = Channels.newChannel(connection.getOutputStream());
+            try {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } finally {
+                channel.close();
+            }
+            checkResponse(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void complete(final String uploadId, final String name, final long totalSize) throws IOException {
+        final HttpURLConnection connection = open(uploadId, name, "POST");
+        try {
+            connection.setRequestProperty("X-Upload-Size", Long.toString(totalSize));
+            connection.setFixedLengthStreamingMode(0);
+            connection.getOutputStream().close();
+            checkResponse(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(final String uploadId, final String name, final String method) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(endpoint, uploadId).openConnection();
+        connection.setRequestMethod(method);
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("X-Upload-Name", name);
+        return connection;
+    }
+
+    private static void checkResponse(final HttpURLConnection connection) throws IOException {
+        final int code = connection.getResponseCode();
+        // reading the body to the end lets the connection be reused
+        final InputStream body = code / 100 == 2 ? connection.getInputStream() : connection.getErrorStream();
+        if (body != null) {
+            final byte[] buffer = new byte[1024];
+            try {
+                while (body.read(buffer) >= 0) {
+                    // discarded
+                }
+            } finally {
+                body.close();
+            }
+        }
+        if (code / 100 != 2) {
+            throw new IOException("HTTP " + code + " for " + connection.getURL());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.thousandsunny.record;
+
+/**
+ * Walks the frame in 2x2 blocks so the chroma terms shared by the four pixels of a block are looked up once, the
+ * luma term and the clamping are table lookups as well. The tables hold exactly the fixed-point products of
+ * {@link ColorConversion#toPackedBGR}, so the output is bit-identical to the reference.
+ */
+public class LUTConversionEngine extends StripedConversionEngine {
+    public static final String NAME = "lut";
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public ConversionEngine create(final int width, final int height, final StripeExecutor executor) {
+            return new LUTConversionEngine(width, height, executor);
+        }
+    };
+
+    /**
+     * Shifted channel values range from -259 to 534 before clamping.
+     */
+    private static final int CLAMP_OFFSET = 384;
+
+    private static final int[] CLAMP = new int[1024];
+
+    private static final int[] LUMA = new int[256];
+
+    private static final int[] RED_V = new int[256];
+
+    private static final int[] GREEN_V = new int[256];
+
+    private static final int[] GREEN_U = new int[256];
+
+    private static final int[] BLUE_U = new int[256];
+
+    static {
+        for (int i = 0; i < CLAMP.length; ++i) {
+            CLAMP[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+        }
+        for (int i = 0; i < 256; ++i) {
+            LUMA[i] = 1192 * (Math.max(i, 16) - 16);
+            RED_V[i] = 1634 * (i - 128);
+            GREEN_V[i] = 832 * (i - 128);
+            GREEN_U[i] = 400 * (i - 128);
+            BLUE_U[i] = 2066 * (i - 128);
+        }
+    }
+
+    /**
+     * @param executor null to convert on the calling thread
+     */
+    public LUTConversionEngine(final int width, final int height, final StripeExecutor executor) {
+        super(width, height, executor);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected void convertRows(final int[] bgr, final byte[] yuv, final int start, final int end) {
+        final int frameSize = width * height;
+
+        for (int i = start; i < end; i += 2) {
+            final int chromaRow = frameSize + (i >> 1) * width;
+            final int top = i * width;
+            final int bottom = i + 1 < end ? top + width : -1;
+            for (int j = 0; j < width; j += 2) {
+                final int c = chromaRow + j;
+                final int v = 0xff & yuv[c];
+                final int u = 0xff & yuv[c + 1];
+                final int red = RED_V[v];
+                final int green = -GREEN_V[v] - GREEN_U[u];
+                final int blue = BLUE_U[u];
+                final boolean pair = j + 1 < width;
+
+                bgr[top + j] = pack(LUMA[0xff & yuv[top + j]], red, green, blue);
+                if (pair) {
+                    bgr[top + j + 1] = pack(LUMA[0xff & yuv[top + j + 1]], red, green, blue);
+                }
+                if (bottom >= 0) {
+                    bgr[bottom + j] = pack(LUMA[0xff & yuv[bottom + j]], red, green, blue);
+                    if (pair) {
+                        bgr[bottom + j + 1] = pack(LUMA[0xff & yuv[bottom + j + 1]], red, green, blue);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int pack(final int luma, final int red, final int green, final int blue) {
+        return 0xff000000
+                | (CLAMP[((luma + blue) >> 10) + CLAMP_OFFSET] << 16)
+                | (CLAMP[((luma + green) >> 10) + CLAMP_OFFSET] << 8)
+                | CLAMP[((luma + red) >> 10) + CLAMP_OFFSET];
+    }
+}
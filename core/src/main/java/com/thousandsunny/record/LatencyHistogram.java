@@ -0,0 +1,85 @@
+package com.thousandsunny.record;
+
+/**
+ * Fixed-bucket histogram of durations in microseconds. Bucket {@code i} counts values in
+ * {@code [2^(i-1), 2^i)}, bucket 0 counts 0, the last bucket everything above ~17 seconds.
+ * Recording never allocates; it is meant to be written by a single thread.
+ */
+public class LatencyHistogram {
+    public static final int BUCKET_COUNT = 26;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+
+    private long count;
+
+    private long sum;
+
+    private long max;
+
+    public void record(final long micros) {
+        final long value = micros < 0 ? 0 : micros;
+        final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+        counts[bucket]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    public long getBucketCount(final int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * @return the exclusive upper bound in microseconds of the bucket
+     */
+    public static long getBucketUpperBound(final int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket containing the percentile, capped at the maximum recorded value
+     */
+    public long getPercentile(final double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, getBucketUpperBound(i));
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,58 @@
+package com.thousandsunny.record;
+
+/**
+ * Full frame NV21 to packed BGR conversion, one {@link ColorConversion#toPackedBGR} call per pixel. This is the
+ * reference the other {@link ConversionEngine}s are verified against.
+ */
+public class NV21Converter extends StripedConversionEngine {
+    public static final String NAME = "scalar";
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public ConversionEngine create(final int width, final int height, final StripeExecutor executor) {
+            return new NV21Converter(width, height, executor);
+        }
+    };
+
+    /**
+     * @param executor null to convert on the calling thread
+     */
+    public NV21Converter(final int width, final int height, final StripeExecutor executor) {
+        super(width, height, executor);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected void convertRows(final int[] bgr, final byte[] yuv, final int start, final int end) {
+        convertRows(bgr, yuv, width, height, start, end);
+    }
+
+    public static void convertRows(final int[] bgr,
+                                   final byte[] yuv,
+                                   final int width,
+                                   final int height,
+                                   final int start,
+                                   final int end) {
+        final int frameSize = width * height;
+
+        int a = start * width;
+        for (int i = start; i < end; ++i) {
+            final int chromaRow = frameSize + (i >> 1) * width;
+            for (int j = 0; j < width; ++j) {
+                final int c = chromaRow + (j & ~1);
+                bgr[a++] = ColorConversion.toPackedBGR(0xff & yuv[i * width + j],
+                        0xff & yuv[c],
+                        0xff & yuv[c + 1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.thousandsunny.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Downscales a square NV21 frame to a smaller square by averaging the source pixels under each output pixel,
+ * the V and U samples of the chroma plane are averaged separately. The footprints are precomputed, scaling
+ * never allocates.
+ */
+public class NV21Scaler {
+    private final int srcSide;
+
+    private final int dstSide;
+
+    private final int[] lumaStart;
+
+    private final int[] lumaEnd;
+
+    private final int[] chromaStart;
+
+    private final int[] chromaEnd;
+
+    /**
+     * Column sums of the source rows under the current output row.
+     */
+    private final int[] columnSums;
+
+    private final byte[] row;
+
+    public NV21Scaler(final int srcSide, final int dstSide) {
+        if (dstSide > srcSide || dstSide % 2 != 0 || srcSide % 2 != 0) {
+            throw new IllegalArgumentException("Cannot scale " + srcSide + " to " + dstSide);
+        }
+
+        this.srcSide = srcSide;
+        this.dstSide = dstSide;
+        lumaStart = new int[dstSide];
+        lumaEnd = new int[dstSide];
+        footprints(srcSide, dstSide, lumaStart, lumaEnd);
+        chromaStart = new int[dstSide / 2];
+        chromaEnd = new int[dstSide / 2];
+        footprints(srcSide / 2, dstSide / 2, chromaStart, chromaEnd);
+        columnSums = new int[srcSide];
+        row = new byte[dstSide];
+    }
+
+    /**
+     * Source pixels {@code start[i]} until {@code end[i]} map to output pixel {@code i}, at least one each.
+     */
+    private static void footprints(final int src, final int dst, final int[] start, final int[] end) {
+        for (int i = 0; i < dst; ++i) {
+            start[i] = i * src / dst;
+            end[i] = Math.max(start[i] + 1, (i + 1) * src / dst);
+        }
+    }
+
+    public int getSrcSide() {
+        return srcSide;
+    }
+
+    public int getDstSide() {
+        return dstSide;
+    }
+
+    /**
+     * @param src a {@code srcSide x srcSide} NV21 frame
+     * @param dst receives the {@code dstSide x dstSide} NV21 frame, written from position 0
+     */
+    public void scale(final byte[] src, final ByteBuffer dst) {
+        dst.position(0);
+        if (srcSide == dstSide) {
+            dst.put(src, 0, srcSide * srcSide * 3 / 2);
+            dst.position(0);
+            return;
+        }
+
+        for (int i = 0; i < dstSide; ++i) {
+            final int rowCount = sumRows(src, 0, lumaStart[i], lumaEnd[i]);
+            for (int j = 0; j < dstSide; ++j) {
+                int sum = 0;
+                for (int x = lumaStart[j]; x < lumaEnd[j]; ++x) {
+                    sum += columnSums[x];
+                }
+                final int count = rowCount * (lumaEnd[j] - lumaStart[j]);
+                row[j] = (byte) ((sum + count / 2) / count);
+            }
+            dst.put(row, 0, dstSide);
+        }
+
+        final int chromaOffset = srcSide * srcSide;
+        for (int i = 0; i < dstSide / 2; ++i) {
+            final int rowCount = sumRows(src, chromaOffset, chromaStart[i], chromaEnd[i]);
+            for (int j = 0; j < dstSide / 2; ++j) {
+                int v = 0;
+                int u = 0;
+                for (int x = chromaStart[j]; x < chromaEnd[j]; ++x) {
+                    v += columnSums[x * 2];
+                    u += columnSums[x * 2 + 1];
+                }
+                final int count = rowCount * (chromaEnd[j] - chromaStart[j]);
+                row[j * 2] = (byte) ((v + count / 2) / count);
+                row[j * 2 + 1] = (byte) ((u + count / 2) / count);
+            }
+            dst.put(row, 0, dstSide);
+        }
+        dst.position(0);
+    }
+
+    /**
+     * Adds up rows {@code start} until {@code end} of the plane at {@code offset} into {@link #columnSums},
+     * a chroma row is as many bytes wide as a luma row.
+     *
+     * @return the number of rows
+     */
+    private int sumRows(final byte[] src, final int offset, final int start, final int end) {
+        int rowOffset = offset + start * srcSide;
+        for (int x = 0; x < srcSide; ++x) {
+            columnSums[x] = src[rowOffset + x] & 0xff;
+        }
+        for (int y = start + 1; y < end; ++y) {
+            rowOffset += srcSide;
+            for (int x = 0; x < srcSide; ++x) {
+                columnSums[x] += src[rowOffset + x] & 0xff;
+            }
+        }
+        return end - start;
+    }
+}
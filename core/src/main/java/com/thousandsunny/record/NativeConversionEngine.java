@@ -0,0 +1,55 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+import static org.bytedeco.javacpp.opencv_imgproc.CV_YUV2RGBA_NV21;
+import static org.bytedeco.javacpp.opencv_imgproc.cvCvtColor;
+
+/**
+ * Converts with the bundled OpenCV {@code cvCvtColor}, writing straight into the image without going through a Java
+ * array. OpenCV rounds where the reference truncates, so it differs by a level or two per channel. Its packed
+ * {@code RGBA} memory order is the one {@link ColorConversion#toPackedBGR} produces in a little-endian int.
+ */
+public class NativeConversionEngine implements ConversionEngine {
+    public static final String NAME = "native";
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public ConversionEngine create(final int width, final int height, final StripeExecutor executor) {
+            return new NativeConversionEngine(width, height);
+        }
+    };
+
+    private final opencv_core.IplImage yuvImage;
+
+    public NativeConversionEngine(final int width, final int height) {
+        // the Y plane on top of the interleaved VU plane, as one single channel image
+        yuvImage = opencv_core.IplImage.create(width, height * 3 / 2, IPL_DEPTH_8U, 1);
+        if (yuvImage.widthStep() != width) {
+            yuvImage.release();
+            throw new IllegalArgumentException("Rows of " + width + " pixels are padded to " + yuvImage.widthStep());
+        }
+    }
+
+    @Override
+    public void convert(final byte[] nv21, final opencv_core.IplImage bgr) {
+        yuvImage.getByteBuffer().put(nv21, 0, yuvImage.width() * yuvImage.height());
+        cvCvtColor(yuvImage, bgr, CV_YUV2RGBA_NV21);
+    }
+
+    @Override
+    public void release() {
+        yuvImage.release();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
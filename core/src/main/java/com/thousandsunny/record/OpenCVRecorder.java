@@ -0,0 +1,1570 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+
+public class OpenCVRecorder {
+    private static final String TAG = OpenCVRecorder.class.getSimpleName();
+
+    private static final Logger LOGGER = Logger.getLogger(TAG);
+
+    /**
+     * The poster is taken from the first frame after this delay, the camera is often still adjusting the exposure
+     * before. Shorter recordings use their last frame.
+     */
+    private static final long POSTER_DELAY_NANOS = 500000000L;
+
+    /**
+     * Audio is drained by the recording thread between frames, the ring covers about 0.75s at 44.1kHz.
+     */
+    private static final int AUDIO_BUFFER_COUNT = 32;
+
+    private static final int AUDIO_FRAMES_PER_BUFFER = 1024;
+
+    public enum FrameMode {
+        /**
+         * Converts the whole preview frame, then crops, transposes and flips it with OpenCV
+         * and lets FFmpeg scale it down to the output size.
+         */
+        FULL_FRAME,
+        /**
+         * Reads only the centered square and converts, rotates and downscales it in a single pass.
+         */
+        FUSED,
+        /**
+         * Crops, rotates and downscales in the YUV domain and hands NV21 to the encoder,
+         * no RGB image is ever materialised.
+         */
+        YUV
+    }
+
+    private FullFrameProcessor fullFrameProcessor;
+
+    private StripeExecutor conversionExecutor;
+
+    private int conversionStripes = StripeExecutor.AUTO;
+
+    private ConversionEngine.Factory conversionEngine = NV21Converter.FACTORY;
+
+    private FusedBGRKernel fusedKernel;
+
+    private YUVSquareKernel yuvKernel;
+
+    private opencv_core.IplImage outputImage;
+
+    private FrameMode frameMode = FrameMode.YUV;
+
+    private int previewWidth;
+
+    private int previewHeight;
+
+    private boolean started;
+
+    /**
+     * Set up by {@link #prepare()} and waiting for {@link #start()}.
+     */
+    private boolean prepared;
+
+    private long prepareMicros;
+
+    /**
+     * When {@link #start()} was called, for the time to the first recorded frame.
+     */
+    private long startRequestTime;
+
+    private VideoEncoder encoder;
+
+    private List<VideoEncoder.Factory> encoderFactories = Collections.singletonList(FFmpegVideoEncoder.FACTORY);
+
+    private int degree;
+
+    private boolean mirror;
+
+    private final int outputSquareSideLength;
+
+    private final File outputVideoFile;
+
+    private long startTime;
+
+    private RecordingMetrics metrics;
+
+    private RecordingMetrics.Listener metricsListener;
+
+    private long lastProgressTime;
+
+    private EncoderGovernor governor;
+
+    private EncoderSettings encoderSettings;
+
+    private long lastRecordedTimestamp;
+
+    private int pipelineCapacity;
+
+    private FrameRing.OverflowPolicy overflowPolicy;
+
+    private volatile FramePipeline pipeline;
+
+    private volatile long encodedFrameCount;
+
+    private File spoolFile;
+
+    private int spoolCapacity;
+
+    private boolean encodeWhileCapturing;
+
+    private SpoolEncoder.Listener spoolListener;
+
+    private FrameSpool spool;
+
+    private SpoolEncoder spoolEncoder;
+
+    private PosterFrame posterFrame;
+
+    private boolean paused;
+
+    private long pauseStartTime;
+
+    /**
+     * Time spent paused, removed from the spool and replay timelines.
+     */
+    private long pausedNanos;
+
+    /**
+     * Start of the current segment, frames captured before it were captured while paused.
+     */
+    private long segmentStartTime;
+
+    private final List<File> segmentFiles = new ArrayList<>();
+
+    /**
+     * Finalises the segments closed by {@link #pause()} and opens the encoder {@link #resume()} continues with, off
+     * the caller's thread.
+     */
+    private ExecutorService segmentExecutor;
+
+    private Future<VideoEncoder> nextSegment;
+
+    private long replayWindowMicros;
+
+    private int replayMaxBytes;
+
+    private volatile ReplayEncoder replayEncoder;
+
+    private final List<Rendition> renditions = new ArrayList<>();
+
+    private final List<RenditionEncoder> renditionEncoders = new ArrayList<>();
+
+    /**
+     * Frame at the largest side of the recording, shared by the main video and the renditions.
+     */
+    private byte[] masterFrame;
+
+    private ByteBuffer masterBuffer;
+
+    private NV21Scaler primaryScaler;
+
+    private AudioSource audioSource;
+
+    private AudioCapture audioCapture;
+
+    private AudioSampleRing audioRing;
+
+    private long streamSegmentMicros;
+
+    private StreamSegmenter.Listener streamListener;
+
+    private StreamSegmenter streamSegmenter;
+
+    /**
+     * Between {@link #beginSourceSwitch()} and the first frame of the new camera, the last frame is repeated.
+     */
+    private boolean bridging;
+
+    /**
+     * {@link #switchSource(int, int, int, boolean)} has been called, the next frame ends the bridge.
+     */
+    private boolean sourceSwitched;
+
+    /**
+     * Last frame of the previous camera, the switch gap is measured from it.
+     */
+    private long switchFromTimestamp;
+
+    private ScheduledExecutorService repeatExecutor;
+
+    /**
+     * The processor of the previous camera in {@link FrameMode#FULL_FRAME}, its output is repeated until the first
+     * frame of the new one.
+     */
+    private FullFrameProcessor retiredFullFrameProcessor;
+
+    /**
+     * Frames dropped by the pipelines of the cameras recorded before the current one.
+     */
+    private long retiredDroppedFrameCount;
+
+    /**
+     * @param degree clockwise rotation of the sensor image, {@code CameraInfo.orientation} on portrait mode
+     */
+    public OpenCVRecorder(final int previewWidth,
+                          final int previewHeight,
+                          final int degree,
+                          final int outputSquareSideLength,
+                          final File outputVideoFile) {
+        this(previewWidth, previewHeight, degree, false, outputSquareSideLength, outputVideoFile);
+    }
+
+    /**
+     * @param degree clockwise rotation of the sensor image, {@code CameraInfo.orientation} on portrait mode
+     * @param mirror flips the video horizontally, for a front camera to record what its preview shows
+     */
+    public OpenCVRecorder(final int previewWidth,
+                          final int previewHeight,
+                          final int degree,
+                          final boolean mirror,
+                          final int outputSquareSideLength,
+                          final File outputVideoFile) {
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.degree = degree;
+        this.mirror = mirror;
+        this.outputSquareSideLength = outputSquareSideLength;
+        this.outputVideoFile = outputVideoFile;
+    }
+
+    public File getOutputVideoFile() {
+        return outputVideoFile;
+    }
+
+    /**
+     * Must be called before {@link #start()}.
+     */
+    public synchronized void setFrameMode(final FrameMode frameMode) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.frameMode = frameMode;
+    }
+
+    public FrameMode getFrameMode() {
+        return frameMode;
+    }
+
+    /**
+     * Number of row stripes the {@link FrameMode#FULL_FRAME} colour conversion is split into,
+     * {@link StripeExecutor#AUTO} uses one per core and 1 converts serially on the recording thread.
+     * Must be called before {@link #start()}.
+     */
+    public synchronized void setConversionStripes(final int conversionStripes) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.conversionStripes = conversionStripes;
+    }
+
+    /**
+     * Engine of the {@link FrameMode#FULL_FRAME} colour conversion, see {@link ConversionEngines#calibrate}.
+     * Must be called before {@link #start()}.
+     */
+    public synchronized void setConversionEngine(final ConversionEngine.Factory conversionEngine) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.conversionEngine = conversionEngine;
+    }
+
+    /**
+     * Moves conversion and encoding off the camera thread: {@link #onPreviewFrame(byte[])} only copies the frame
+     * into one of {@code capacity} preallocated slots and an encoder thread records them.
+     * Must be called before {@link #start()}, a capacity of 0 records synchronously on the camera thread.
+     */
+    public synchronized void setPipelined(final int capacity, final FrameRing.OverflowPolicy overflowPolicy) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.pipelineCapacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getQueuedFrameCount() {
+        final FramePipeline pipeline = this.pipeline;
+        return pipeline == null ? 0 : pipeline.getRing().getQueuedCount();
+    }
+
+    public long getDroppedFrameCount() {
+        final FramePipeline pipeline = this.pipeline;
+        return pipeline == null ? 0 : pipeline.getRing().getDroppedCount();
+    }
+
+    public long getEncodedFrameCount() {
+        return encodedFrameCount;
+    }
+
+    /**
+     * Lets the governor skip frames and lower the frame rate while recording; the encoder itself is configured
+     * from the governor's current level when the recording is prepared. Must be called before {@link #start()}.
+     */
+    public synchronized void setGovernor(final EncoderGovernor governor) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.governor = governor;
+    }
+
+    public synchronized EncoderGovernor getGovernor() {
+        return governor;
+    }
+
+    /**
+     * Encoder backends in order of preference, {@link #start()} falls back to the next one when a backend fails
+     * to start. Must be called before {@link #start()}.
+     */
+    public synchronized void setEncoderFactories(final List<VideoEncoder.Factory> encoderFactories) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        if (encoderFactories.isEmpty()) {
+            throw new IllegalArgumentException("No encoder backend");
+        }
+        this.encoderFactories = new ArrayList<>(encoderFactories);
+    }
+
+    /**
+     * @return the backend of the current recording, null if not started
+     */
+    public synchronized String getEncoderName() {
+        return encoder == null ? null : encoder.getName();
+    }
+
+    /**
+     * Spools cropped, rotated, output-sized NV21 frames into a preallocated memory-mapped file instead of encoding
+     * them on the fly, so capture keeps the full frame rate regardless of the encoder speed. A {@link SpoolEncoder}
+     * turns the spool into the output video on a background thread, either after {@link #stop()} or while capturing,
+     * and deletes it on success. Forces {@link FrameMode#YUV}, cannot be combined with instant replay. Must be called
+     * before {@link #start()}.
+     *
+     * @param capacity number of frames the spool can hold, later frames are dropped
+     */
+    public synchronized void setDeferredEncoding(final File spoolFile,
+                                                 final int capacity,
+                                                 final boolean encodeWhileCapturing,
+                                                 final SpoolEncoder.Listener listener) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.spoolFile = spoolFile;
+        this.spoolCapacity = capacity;
+        this.encodeWhileCapturing = encodeWhileCapturing;
+        this.spoolListener = listener;
+        frameMode = FrameMode.YUV;
+    }
+
+    /**
+     * Instant replay: keeps encoding but retains only the packets of the last {@code windowMicros} in memory, at most
+     * {@code maxBytes} plus the same again for the snapshot of a flush. Nothing is written until
+     * {@link #flushReplay(File)}. Forces {@link FrameMode#YUV}, cannot be combined with deferred encoding. Must be
+     * called before {@link #start()}.
+     */
+    public synchronized void setInstantReplay(final long windowMicros, final int maxBytes) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.replayWindowMicros = windowMicros;
+        this.replayMaxBytes = maxBytes;
+        frameMode = FrameMode.YUV;
+    }
+
+    /**
+     * Writes the current replay window, may be called from any thread without blocking the recording.
+     */
+    public void flushReplay(final File file) throws IOException {
+        final ReplayEncoder replayEncoder = this.replayEncoder;
+        if (replayEncoder == null) {
+            throw new IllegalStateException("Instant replay is not recording");
+        }
+        replayEncoder.flush(file);
+    }
+
+    /**
+     * @return true if the output file is never written, the replay window is only written by
+     * {@link #flushReplay(File)}
+     */
+    public synchronized boolean isInstantReplay() {
+        return replayWindowMicros > 0;
+    }
+
+    /**
+     * @return the encoder of the instant replay mode while recording, for its ring and flush latency
+     */
+    public ReplayEncoder getReplayEncoder() {
+        return replayEncoder;
+    }
+
+    /**
+     * Encodes an extra output from the frames of the main video: every frame is converted, cropped and rotated once
+     * at the largest side of all outputs and each rendition downscales it. A rendition has its own queue and
+     * encoder thread, so it only drops its own frames when it cannot keep up. Forces {@link FrameMode#YUV}, cannot
+     * be combined with deferred encoding or instant replay. Must be called before {@link #start()}.
+     */
+    public synchronized void addRendition(final Rendition rendition) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        renditions.add(rendition);
+        frameMode = FrameMode.YUV;
+    }
+
+    /**
+     * @return the encoders of the renditions while recording
+     */
+    public synchronized List<RenditionEncoder> getRenditionEncoders() {
+        return Collections.unmodifiableList(new ArrayList<>(renditionEncoders));
+    }
+
+    /**
+     * Records an audio track captured on its own thread and interleaved by the recording thread, when the encoder
+     * backend supports audio. Cannot be combined with deferred encoding or instant replay.
+     * Must be called before {@link #start()}.
+     */
+    public synchronized void setAudioSource(final AudioSource audioSource) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.audioSource = audioSource;
+    }
+
+    /**
+     * Streaming output: writes self-contained MP4 segments of about {@code segmentDurationMicros} and a playlist into
+     * {@link #getStreamDirectory()} instead of the output file, each readable as soon as the listener hears of it.
+     * A segment starts at the first frame after the duration once the encoder of the next one has been opened in the
+     * background, stopping finalises the last segment only. Cannot be combined with deferred encoding or instant
+     * replay. Must be called before {@link #start()}.
+     */
+    public synchronized void setStreamingOutput(final long segmentDurationMicros,
+                                                final StreamSegmenter.Listener listener) {
+        if (started || prepared) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.streamSegmentMicros = segmentDurationMicros;
+        this.streamListener = listener;
+    }
+
+    public synchronized boolean isStreamingOutput() {
+        return streamSegmentMicros > 0;
+    }
+
+    /**
+     * @return {@code video.stream} for {@code video.mp4}, a directory so the gallery does not list the segments
+     */
+    public File getStreamDirectory() {
+        final String name = outputVideoFile.getName();
+        final int dot = name.lastIndexOf('.');
+        final String base = dot < 0 ? name : name.substring(0, dot);
+        return new File(outputVideoFile.getParentFile(), base + ".stream");
+    }
+
+    /**
+     * @return the segmenter of the streaming output while recording, null otherwise
+     */
+    public synchronized StreamSegmenter getStreamSegmenter() {
+        return streamSegmenter;
+    }
+
+    /**
+     * @return the ring of the captured audio while recording, null without audio
+     */
+    public synchronized AudioSampleRing getAudioRing() {
+        return audioRing;
+    }
+
+    /**
+     * @return the encoder of the deferred mode, null until it has been started
+     */
+    public synchronized SpoolEncoder getSpoolEncoder() {
+        return spoolEncoder;
+    }
+
+    public synchronized void setMetricsListener(final RecordingMetrics.Listener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * @return the metrics of the current or last session, null before the first {@link #start()}
+     */
+    public synchronized RecordingMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void allocateImages() {
+        switch (frameMode) {
+            case FULL_FRAME:
+                if (fullFrameProcessor != null) {
+                    return;
+                }
+
+                if (conversionStripes != 1) {
+                    conversionExecutor = new StripeExecutor(conversionStripes);
+                }
+                fullFrameProcessor = new FullFrameProcessor(previewWidth,
+                        previewHeight,
+                        degree,
+                        mirror,
+                        conversionEngine,
+                        conversionExecutor);
+                break;
+            case FUSED:
+                if (outputImage != null) {
+                    return;
+                }
+
+                fusedKernel = new FusedBGRKernel(new SquareCropTransform(previewWidth,
+                        previewHeight,
+                        degree,
+                        mirror,
+                        encoderSettings.getOutputSide()));
+
+                outputImage = opencv_core.IplImage.create(encoderSettings.getOutputSide(),
+                        encoderSettings.getOutputSide(),
+                        IPL_DEPTH_8U,
+                        4);
+                break;
+            case YUV:
+                int masterSide = encoderSettings.getOutputSide();
+                for (final Rendition rendition : renditions) {
+                    masterSide = Math.max(masterSide, rendition.getSettings().getOutputSide());
+                }
+                if (outputImage != null && yuvKernel.getTransform().getOutputSide() == masterSide) {
+                    return;
+                }
+
+                yuvKernel = new YUVSquareKernel(new SquareCropTransform(previewWidth,
+                        previewHeight,
+                        degree,
+                        mirror,
+                        masterSide));
+                if (renditions.isEmpty()) {
+                    masterFrame = null;
+                    masterBuffer = null;
+                    primaryScaler = null;
+                } else {
+                    masterFrame = new byte[yuvKernel.getFrameSize()];
+                    masterBuffer = ByteBuffer.wrap(masterFrame);
+                    primaryScaler = new NV21Scaler(masterSide, encoderSettings.getOutputSide());
+                }
+
+                // 2 channels is how FFmpegFrameRecorder recognises NV21, only the first 1.5 bytes per pixel are used
+                outputImage = opencv_core.IplImage.create(encoderSettings.getOutputSide(),
+                        encoderSettings.getOutputSide(),
+                        IPL_DEPTH_8U,
+                        2);
+                break;
+        }
+    }
+
+    /**
+     * Allocates the frame buffers, starts the encoder, the spool and the renditions and opens the microphone without
+     * recording anything, so {@link #start()} only flips a flag and starts the audio capture. Takes as long as opening the codec and the
+     * container: call it on a background thread while the preview is shown, {@link #start()} prepares on its own
+     * otherwise. {@link #stop()} discards a recorder that has been prepared but not started, output included.
+     */
+    public synchronized void prepare() throws EncoderException {
+        if (started || prepared) {
+            return;
+        }
+
+        final long prepareStart = System.nanoTime();
+        encoderSettings = governor != null
+                ? governor.getCurrent()
+                : new EncoderSettings(false, 30, "ultrafast", outputSquareSideLength, 168000);
+
+        if (spoolFile != null && replayWindowMicros > 0) {
+            throw new IllegalStateException("Deferred encoding cannot be combined with instant replay");
+        }
+        if ((spoolFile != null || replayWindowMicros > 0) && frameMode != FrameMode.YUV) {
+            throw new IllegalStateException("Deferred encoding and instant replay need " + FrameMode.YUV);
+        }
+        if (!renditions.isEmpty() && (spoolFile != null || replayWindowMicros > 0 || frameMode != FrameMode.YUV)) {
+            throw new IllegalStateException("Renditions need live encoding in " + FrameMode.YUV);
+        }
+        if (audioSource != null && (spoolFile != null || replayWindowMicros > 0)) {
+            throw new IllegalStateException("Audio needs live encoding");
+        }
+        if (streamSegmentMicros > 0 && (spoolFile != null || replayWindowMicros > 0)) {
+            throw new IllegalStateException("Streaming output needs live encoding");
+        }
+        allocateImages();
+        posterFrame = new PosterFrame(encoderSettings.getOutputSide());
+
+        startRenditions();
+        if (spoolFile != null) {
+            spoolEncoder = null;
+            try {
+                spool = new FrameSpool(spoolFile, yuvKernel.getFrameSize(), spoolCapacity);
+            } catch (final IOException e) {
+                stopRenditions(renditionEncoders);
+                renditionEncoders.clear();
+                throw new EncoderException("Cannot create spool " + spoolFile, e);
+            }
+        } else if (replayWindowMicros > 0) {
+            final ReplayEncoder replayEncoder = new ReplayEncoder(replayMaxBytes,
+                    replayWindowMicros,
+                    encoderSettings.getFrameRate());
+            replayEncoder.start(outputVideoFile, encoderSettings);
+            encoder = replayEncoder;
+            this.replayEncoder = replayEncoder;
+        } else {
+            segmentFiles.clear();
+            try {
+                if (streamSegmentMicros > 0) {
+                    encoder = openStream();
+                } else {
+                    // the gallery only sees the output once the segments are joined, a single one is renamed
+                    final File firstSegment = getSegmentFile(0);
+                    encoder = startEncoder(firstSegment);
+                    segmentFiles.add(firstSegment);
+                }
+            } catch (final EncoderException e) {
+                stopRenditions(renditionEncoders);
+                renditionEncoders.clear();
+                throw e;
+            }
+            openAudio();
+        }
+
+        if (pipelineCapacity > 0) {
+            startPipeline();
+        }
+        prepared = true;
+        prepareMicros = (System.nanoTime() - prepareStart) / 1000;
+        LOGGER.info("Prepared in " + prepareMicros / 1000 + "ms");
+    }
+
+    /**
+     * Slots sized for the current preview.
+     */
+    private void startPipeline() {
+        final int frameSize = previewWidth * previewHeight * 3 / 2;
+        pipeline = new FramePipeline(new FrameRing(pipelineCapacity, frameSize, overflowPolicy),
+                new FramePipeline.FrameConsumer() {
+                    @Override
+                    public void onFrame(final byte[] bytes, final long timestamp) {
+                        recordFrame(bytes, timestamp);
+                    }
+                },
+                TAG + "-encoder");
+        pipeline.start();
+    }
+
+    /**
+     * Records from the next frame on, see {@link #prepare()}.
+     */
+    public synchronized void start() throws EncoderException {
+        if (started) {
+            return;
+        }
+
+        final long requestTime = System.nanoTime();
+        prepare();
+
+        startTime = System.nanoTime();
+        startRequestTime = requestTime;
+        segmentStartTime = startTime;
+        paused = false;
+        pausedNanos = 0;
+        lastRecordedTimestamp = 0;
+        retiredDroppedFrameCount = 0;
+        lastProgressTime = startTime;
+        metrics = new RecordingMetrics(encoderSettings.getFrameRate());
+        metrics.onStart(startTime);
+        metrics.setPrepareMicros(prepareMicros);
+        if (spool != null && encodeWhileCapturing) {
+            startSpoolEncoder();
+        }
+        startAudio();
+        prepared = false;
+        started = true;
+    }
+
+    /**
+     * @return true between {@link #prepare()} and {@link #start()}
+     */
+    public synchronized boolean isPrepared() {
+        return prepared;
+    }
+
+    public void stop() {
+        final FramePipeline pipeline;
+        synchronized (this) {
+            pipeline = this.pipeline;
+            this.pipeline = null;
+        }
+        if (pipeline != null) {
+            // lets the encoder thread finish the queued frames, it needs the lock to do so
+            pipeline.stop();
+            final FrameRing ring = pipeline.getRing();
+            LOGGER.info("queued=" + ring.getQueuedCount()
+                    + ", dropped=" + ring.getDroppedCount()
+                    + ", encoded=" + encodedFrameCount);
+        }
+
+        final List<RenditionEncoder> renditionEncoders;
+        final AudioCapture audioCapture;
+        synchronized (this) {
+            renditionEncoders = new ArrayList<>(this.renditionEncoders);
+            this.renditionEncoders.clear();
+            audioCapture = this.audioCapture;
+            this.audioCapture = null;
+        }
+        // each rendition drains its own queue in parallel with the others
+        stopRenditions(renditionEncoders);
+        if (audioCapture != null) {
+            // what has been captured so far is still in the ring
+            audioCapture.stop();
+        }
+
+        synchronized (this) {
+            cancelSourceSwitch();
+            if (prepared) {
+                discardPrepared();
+                return;
+            }
+            if (!started) {
+                return;
+            }
+            started = false;
+
+            if (replayEncoder == null) {
+                // before the spool encoder may delete the spool
+                writePosterFrame();
+            }
+
+            if (spool != null) {
+                spool.finish();
+                if (spoolEncoder == null) {
+                    startSpoolEncoder();
+                }
+            } else if (streamSegmenter != null) {
+                if (encoder != null) {
+                    drainAudio();
+                }
+                finishStream();
+                audioRing = null;
+            } else {
+                replayEncoder = null;
+                if (encoder != null) {
+                    drainAudio();
+                    stopEncoder();
+                }
+                finishSegments();
+                audioRing = null;
+                if (!segmentFiles.isEmpty()) {
+                    concatSegments();
+                }
+            }
+
+            metrics.setDroppedFrameCount(retiredDroppedFrameCount
+                    + (pipeline == null ? 0 : pipeline.getRing().getDroppedCount())
+                    + (spool == null ? 0 : spool.getOverflowCount()));
+            metrics.onStop(System.nanoTime());
+            try {
+                metrics.writeSummary(RecordingMetrics.getSummaryFile(outputVideoFile));
+            } catch (final IOException e) {
+                LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+            }
+            if (metricsListener != null) {
+                metricsListener.onFinished(metrics);
+            }
+
+            releaseFullFrame();
+        }
+    }
+
+    /**
+     * Releases what {@link #prepare()} set up and deletes the outputs, nothing has been recorded into them.
+     */
+    private void discardPrepared() {
+        prepared = false;
+        replayEncoder = null;
+        audioRing = null;
+        if (streamSegmenter != null) {
+            streamSegmenter.discard(encoder);
+            streamSegmenter = null;
+            encoder = null;
+        }
+        if (encoder != null) {
+            encoder.release();
+            encoder = null;
+        }
+        if (spool != null) {
+            try {
+                spool.delete();
+            } catch (final IOException e) {
+                LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+            }
+            spool = null;
+        }
+
+        deleteOutput(outputVideoFile);
+        for (final File segment : segmentFiles) {
+            deleteOutput(segment);
+        }
+        segmentFiles.clear();
+        for (final Rendition rendition : renditions) {
+            deleteOutput(rendition.getOutputFile());
+        }
+
+        releaseFullFrame();
+    }
+
+    /**
+     * The full frame buffers follow the preview size, the next recording allocates them again.
+     */
+    private void releaseFullFrame() {
+        if (fullFrameProcessor != null) {
+            fullFrameProcessor.release();
+            fullFrameProcessor = null;
+        }
+        if (conversionExecutor != null) {
+            conversionExecutor.shutdown();
+            conversionExecutor = null;
+        }
+    }
+
+    private static void deleteOutput(final File file) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warning("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Starts switching cameras while recording: the frames queued from the current camera are recorded, then its
+     * last frame is encoded again at the frame rate until the first frame after
+     * {@link #switchSource(int, int, int, boolean)}, so the encoders, the outputs and the timeline simply go on.
+     * Call it once the current camera delivers no more frames.
+     */
+    public void beginSourceSwitch() {
+        final FramePipeline pipeline;
+        synchronized (this) {
+            if (!started || bridging) {
+                return;
+            }
+            pipeline = this.pipeline;
+            this.pipeline = null;
+        }
+        if (pipeline != null) {
+            // its slots have the size of the current preview; the encoder thread needs the lock to finish them
+            pipeline.stop();
+        }
+
+        synchronized (this) {
+            if (pipeline != null) {
+                retiredDroppedFrameCount += pipeline.getRing().getDroppedCount();
+            }
+            if (!started) {
+                return;
+            }
+
+            bridging = true;
+            sourceSwitched = false;
+            switchFromTimestamp = lastRecordedTimestamp != 0 ? lastRecordedTimestamp : System.nanoTime();
+            final double frameRate = governor != null ? governor.getCurrent().getFrameRate()
+                    : encoderSettings.getFrameRate();
+            final long repeatInterval = (long) (1000000000L / frameRate);
+            repeatExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(runnable, TAG + "-repeat");
+                }
+            });
+            repeatExecutor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    repeatFrame();
+                }
+            }, repeatInterval, repeatInterval, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Swaps the crop, rotation and mirroring for the preview of the new camera, {@code degree} and {@code mirror} as
+     * in the constructor; the encoders and the output size stay as they are. The first frame passed to
+     * {@link #onPreviewFrame(byte[], long)} afterwards ends the repeat started by {@link #beginSourceSwitch()}.
+     */
+    public synchronized void switchSource(final int previewWidth,
+                                          final int previewHeight,
+                                          final int degree,
+                                          final boolean mirror) {
+        if (!started || !bridging) {
+            throw new IllegalStateException("No source switch in progress");
+        }
+
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.degree = degree;
+        this.mirror = mirror;
+        switch (frameMode) {
+            case FULL_FRAME:
+                if (retiredFullFrameProcessor == null) {
+                    retiredFullFrameProcessor = fullFrameProcessor;
+                } else {
+                    // switched again before a frame came, nothing has been recorded from this one
+                    fullFrameProcessor.release();
+                }
+                fullFrameProcessor = new FullFrameProcessor(previewWidth,
+                        previewHeight,
+                        degree,
+                        mirror,
+                        conversionEngine,
+                        conversionExecutor);
+                break;
+            case FUSED:
+                fusedKernel = new FusedBGRKernel(new SquareCropTransform(previewWidth,
+                        previewHeight,
+                        degree,
+                        mirror,
+                        encoderSettings.getOutputSide()));
+                break;
+            case YUV:
+                // the output image and the master frame keep the last frame for the repeat
+                yuvKernel = new YUVSquareKernel(new SquareCropTransform(previewWidth,
+                        previewHeight,
+                        degree,
+                        mirror,
+                        yuvKernel.getTransform().getOutputSide()));
+                break;
+        }
+
+        if (pipelineCapacity > 0 && pipeline == null) {
+            startPipeline();
+        }
+        sourceSwitched = true;
+    }
+
+    /**
+     * @return true between {@link #beginSourceSwitch()} and the first frame of the new camera
+     */
+    public synchronized boolean isSwitchingSource() {
+        return bridging;
+    }
+
+    /**
+     * Encodes the last frame again at the current time, on the repeat thread.
+     */
+    private synchronized void repeatFrame() {
+        if (!started || !bridging || paused || lastRecordedTimestamp == 0) {
+            return;
+        }
+
+        final long timestamp = System.nanoTime();
+        try {
+            if (spool != null) {
+                final ByteBuffer slot = spool.beginAppend((timestamp - startTime - pausedNanos) / 1000);
+                if (slot == null) {
+                    return;
+                }
+                spool.read(spool.getFrameCount() - 1, slot);
+                spool.commit();
+            } else {
+                if (streamSegmenter != null
+                        && timestamp - segmentStartTime >= streamSegmenter.getSegmentDurationNanos()) {
+                    rotateSegment(timestamp);
+                }
+                if (masterFrame != null) {
+                    for (final RenditionEncoder renditionEncoder : renditionEncoders) {
+                        renditionEncoder.offer(masterFrame, timestamp - startTime - pausedNanos);
+                    }
+                }
+                final long encoderTimestamp = replayEncoder != null
+                        ? timestamp - startTime - pausedNanos
+                        : timestamp - segmentStartTime;
+                final opencv_core.IplImage image = frameMode != FrameMode.FULL_FRAME
+                        ? outputImage
+                        : retiredFullFrameProcessor != null
+                        ? retiredFullFrameProcessor.getOutputImage()
+                        : fullFrameProcessor.getOutputImage();
+                encoder.encode(image, encoderTimestamp / 1000);
+                encodedFrameCount++;
+            }
+            lastRecordedTimestamp = timestamp;
+            metrics.onFrameRepeated();
+            drainAudio();
+        } catch (final Exception e) {
+            LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * @param timestamp of the first frame of the new camera
+     */
+    private void endSourceSwitch(final long timestamp) {
+        final long gapMicros = (timestamp - switchFromTimestamp) / 1000;
+        cancelSourceSwitch();
+        metrics.onSourceSwitched(gapMicros);
+        LOGGER.info("Switched the source in " + gapMicros / 1000 + "ms, "
+                + metrics.getRepeatedFrameCount() + " frames repeated so far");
+    }
+
+    private void cancelSourceSwitch() {
+        bridging = false;
+        sourceSwitched = false;
+        if (repeatExecutor != null) {
+            // a repeat waiting for the lock sees the flag and returns
+            repeatExecutor.shutdown();
+            repeatExecutor = null;
+        }
+        if (retiredFullFrameProcessor != null) {
+            retiredFullFrameProcessor.release();
+            retiredFullFrameProcessor = null;
+        }
+    }
+
+    /**
+     * Stops recording frames until {@link #resume()}. The current segment is finalised and the encoder of the next
+     * one opened in the background while the conversion buffers, threads and the frame pipeline stay alive;
+     * {@link #stop()} joins the segments by copying their packets. In the deferred and instant replay modes and in
+     * the renditions the timeline simply skips the pause.
+     */
+    public synchronized void pause() {
+        if (!started || paused) {
+            return;
+        }
+
+        paused = true;
+        pauseStartTime = System.nanoTime();
+        if (encoder == null || replayEncoder != null) {
+            return;
+        }
+
+        // the audio captured up to the pause goes into the closing segment
+        drainAudio();
+        if (streamSegmenter != null) {
+            streamSegmenter.close(encoder, (pauseStartTime - segmentStartTime) / 1000);
+            encoder = null;
+            return;
+        }
+        closeSegment(encoder);
+        encoder = null;
+        openNextSegment();
+    }
+
+    /**
+     * Continues in a new segment with the encoder settings of the recording, opened during the pause.
+     */
+    public synchronized void resume() throws EncoderException {
+        if (!started || !paused) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        if (streamSegmenter != null) {
+            encoder = streamSegmenter.takeNext();
+        } else if (spool == null && replayEncoder == null) {
+            encoder = takeNextSegment();
+        }
+        pausedNanos += now - pauseStartTime;
+        segmentStartTime = now;
+        paused = false;
+        // drops what was captured while paused
+        drainAudio();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    private VideoEncoder startEncoder(final File outputFile) throws EncoderException {
+        if (audioSource == null) {
+            return VideoEncoders.start(encoderFactories, outputFile, encoderSettings);
+        }
+        return VideoEncoders.start(encoderFactories,
+                outputFile,
+                encoderSettings,
+                audioSource.getSampleRate(),
+                audioSource.getChannelCount());
+    }
+
+    private void closeSegment(final VideoEncoder encoder) {
+        if (segmentExecutor == null) {
+            segmentExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(runnable, TAG + "-segments");
+                }
+            });
+        }
+        segmentExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long muxStart = System.nanoTime();
+                try {
+                    encoder.stop();
+                } catch (final EncoderException e) {
+                    LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+                } finally {
+                    encoder.release();
+                }
+                LOGGER.info("Finalised a segment in " + (System.nanoTime() - muxStart) / 1000000 + "ms");
+            }
+        });
+    }
+
+    private void openNextSegment() {
+        final File segment = getSegmentFile(segmentFiles.size());
+        nextSegment = segmentExecutor.submit(new Callable<VideoEncoder>() {
+            @Override
+            public VideoEncoder call() throws EncoderException {
+                // on the segment thread, the settings do not change while recording
+                return startEncoder(segment);
+            }
+        });
+    }
+
+    /**
+     * @return the encoder opened by {@link #openNextSegment()}, waits for it if needed
+     */
+    private VideoEncoder takeNextSegment() throws EncoderException {
+        final VideoEncoder encoder;
+        try {
+            encoder = nextSegment.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncoderException("Interrupted while opening segment " + segmentFiles.size());
+        } catch (final ExecutionException e) {
+            // still paused, the next resume tries again
+            openNextSegment();
+            throw new EncoderException("Cannot open segment " + segmentFiles.size(), e.getCause());
+        }
+        nextSegment = null;
+        segmentFiles.add(getSegmentFile(segmentFiles.size()));
+        return encoder;
+    }
+
+    /**
+     * Releases the encoder opened for a resume that did not come and waits for the segments being finalised.
+     */
+    private void finishSegments() {
+        if (segmentExecutor == null) {
+            return;
+        }
+
+        if (nextSegment != null) {
+            final Future<VideoEncoder> next = nextSegment;
+            final File file = getSegmentFile(segmentFiles.size());
+            nextSegment = null;
+            segmentExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        next.get().release();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (final ExecutionException e) {
+                        // never opened
+                    }
+                    deleteOutput(file);
+                }
+            });
+        }
+        segmentExecutor.shutdown();
+        try {
+            while (!segmentExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOGGER.info("Waiting for the segments to be finalised");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segmentExecutor = null;
+    }
+
+    private VideoEncoder openStream() throws EncoderException {
+        streamSegmenter = new StreamSegmenter(getStreamDirectory(), streamSegmentMicros, streamListener);
+        return streamSegmenter.open(new StreamSegmenter.EncoderStarter() {
+            @Override
+            public VideoEncoder start(final File outputFile) throws EncoderException {
+                // on the segmenter thread, the settings do not change while recording
+                return startEncoder(outputFile);
+            }
+        });
+    }
+
+    /**
+     * Continues in the next segment if its encoder is ready, the frame at {@code timestamp} is its first.
+     */
+    private void rotateSegment(final long timestamp) throws EncoderException {
+        if (!streamSegmenter.isNextReady()) {
+            return;
+        }
+
+        drainAudio(timestamp);
+        encoder = streamSegmenter.rotate(encoder, (timestamp - segmentStartTime) / 1000);
+        segmentStartTime = timestamp;
+    }
+
+    private void finishStream() {
+        final long muxStart = System.nanoTime();
+        long durationMicros = 0;
+        if (encoder != null && lastRecordedTimestamp >= segmentStartTime) {
+            durationMicros = (lastRecordedTimestamp - segmentStartTime) / 1000
+                    + (long) (1000000 / encoderSettings.getFrameRate());
+        }
+        streamSegmenter.finish(encoder, durationMicros);
+        streamSegmenter = null;
+        encoder = null;
+        metrics.record(RecordingMetrics.Stage.MUX, (System.nanoTime() - muxStart) / 1000);
+        LOGGER.info("Finalised the stream in " + (System.nanoTime() - muxStart) / 1000000 + "ms");
+    }
+
+    /**
+     * Acquires the microphone without capturing, so it only goes live in {@link #start()}.
+     */
+    private void openAudio() {
+        audioRing = null;
+        if (audioSource == null) {
+            return;
+        }
+        if (!encoder.supportsAudio()) {
+            LOGGER.warning("Encoder " + encoder.getName() + " has no audio, recording video only");
+            return;
+        }
+
+        audioCapture = new AudioCapture(audioSource, AUDIO_BUFFER_COUNT, AUDIO_FRAMES_PER_BUFFER);
+        try {
+            audioCapture.open();
+        } catch (final IOException e) {
+            // the track stays empty, losing the sound is better than losing the video
+            LOGGER.log(Level.WARNING, "Cannot open the audio capture", e);
+            audioSource.release();
+            audioCapture = null;
+        }
+    }
+
+    private void startAudio() {
+        if (audioCapture == null) {
+            return;
+        }
+        try {
+            audioCapture.start();
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot start the audio capture", e);
+            audioSource.release();
+            audioCapture = null;
+            return;
+        }
+        audioRing = audioCapture.getRing();
+    }
+
+    /**
+     * Encodes the captured audio of the current segment, buffers captured before it are dropped.
+     */
+    private void drainAudio() {
+        drainAudio(Long.MAX_VALUE);
+    }
+
+    /**
+     * @param end buffers captured from then on stay in the ring, for the next segment
+     */
+    private void drainAudio(final long end) {
+        if (audioRing == null) {
+            return;
+        }
+
+        short[] samples;
+        while ((samples = audioRing.peek()) != null) {
+            final long timestamp = audioRing.getTimestamp();
+            if (timestamp >= end) {
+                return;
+            }
+            try {
+                if (timestamp >= segmentStartTime && encoder.supportsAudio()) {
+                    encoder.encodeAudio(samples, audioRing.getLength(), (timestamp - segmentStartTime) / 1000);
+                }
+            } catch (final EncoderException e) {
+                LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+            } finally {
+                audioRing.release();
+            }
+        }
+    }
+
+    private void stopEncoder() {
+        try {
+            final long muxStart = System.nanoTime();
+            encoder.stop();
+            metrics.record(RecordingMetrics.Stage.MUX, (System.nanoTime() - muxStart) / 1000);
+        } catch (EncoderException e) {
+            LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+        } finally {
+            encoder.release();
+            encoder = null;
+        }
+    }
+
+    private void concatSegments() {
+        final long concatStart = System.nanoTime();
+        try {
+            SegmentConcatenator.concat(segmentFiles, outputVideoFile);
+            for (final File segment : segmentFiles) {
+                if (segment.exists() && !segment.delete()) {
+                    LOGGER.warning("Cannot delete " + segment);
+                }
+            }
+        } catch (final IOException e) {
+            // the segments are kept so nothing is lost
+            LOGGER.log(Level.WARNING, "Cannot concatenate " + segmentFiles, e);
+        }
+        metrics.record(RecordingMetrics.Stage.MUX, (System.nanoTime() - concatStart) / 1000);
+        LOGGER.info("Concatenated " + segmentFiles.size() + " segments in "
+                + (System.nanoTime() - concatStart) / 1000000 + "ms");
+        segmentFiles.clear();
+    }
+
+    /**
+     * @return {@code video.segment1} for {@code video.mp4}, not an {@code .mp4} so the gallery ignores it
+     */
+    private File getSegmentFile(final int index) {
+        final String name = outputVideoFile.getName();
+        final int dot = name.lastIndexOf('.');
+        final String base = dot < 0 ? name : name.substring(0, dot);
+        return new File(outputVideoFile.getParentFile(), base + ".segment" + index);
+    }
+
+    private void writePosterFrame() {
+        if (!posterFrame.isCaptured() && lastRecordedTimestamp != 0) {
+            if (spool != null) {
+                spool.read(spool.getFrameCount() - 1, outputImage.getByteBuffer());
+            }
+            capturePosterFrame(outputImage != null ? outputImage : fullFrameProcessor.getOutputImage());
+        }
+        if (!posterFrame.isCaptured()) {
+            return;
+        }
+
+        try {
+            posterFrame.write(PosterFrame.getPosterFile(outputVideoFile));
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+        }
+    }
+
+    private void capturePosterFrame(final opencv_core.IplImage image) {
+        if (image.nChannels() == 2) {
+            posterFrame.captureNV21(image.getByteBuffer(), image.width());
+        } else {
+            posterFrame.capturePacked(image.getIntBuffer(), image.width());
+        }
+    }
+
+    /**
+     * @return the poster written beside the video when the recording stopped, null if there is none
+     */
+    public File getPosterFile() {
+        final File posterFile = PosterFrame.getPosterFile(outputVideoFile);
+        return posterFile.exists() ? posterFile : null;
+    }
+
+    private void startRenditions() throws EncoderException {
+        renditionEncoders.clear();
+        for (final Rendition rendition : renditions) {
+            final RenditionEncoder renditionEncoder = new RenditionEncoder(rendition,
+                    yuvKernel.getTransform().getOutputSide());
+            try {
+                renditionEncoder.start(encoderFactories);
+            } catch (final EncoderException e) {
+                stopRenditions(renditionEncoders);
+                renditionEncoders.clear();
+                throw e;
+            }
+            renditionEncoders.add(renditionEncoder);
+        }
+    }
+
+    private static void stopRenditions(final List<RenditionEncoder> renditionEncoders) {
+        for (final RenditionEncoder renditionEncoder : renditionEncoders) {
+            renditionEncoder.stop();
+        }
+    }
+
+    private void startSpoolEncoder() {
+        spoolEncoder = new SpoolEncoder(spool,
+                outputVideoFile,
+                encoderSettings,
+                encoderFactories,
+                governor,
+                spoolListener);
+        spoolEncoder.start();
+    }
+
+    public void onPreviewFrame(final byte[] bytes) {
+        onPreviewFrame(bytes, System.nanoTime());
+    }
+
+    /**
+     * @param timestamp capture time in {@link System#nanoTime()} nanoseconds
+     */
+    public void onPreviewFrame(final byte[] bytes, final long timestamp) {
+        final FramePipeline pipeline = this.pipeline;
+        if (pipeline != null) {
+            pipeline.offer(bytes, timestamp);
+        } else {
+            recordFrame(bytes, timestamp);
+        }
+    }
+
+    /**
+     * @param timestamp capture time in {@link System#nanoTime()} nanoseconds
+     */
+    private synchronized void recordFrame(final byte[] bytes, final long timestamp) {
+        if (!started || paused || timestamp < segmentStartTime) {
+            return;
+        }
+
+        if (bridging) {
+            if (!sourceSwitched || timestamp <= lastRecordedTimestamp) {
+                // a late frame of the previous camera, or not after the repeated ones
+                return;
+            }
+            endSourceSwitch(timestamp);
+        }
+
+        if (spool != null) {
+            spoolFrame(bytes, timestamp);
+            return;
+        }
+
+        if (governor != null && shouldSkip(timestamp)) {
+            metrics.onFrameSkipped();
+            return;
+        }
+
+        try {
+            final long processStart = System.nanoTime();
+            final opencv_core.IplImage image;
+            switch (frameMode) {
+                case YUV:
+                    if (masterFrame != null) {
+                        yuvKernel.process(bytes, masterBuffer);
+                        primaryScaler.scale(masterFrame, outputImage.getByteBuffer());
+                        final long masterTimestamp = timestamp - startTime - pausedNanos;
+                        for (final RenditionEncoder renditionEncoder : renditionEncoders) {
+                            renditionEncoder.offer(masterFrame, masterTimestamp);
+                        }
+                    } else {
+                        yuvKernel.process(bytes, outputImage.getByteBuffer());
+                    }
+                    image = outputImage;
+                    metrics.record(RecordingMetrics.Stage.CONVERT, (System.nanoTime() - processStart) / 1000);
+                    break;
+                case FUSED:
+                    fusedKernel.process(bytes, outputImage.getIntBuffer());
+                    image = outputImage;
+                    metrics.record(RecordingMetrics.Stage.CONVERT, (System.nanoTime() - processStart) / 1000);
+                    break;
+                default:
+                    fullFrameProcessor.convert(bytes);
+                    final long cropStart = System.nanoTime();
+                    metrics.record(RecordingMetrics.Stage.CONVERT, (cropStart - processStart) / 1000);
+                    fullFrameProcessor.crop();
+                    final long rotateStart = System.nanoTime();
+                    metrics.record(RecordingMetrics.Stage.CROP, (rotateStart - cropStart) / 1000);
+                    fullFrameProcessor.rotate();
+                    image = fullFrameProcessor.getOutputImage();
+                    metrics.record(RecordingMetrics.Stage.ROTATE, (System.nanoTime() - rotateStart) / 1000);
+                    break;
+            }
+
+            if (!posterFrame.isCaptured() && timestamp - startTime >= POSTER_DELAY_NANOS) {
+                capturePosterFrame(image);
+            }
+
+            if (streamSegmenter != null
+                    && timestamp - segmentStartTime >= streamSegmenter.getSegmentDurationNanos()) {
+                rotateSegment(timestamp);
+            }
+
+            final long encodeStart = System.nanoTime();
+            final long encoderTimestamp = replayEncoder != null
+                    ? timestamp - startTime - pausedNanos
+                    : timestamp - segmentStartTime;
+            final boolean corrected = !encoder.encode(image, encoderTimestamp / 1000);
+            final long encodeEnd = System.nanoTime();
+            encodedFrameCount++;
+            if (lastRecordedTimestamp == 0) {
+                metrics.setTimeToFirstFrameMicros((encodeEnd - startRequestTime) / 1000);
+            }
+            lastRecordedTimestamp = timestamp;
+            drainAudio();
+
+            if (governor != null) {
+                final FramePipeline pipeline = this.pipeline;
+                governor.onFrameRecorded((encodeEnd - processStart) / 1000,
+                        pipeline == null ? 0 : pipeline.getRing().size(),
+                        pipeline == null ? 0 : pipeline.getRing().getCapacity());
+            }
+
+            metrics.record(RecordingMetrics.Stage.ENCODE, (encodeEnd - encodeStart) / 1000);
+            metrics.onFrameRecorded((encodeEnd - timestamp) / 1000, corrected);
+            if (metricsListener != null && encodeEnd - lastProgressTime >= 1000000000L) {
+                lastProgressTime = encodeEnd;
+                final FramePipeline pipeline = this.pipeline;
+                if (pipeline != null) {
+                    metrics.setDroppedFrameCount(retiredDroppedFrameCount + pipeline.getRing().getDroppedCount());
+                }
+                metricsListener.onProgress(metrics);
+            }
+        } catch (final Exception e) {
+            LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+        }
+    }
+
+    private void spoolFrame(final byte[] bytes, final long timestamp) {
+        final long processStart = System.nanoTime();
+        final ByteBuffer slot = spool.beginAppend((timestamp - startTime - pausedNanos) / 1000);
+        if (slot == null) {
+            return;
+        }
+
+        yuvKernel.process(bytes, slot);
+        if (!posterFrame.isCaptured() && timestamp - startTime >= POSTER_DELAY_NANOS) {
+            posterFrame.captureNV21(slot, yuvKernel.getTransform().getOutputSide());
+        }
+        spool.commit();
+        final long processEnd = System.nanoTime();
+        if (lastRecordedTimestamp == 0) {
+            metrics.setTimeToFirstFrameMicros((processEnd - startRequestTime) / 1000);
+        }
+        lastRecordedTimestamp = timestamp;
+
+        metrics.record(RecordingMetrics.Stage.CONVERT, (processEnd - processStart) / 1000);
+        metrics.onFrameRecorded((processEnd - timestamp) / 1000, false);
+    }
+
+    private boolean shouldSkip(final long timestamp) {
+        final EncoderSettings current = governor.getCurrent();
+        final FramePipeline pipeline = this.pipeline;
+        if (current.isSkipLateFrames() && pipeline != null && pipeline.getRing().size() > 0) {
+            return true;
+        }
+
+        // 10% slack so a camera running at exactly the target rate is not decimated by jitter
+        final long minInterval = (long) (900000000L / current.getFrameRate());
+        return lastRecordedTimestamp != 0 && timestamp - lastRecordedTimestamp < minInterval;
+    }
+}
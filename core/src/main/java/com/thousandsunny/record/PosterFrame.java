@@ -0,0 +1,124 @@
+package com.thousandsunny.record;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Still frame of a recording in the processed output resolution, written beside the video as an uncompressed
+ * 24-bit BMP so it can be decoded by {@code BitmapFactory} as well as on the desktop without a codec.
+ */
+public class PosterFrame {
+    public static final String EXTENSION = ".poster.bmp";
+
+    private static final int BMP_HEADER_SIZE = 54;
+
+    private final int side;
+
+    /**
+     * Same packed layout as {@link ColorConversion#toPackedBGR(int, int, int)}.
+     */
+    private final int[] pixels;
+
+    private boolean captured;
+
+    public PosterFrame(final int side) {
+        this.side = side;
+        pixels = new int[side * side];
+    }
+
+    public int getSide() {
+        return side;
+    }
+
+    public boolean isCaptured() {
+        return captured;
+    }
+
+    /**
+     * @param nv21 a {@code frameSide x frameSide} NV21 frame, read from position 0
+     */
+    public void captureNV21(final ByteBuffer nv21, final int frameSide) {
+        final int frameSize = frameSide * frameSide;
+        for (int y = 0; y < side; ++y) {
+            final int sourceY = y * frameSide / side;
+            final int chromaRow = frameSize + (sourceY >> 1) * frameSide;
+            for (int x = 0; x < side; ++x) {
+                final int sourceX = x * frameSide / side;
+                final int chroma = chromaRow + (sourceX & ~1);
+                pixels[y * side + x] = ColorConversion.toPackedBGR(nv21.get(sourceY * frameSide + sourceX) & 0xff,
+                        nv21.get(chroma) & 0xff,
+                        nv21.get(chroma + 1) & 0xff);
+            }
+        }
+        captured = true;
+    }
+
+    /**
+     * @param packed a {@code frameSide x frameSide} 4-channel image, read from position 0
+     */
+    public void capturePacked(final IntBuffer packed, final int frameSide) {
+        for (int y = 0; y < side; ++y) {
+            final int sourceRow = y * frameSide / side * frameSide;
+            for (int x = 0; x < side; ++x) {
+                pixels[y * side + x] = packed.get(sourceRow + x * frameSide / side);
+            }
+        }
+        captured = true;
+    }
+
+    public void write(final File file) throws IOException {
+        final int rowSize = (side * 3 + 3) & ~3;
+        final int imageSize = rowSize * side;
+        final byte[] row = new byte[rowSize];
+
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(BMP_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'B').put((byte) 'M')
+                    .putInt(BMP_HEADER_SIZE + imageSize)
+                    .putInt(0)
+                    .putInt(BMP_HEADER_SIZE)
+                    .putInt(40)
+                    .putInt(side)
+                    .putInt(side)
+                    .putShort((short) 1)
+                    .putShort((short) 24)
+                    .putInt(0)
+                    .putInt(imageSize)
+                    .putInt(2835)
+                    .putInt(2835)
+                    .putInt(0)
+                    .putInt(0);
+            out.write(header.array());
+
+            // bottom-up rows of blue, green, red
+            for (int y = side - 1; y >= 0; --y) {
+                for (int x = 0; x < side; ++x) {
+                    final int pixel = pixels[y * side + x];
+                    row[3 * x] = (byte) (pixel >> 16);
+                    row[3 * x + 1] = (byte) (pixel >> 8);
+                    row[3 * x + 2] = (byte) pixel;
+                }
+                out.write(row);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return {@code video.poster.bmp} for {@code video.mp4}
+     */
+    public static File getPosterFile(final File videoFile) {
+        final String name = videoFile.getName();
+        final int dot = name.lastIndexOf('.');
+        final String base = dot < 0 ? name : name.substring(0, dot);
+        return new File(videoFile.getParentFile(), base + EXTENSION);
+    }
+}
@@ -0,0 +1,95 @@
+package com.thousandsunny.record;
+
+/**
+ * Preview size, frame rate range and pixel format the camera is set up with, chosen by
+ * {@link PreviewConfigurations#choose}.
+ */
+public class PreviewConfiguration {
+    private final int width;
+
+    private final int height;
+
+    private final int minFps;
+
+    private final int maxFps;
+
+    private final int format;
+
+    /**
+     * @param minFps frames per second times 1000, as the camera reports its ranges
+     * @param maxFps frames per second times 1000
+     * @param format one of the {@code FrameDump.FORMAT_*} constants, which match Android's image formats
+     */
+    public PreviewConfiguration(final int width,
+                                final int height,
+                                final int minFps,
+                                final int maxFps,
+                                final int format) {
+        this.width = width;
+        this.height = height;
+        this.minFps = minFps;
+        this.maxFps = maxFps;
+        this.format = format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMinFps() {
+        return minFps;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * @return bytes of one preview frame
+     */
+    public int getFrameSize() {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * @return the inverse of {@link #parse(String)}
+     */
+    public String format() {
+        return width + "x" + height + "@" + minFps + "-" + maxFps + "/" + format;
+    }
+
+    /**
+     * @return null if the value is not in the form written by {@link #format()}
+     */
+    public static PreviewConfiguration parse(final String value) {
+        if (value == null) {
+            return null;
+        }
+        final String[] parts = value.split("[x@/-]");
+        if (parts.length != 5) {
+            return null;
+        }
+        try {
+            return new PreviewConfiguration(Integer.parseInt(parts[0]),
+                    Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]),
+                    Integer.parseInt(parts[3]),
+                    Integer.parseInt(parts[4]));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "/" + (minFps / 1000.0) + "-" + (maxFps / 1000.0) + "fps/" + format;
+    }
+}
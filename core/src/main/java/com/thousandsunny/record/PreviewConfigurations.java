@@ -0,0 +1,86 @@
+package com.thousandsunny.record;
+
+import java.util.List;
+
+public final class PreviewConfigurations {
+    private PreviewConfigurations() {
+    }
+
+    /**
+     * Picks the cheapest preview that still covers the output square: the smallest size whose shorter side is at
+     * least {@code requiredSide}, the closer to square of two equal areas since the crop throws the rest away. Falls
+     * back to the largest size if none covers it. The frame rate range is the one reaching {@code frameRate} with
+     * the lowest maximum, of those the one with the highest minimum for an even frame cadence.
+     *
+     * @param sizes        {width, height} pairs the camera supports
+     * @param fpsRanges    {min, max} frames per second times 1000
+     * @param formats      preview formats the camera supports
+     * @param requiredSide largest output square the recording renders, the rendition included
+     * @throws IllegalArgumentException if the camera cannot deliver {@link FrameDump#FORMAT_NV21}, the only format
+     *                                  the recorder converts, or reports no size or frame rate
+     */
+    public static PreviewConfiguration choose(final List<int[]> sizes,
+                                              final List<int[]> fpsRanges,
+                                              final List<Integer> formats,
+                                              final int requiredSide,
+                                              final double frameRate) {
+        if (!formats.contains(FrameDump.FORMAT_NV21)) {
+            throw new IllegalArgumentException("NV21 previews not supported, formats=" + formats);
+        }
+        if (sizes.isEmpty() || fpsRanges.isEmpty()) {
+            throw new IllegalArgumentException("No preview size or frame rate range");
+        }
+
+        int[] best = null;
+        int[] largest = null;
+        for (final int[] size : sizes) {
+            if (largest == null || area(size) > area(largest)) {
+                largest = size;
+            }
+            if (Math.min(size[0], size[1]) < requiredSide) {
+                continue;
+            }
+            if (best == null
+                    || area(size) < area(best)
+                    || area(size) == area(best) && aspect(size) < aspect(best)) {
+                best = size;
+            }
+        }
+        if (best == null) {
+            best = largest;
+        }
+
+        final int requiredFps = (int) (frameRate * 1000);
+        int[] bestRange = null;
+        int[] fastestRange = null;
+        for (final int[] range : fpsRanges) {
+            if (fastestRange == null || range[1] > fastestRange[1]) {
+                fastestRange = range;
+            }
+            if (range[1] < requiredFps) {
+                continue;
+            }
+            if (bestRange == null
+                    || range[1] < bestRange[1]
+                    || range[1] == bestRange[1] && range[0] > bestRange[0]) {
+                bestRange = range;
+            }
+        }
+        if (bestRange == null) {
+            bestRange = fastestRange;
+        }
+
+        return new PreviewConfiguration(best[0], best[1], bestRange[0], bestRange[1], FrameDump.FORMAT_NV21);
+    }
+
+    private static long area(final int[] size) {
+        return (long) size[0] * size[1];
+    }
+
+    /**
+     * @return 1 for a square, larger the longer the rectangle
+     */
+    private static double aspect(final int[] size) {
+        return (double) Math.max(size[0], size[1]) / Math.min(size[0], size[1]);
+    }
+}
@@ -0,0 +1,265 @@
+package com.thousandsunny.record;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Timing of one recording session. Stage histograms are written by the recording thread only,
+ * readers such as {@link Listener}s may observe a snapshot that is a frame behind.
+ */
+public class RecordingMetrics {
+    public enum Stage {
+        /**
+         * Colour conversion; in the single-pass modes it also covers crop and rotation.
+         */
+        CONVERT,
+        CROP,
+        ROTATE,
+        /**
+         * {@code record()} of the encoder, which encodes and writes the packet.
+         */
+        ENCODE,
+        /**
+         * Finalising the container when the recording pauses or stops, and joining the segments of a paused one.
+         */
+        MUX,
+        /**
+         * From the camera callback until the encoder returned.
+         */
+        FRAME_LATENCY
+    }
+
+    public interface Listener {
+        /**
+         * Called on the recording thread about once per second, must not block.
+         */
+        void onProgress(RecordingMetrics metrics);
+
+        void onFinished(RecordingMetrics metrics);
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+
+    private final long frameIntervalMicros;
+
+    private long startNanos;
+
+    private long stopNanos;
+
+    private long recordedFrameCount;
+
+    private long droppedFrameCount;
+
+    private long lateFrameCount;
+
+    private long skippedFrameCount;
+
+    private long timestampCorrectionCount;
+
+    private long prepareMicros;
+
+    private long timeToFirstFrameMicros = -1;
+
+    private long repeatedFrameCount;
+
+    private long sourceSwitchCount;
+
+    private long maxSourceSwitchGapMicros;
+
+    public RecordingMetrics(final double frameRate) {
+        frameIntervalMicros = (long) (1000000 / frameRate);
+        for (int i = 0; i < histograms.length; ++i) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public void onStart(final long nanos) {
+        startNanos = nanos;
+        stopNanos = 0;
+    }
+
+    public void onStop(final long nanos) {
+        stopNanos = nanos;
+    }
+
+    public void record(final Stage stage, final long micros) {
+        histograms[stage.ordinal()].record(micros);
+    }
+
+    /**
+     * @param latencyMicros time since the frame was captured
+     * @param corrected     the frame timestamp was not ahead of the encoder and has been bumped by it
+     */
+    public void onFrameRecorded(final long latencyMicros, final boolean corrected) {
+        recordedFrameCount++;
+        histograms[Stage.FRAME_LATENCY.ordinal()].record(latencyMicros);
+        if (latencyMicros > frameIntervalMicros) {
+            lateFrameCount++;
+        }
+        if (corrected) {
+            timestampCorrectionCount++;
+        }
+    }
+
+    /**
+     * A frame reached the recording thread but was not encoded, to keep up with the frame budget.
+     */
+    public void onFrameSkipped() {
+        skippedFrameCount++;
+    }
+
+    /**
+     * The last frame was encoded again to bridge a camera switch.
+     */
+    public void onFrameRepeated() {
+        repeatedFrameCount++;
+    }
+
+    /**
+     * @param gapMicros from the last frame of the previous camera to the first of the new one
+     */
+    public void onSourceSwitched(final long gapMicros) {
+        sourceSwitchCount++;
+        maxSourceSwitchGapMicros = Math.max(maxSourceSwitchGapMicros, gapMicros);
+    }
+
+    public void setDroppedFrameCount(final long droppedFrameCount) {
+        this.droppedFrameCount = droppedFrameCount;
+    }
+
+    /**
+     * @param prepareMicros time spent opening the encoder and allocating buffers, before or at the start
+     */
+    public void setPrepareMicros(final long prepareMicros) {
+        this.prepareMicros = prepareMicros;
+    }
+
+    /**
+     * @param timeToFirstFrameMicros from the start request until the first frame was recorded
+     */
+    public void setTimeToFirstFrameMicros(final long timeToFirstFrameMicros) {
+        this.timeToFirstFrameMicros = timeToFirstFrameMicros;
+    }
+
+    public LatencyHistogram getHistogram(final Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public long getRecordedFrameCount() {
+        return recordedFrameCount;
+    }
+
+    public long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    public long getSkippedFrameCount() {
+        return skippedFrameCount;
+    }
+
+    public long getLateFrameCount() {
+        return lateFrameCount;
+    }
+
+    public long getTimestampCorrectionCount() {
+        return timestampCorrectionCount;
+    }
+
+    public long getRepeatedFrameCount() {
+        return repeatedFrameCount;
+    }
+
+    public long getSourceSwitchCount() {
+        return sourceSwitchCount;
+    }
+
+    public long getMaxSourceSwitchGapMicros() {
+        return maxSourceSwitchGapMicros;
+    }
+
+    public long getPrepareMicros() {
+        return prepareMicros;
+    }
+
+    /**
+     * @return -1 until a frame has been recorded
+     */
+    public long getTimeToFirstFrameMicros() {
+        return timeToFirstFrameMicros;
+    }
+
+    public long getDurationMicros(final long nowNanos) {
+        return ((stopNanos == 0 ? nowNanos : stopNanos) - startNanos) / 1000;
+    }
+
+    public double getEffectiveFrameRate(final long nowNanos) {
+        final long duration = getDurationMicros(nowNanos);
+        return duration <= 0 ? 0 : recordedFrameCount * 1000000.0 / duration;
+    }
+
+    public void writeSummary(final File file) throws IOException {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        try {
+            writer.write(toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+    public String toJson() {
+        final long now = System.nanoTime();
+        final StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"durationMicros\": ").append(getDurationMicros(now)).append(",\n");
+        json.append("  \"effectiveFps\": ").append(String.format(Locale.US, "%.2f", getEffectiveFrameRate(now))).append(",\n");
+        json.append("  \"recordedFrames\": ").append(recordedFrameCount).append(",\n");
+        json.append("  \"droppedFrames\": ").append(droppedFrameCount).append(",\n");
+        json.append("  \"skippedFrames\": ").append(skippedFrameCount).append(",\n");
+        json.append("  \"lateFrames\": ").append(lateFrameCount).append(",\n");
+        json.append("  \"timestampCorrections\": ").append(timestampCorrectionCount).append(",\n");
+        json.append("  \"prepareMicros\": ").append(prepareMicros).append(",\n");
+        json.append("  \"timeToFirstFrameMicros\": ").append(timeToFirstFrameMicros).append(",\n");
+        json.append("  \"repeatedFrames\": ").append(repeatedFrameCount).append(",\n");
+        json.append("  \"sourceSwitches\": ").append(sourceSwitchCount).append(",\n");
+        json.append("  \"maxSourceSwitchGapMicros\": ").append(maxSourceSwitchGapMicros).append(",\n");
+        json.append("  \"stages\": {\n");
+        for (int i = 0; i < STAGES.length; ++i) {
+            final LatencyHistogram histogram = histograms[i];
+            json.append("    \"").append(STAGES[i].name()).append("\": {")
+                    .append("\"count\": ").append(histogram.getCount())
+                    .append(", \"meanMicros\": ").append(histogram.getMean())
+                    .append(", \"p50Micros\": ").append(histogram.getPercentile(50))
+                    .append(", \"p95Micros\": ").append(histogram.getPercentile(95))
+                    .append(", \"p99Micros\": ").append(histogram.getPercentile(99))
+                    .append(", \"maxMicros\": ").append(histogram.getMax())
+                    .append(", \"buckets\": [");
+            for (int j = 0; j < LatencyHistogram.BUCKET_COUNT; ++j) {
+                if (j > 0) {
+                    json.append(", ");
+                }
+                json.append(histogram.getBucketCount(j));
+            }
+            json.append("]}").append(i < STAGES.length - 1 ? ",\n" : "\n");
+        }
+        json.append("  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * @return {@code video.metrics.json} for {@code video.mp4}
+     */
+    public static File getSummaryFile(final File videoFile) {
+        final String name = videoFile.getName();
+        final int dot = name.lastIndexOf('.');
+        final String base = dot < 0 ? name : name.substring(0, dot);
+        return new File(videoFile.getParentFile(), base + ".metrics.json");
+    }
+}
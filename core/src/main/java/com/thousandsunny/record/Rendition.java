@@ -0,0 +1,52 @@
+package com.thousandsunny.record;
+
+import java.io.File;
+
+/**
+ * An extra output of {@link OpenCVRecorder}, encoded from the same cropped and rotated frames as the main video.
+ */
+public class Rendition {
+    private final File outputFile;
+
+    private final EncoderSettings settings;
+
+    private final int queueCapacity;
+
+    private final FrameRing.OverflowPolicy overflowPolicy;
+
+    /**
+     * @param queueCapacity  frames waiting for this rendition's encoder thread, at least 2
+     * @param overflowPolicy what happens to a frame when this rendition's queue is full, {@link
+     *                       FrameRing.OverflowPolicy#BLOCK} stalls the main recording and the other renditions
+     */
+    public Rendition(final File outputFile,
+                     final EncoderSettings settings,
+                     final int queueCapacity,
+                     final FrameRing.OverflowPolicy overflowPolicy) {
+        this.outputFile = outputFile;
+        this.settings = settings;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public EncoderSettings getSettings() {
+        return settings;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public FrameRing.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @Override
+    public String toString() {
+        return outputFile.getName() + "@" + settings;
+    }
+}
@@ -0,0 +1,118 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+
+/**
+ * Encodes one {@link Rendition} on its own thread. Frames arrive already cropped and rotated at the master side of
+ * the recording and are queued in the rendition's own {@link FrameRing}, so a slow encoder only drops its own
+ * frames; they are decimated to the rendition's frame rate and downscaled on its thread.
+ */
+public class RenditionEncoder implements FramePipeline.FrameConsumer {
+    private static final Logger LOGGER = Logger.getLogger(RenditionEncoder.class.getSimpleName());
+
+    private final Rendition rendition;
+
+    private final NV21Scaler scaler;
+
+    private final opencv_core.IplImage image;
+
+    private final FramePipeline pipeline;
+
+    private final long minIntervalNanos;
+
+    private VideoEncoder encoder;
+
+    private long lastEncodedTimestamp = -1;
+
+    private volatile long encodedFrameCount;
+
+    /**
+     * @param masterSide side of the NV21 frames handed to {@link #offer(byte[], long)}
+     */
+    public RenditionEncoder(final Rendition rendition, final int masterSide) {
+        this.rendition = rendition;
+        final int side = rendition.getSettings().getOutputSide();
+        scaler = new NV21Scaler(masterSide, side);
+        // 2 channels is how FFmpegFrameRecorder recognises NV21, only the first 1.5 bytes per pixel are used
+        image = opencv_core.IplImage.create(side, side, IPL_DEPTH_8U, 2);
+        pipeline = new FramePipeline(new FrameRing(rendition.getQueueCapacity(),
+                masterSide * masterSide * 3 / 2,
+                rendition.getOverflowPolicy()),
+                this,
+                RenditionEncoder.class.getSimpleName() + "-" + side);
+        // 10% slack so a camera running at exactly the target rate is not decimated by jitter
+        minIntervalNanos = (long) (900000000L / rendition.getSettings().getFrameRate());
+    }
+
+    public void start(final List<VideoEncoder.Factory> encoderFactories) throws EncoderException {
+        try {
+            encoder = VideoEncoders.start(encoderFactories, rendition.getOutputFile(), rendition.getSettings());
+        } catch (final EncoderException e) {
+            image.release();
+            throw e;
+        }
+        pipeline.start();
+    }
+
+    /**
+     * Called on the recording thread, only copies the frame.
+     *
+     * @param timestamp nanoseconds since the start of the recording
+     * @return false if the frame was dropped because of the overflow policy
+     */
+    public boolean offer(final byte[] masterFrame, final long timestamp) {
+        return pipeline.offer(masterFrame, timestamp);
+    }
+
+    @Override
+    public void onFrame(final byte[] bytes, final long timestamp) {
+        if (lastEncodedTimestamp >= 0 && timestamp - lastEncodedTimestamp < minIntervalNanos) {
+            return;
+        }
+
+        scaler.scale(bytes, image.getByteBuffer());
+        try {
+            encoder.encode(image, timestamp / 1000);
+            lastEncodedTimestamp = timestamp;
+            encodedFrameCount++;
+        } catch (final EncoderException e) {
+            LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Encodes the queued frames, then finalises the output.
+     */
+    public void stop() {
+        pipeline.stop();
+        try {
+            encoder.stop();
+        } catch (final EncoderException e) {
+            LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+        } finally {
+            encoder.release();
+            image.release();
+        }
+        LOGGER.info(rendition + ": queued=" + pipeline.getRing().getQueuedCount()
+                + ", dropped=" + pipeline.getRing().getDroppedCount()
+                + ", encoded=" + encodedFrameCount);
+    }
+
+    public Rendition getRendition() {
+        return rendition;
+    }
+
+    public long getEncodedFrameCount() {
+        return encodedFrameCount;
+    }
+
+    public long getDroppedFrameCount() {
+        return pipeline.getRing().getDroppedCount();
+    }
+}
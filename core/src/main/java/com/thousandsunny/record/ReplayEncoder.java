@@ -0,0 +1,406 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avformat;
+import org.bytedeco.javacpp.avutil;
+import org.bytedeco.javacpp.opencv_core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.javacpp.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.javacpp.avcodec.CODEC_FLAG_GLOBAL_HEADER;
+import static org.bytedeco.javacpp.avcodec.FF_INPUT_BUFFER_PADDING_SIZE;
+import static org.bytedeco.javacpp.avcodec.av_free_packet;
+import static org.bytedeco.javacpp.avcodec.av_init_packet;
+import static org.bytedeco.javacpp.avcodec.avcodec_alloc_context3;
+import static org.bytedeco.javacpp.avcodec.avcodec_close;
+import static org.bytedeco.javacpp.avcodec.avcodec_encode_video2;
+import static org.bytedeco.javacpp.avcodec.avcodec_find_encoder;
+import static org.bytedeco.javacpp.avcodec.avcodec_open2;
+import static org.bytedeco.javacpp.avcodec.avcodec_register_all;
+import static org.bytedeco.javacpp.avformat.AVFMT_GLOBALHEADER;
+import static org.bytedeco.javacpp.avformat.AVIO_FLAG_WRITE;
+import static org.bytedeco.javacpp.avformat.av_write_frame;
+import static org.bytedeco.javacpp.avformat.av_write_trailer;
+import static org.bytedeco.javacpp.avformat.avformat_alloc_output_context2;
+import static org.bytedeco.javacpp.avformat.avformat_free_context;
+import static org.bytedeco.javacpp.avformat.avformat_new_stream;
+import static org.bytedeco.javacpp.avformat.avformat_write_header;
+import static org.bytedeco.javacpp.avformat.avio_close;
+import static org.bytedeco.javacpp.avformat.avio_open;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
+import static org.bytedeco.javacpp.avutil.av_frame_alloc;
+import static org.bytedeco.javacpp.avutil.av_frame_free;
+import static org.bytedeco.javacpp.avutil.av_frame_get_buffer;
+import static org.bytedeco.javacpp.avutil.av_free;
+import static org.bytedeco.javacpp.avutil.av_mallocz;
+import static org.bytedeco.javacpp.avutil.av_opt_set;
+import static org.bytedeco.javacpp.avutil.av_rescale_q;
+
+/**
+ * Instant replay: encodes H.264 with avcodec directly and keeps the packets of the last seconds in an
+ * {@link EncodedPacketRing} instead of writing a file, {@link #flush(File)} muxes the current window into an MP4
+ * on demand while encoding goes on. The output file passed to {@link #start(File, EncoderSettings)} is not used.
+ * <p/>
+ * Memory is bounded by twice the ring size, the second copy is the snapshot a flush muxes from so the encoder
+ * is only blocked for an array copy. Key frames come every second, which is the granularity of the window.
+ */
+public class ReplayEncoder implements VideoEncoder {
+    private static final Logger LOGGER = Logger.getLogger(ReplayEncoder.class.getSimpleName());
+
+    public static final String NAME = "replay";
+
+    private static final int MICROS_PER_SECOND = 1000000;
+
+    /**
+     * Of the encoder and of the packets in the ring.
+     */
+    private static final avutil.AVRational ENCODER_TIME_BASE = new avutil.AVRational().num(1).den(MICROS_PER_SECOND);
+
+    static {
+        avcodec_register_all();
+    }
+
+    private final EncodedPacketRing ring;
+
+    private final EncodedPacketRing snapshot;
+
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    private final Object flushLock = new Object();
+
+    private avcodec.AVCodecContext context;
+
+    /**
+     * What the muxer needs of the codec, taken once it is open so a flush never reads the context the recording
+     * thread encodes with: the SPS/PPS, null until started. Guarded by {@link #flushLock} like the flush buffer.
+     */
+    private byte[] extradata;
+
+    private int codecId;
+
+    private avutil.AVFrame frame;
+
+    private avcodec.AVPacket packet;
+
+    private final int[] gotPacket = new int[1];
+
+    private byte[] nv21;
+
+    private byte[] packetBuffer = new byte[64 * 1024];
+
+    private BytePointer flushBuffer;
+
+    private int outputSide;
+
+    private long lastTimestamp = -1;
+
+    private volatile long lastFlushMicros;
+
+    /**
+     * @param maxBytes     encoded bytes kept, the encoder needs twice as much
+     * @param windowMicros length of the replay
+     */
+    public ReplayEncoder(final int maxBytes, final long windowMicros, final double frameRate) {
+        // the window plus the GOP that is about to be evicted
+        final int maxPackets = (int) Math.ceil((windowMicros / (double) MICROS_PER_SECOND + 2) * frameRate);
+        ring = new EncodedPacketRing(maxBytes, maxPackets, windowMicros);
+        snapshot = new EncodedPacketRing(maxBytes, maxPackets, windowMicros);
+    }
+
+    public EncodedPacketRing getRing() {
+        return ring;
+    }
+
+    @Override
+    public boolean supportsAudio() {
+        return false;
+    }
+
+    @Override
+    public void setAudioFormat(final int sampleRate, final int channelCount) throws EncoderException {
+        throw new EncoderException("The replay ring only holds video");
+    }
+
+    @Override
+    public void start(final File outputFile, final EncoderSettings settings) throws EncoderException {
+        outputSide = settings.getOutputSide();
+        nv21 = new byte[outputSide * outputSide * 3 / 2];
+
+        final avcodec.AVCodec codec = avcodec_find_encoder(AV_CODEC_ID_H264);
+        if (codec == null) {
+            throw new EncoderException("No H.264 encoder");
+        }
+
+        context = avcodec_alloc_context3(codec);
+        context.width(outputSide);
+        context.height(outputSide);
+        context.pix_fmt(AV_PIX_FMT_YUV420P);
+        context.time_base(ENCODER_TIME_BASE);
+        context.bit_rate(settings.getVideoBitrate());
+        context.gop_size((int) Math.round(settings.getFrameRate()));
+        context.max_b_frames(0);
+        // SPS/PPS go into the extradata, which the flush hands to the muxer
+        context.flags(context.flags() | CODEC_FLAG_GLOBAL_HEADER);
+        av_opt_set(context.priv_data(), "preset", settings.getPreset(), 0);
+        av_opt_set(context.priv_data(), "tune", "zerolatency", 0);
+        if (avcodec_open2(context, codec, (PointerPointer) null) < 0) {
+            release();
+            throw new EncoderException("Cannot open the H.264 encoder");
+        }
+        synchronized (flushLock) {
+            extradata = new byte[context.extradata_size()];
+            context.extradata().get(extradata);
+            codecId = context.codec_id();
+        }
+
+        frame = av_frame_alloc();
+        frame.format(AV_PIX_FMT_YUV420P);
+        frame.width(outputSide);
+        frame.height(outputSide);
+        if (av_frame_get_buffer(frame, 32) < 0) {
+            release();
+            throw new EncoderException("Cannot allocate the frame");
+        }
+
+        packet = new avcodec.AVPacket();
+        ring.clear();
+    }
+
+    @Override
+    public boolean encode(final opencv_core.IplImage image, final long timestampMicros) throws EncoderException {
+        if (image.nChannels() != 2 || image.width() != outputSide || image.height() != outputSide) {
+            throw new EncoderException("Only takes " + outputSide + "x" + outputSide + " NV21 frames");
+        }
+
+        final boolean ahead = timestampMicros > lastTimestamp;
+        final long timestamp = ahead ? timestampMicros : lastTimestamp + 1;
+        lastTimestamp = timestamp;
+
+        final ByteBuffer buffer = image.getByteBuffer();
+        buffer.position(0);
+        buffer.get(nv21);
+        putFrame();
+        frame.pts(timestamp);
+
+        encodeFrame(frame);
+        return ahead;
+    }
+
+    /**
+     * De-interleaves the NV21 chroma into the planes of the I420 frame.
+     */
+    private void putFrame() {
+        final int lumaSize = outputSide * outputSide;
+        final int chromaSide = outputSide / 2;
+
+        final BytePointer luma = frame.data(0);
+        final int lumaStride = frame.linesize(0);
+        for (int y = 0; y < outputSide; ++y) {
+            luma.position(y * lumaStride).put(nv21, y * outputSide, outputSide);
+        }
+
+        final BytePointer u = frame.data(1);
+        final BytePointer v = frame.data(2);
+        final int uStride = frame.linesize(1);
+        final int vStride = frame.linesize(2);
+        final byte[] row = packetBuffer;
+        for (int y = 0; y < chromaSide; ++y) {
+            final int source = lumaSize + y * outputSide;
+            for (int x = 0; x < chromaSide; ++x) {
+                row[x] = nv21[source + 2 * x + 1];
+                row[chromaSide + x] = nv21[source + 2 * x];
+            }
+            u.position(y * uStride).put(row, 0, chromaSide);
+            v.position(y * vStride).put(row, chromaSide, chromaSide);
+        }
+        luma.position(0);
+        u.position(0);
+        v.position(0);
+    }
+
+    /**
+     * @param input null drains the encoder
+     */
+    private boolean encodeFrame(final avutil.AVFrame input) throws EncoderException {
+        av_init_packet(packet);
+        packet.data(null);
+        packet.size(0);
+        if (avcodec_encode_video2(context, packet, input, gotPacket) < 0) {
+            throw new EncoderException("avcodec_encode_video2 failed");
+        }
+        if (gotPacket[0] == 0) {
+            return false;
+        }
+
+        try {
+            final int size = packet.size();
+            if (size > packetBuffer.length) {
+                packetBuffer = new byte[Math.max(size, packetBuffer.length * 2)];
+            }
+            packet.data().get(packetBuffer, 0, size);
+            ring.append(packetBuffer,
+                    0,
+                    size,
+                    packet.pts(),
+                    packet.dts(),
+                    (packet.flags() & AV_PKT_FLAG_KEY) != 0);
+        } finally {
+            av_free_packet(packet);
+        }
+        return true;
+    }
+
+    @Override
+    public void encodeAudio(final short[] samples,
+                            final int length,
+                            final long timestampMicros) throws EncoderException {
+        throw new EncoderException("The replay ring only holds video");
+    }
+
+    @Override
+    public void stop() throws EncoderException {
+        while (encodeFrame(null)) {
+            // drains the delayed packets into the ring
+        }
+    }
+
+    /**
+     * Writes the packets currently in the ring, at least the replay window once the recording is that long.
+     * May be called from any thread while recording; calls are serialised.
+     */
+    public void flush(final File outputFile) throws IOException {
+        synchronized (flushLock) {
+            final long flushStart = System.nanoTime();
+            if (extradata == null) {
+                throw new IllegalStateException("Encoder not started");
+            }
+
+            ring.copyTo(snapshot);
+            if (snapshot.getPacketCount() == 0) {
+                throw new IOException("Nothing to flush yet");
+            }
+            write(outputFile);
+
+            lastFlushMicros = (System.nanoTime() - flushStart) / 1000;
+            flushLatency.record(lastFlushMicros);
+            LOGGER.info("Flushed " + snapshot.getPacketCount() + " packets, " + snapshot.getByteCount() + " bytes, "
+                    + snapshot.getDurationMicros() / 1000 + "ms to " + outputFile + " in " + lastFlushMicros + "us");
+        }
+    }
+
+    private void write(final File outputFile) throws IOException {
+        final avformat.AVFormatContext output = new avformat.AVFormatContext(null);
+        if (avformat_alloc_output_context2(output, (avformat.AVOutputFormat) null, "mp4",
+                outputFile.getAbsolutePath()) < 0) {
+            throw new IOException("avformat_alloc_output_context2");
+        }
+
+        try {
+            final avformat.AVStream stream = avformat_new_stream(output, null);
+            if (stream == null) {
+                throw new IOException("Cannot create the video stream");
+            }
+            final avcodec.AVCodecContext streamCodec = stream.codec();
+            streamCodec.codec_type(AVMEDIA_TYPE_VIDEO);
+            streamCodec.codec_id(codecId);
+            streamCodec.width(outputSide);
+            streamCodec.height(outputSide);
+            streamCodec.pix_fmt(AV_PIX_FMT_YUV420P);
+            streamCodec.time_base(ENCODER_TIME_BASE);
+            // freed with the format context
+            final BytePointer streamExtradata = new BytePointer(av_mallocz(extradata.length
+                    + FF_INPUT_BUFFER_PADDING_SIZE));
+            streamExtradata.put(extradata);
+            streamCodec.extradata(streamExtradata);
+            streamCodec.extradata_size(extradata.length);
+            stream.time_base(ENCODER_TIME_BASE);
+            if ((output.oformat().flags() & AVFMT_GLOBALHEADER) != 0) {
+                streamCodec.flags(streamCodec.flags() | CODEC_FLAG_GLOBAL_HEADER);
+            }
+
+            final avformat.AVIOContext pb = new avformat.AVIOContext(null);
+            if (avio_open(pb, outputFile.getAbsolutePath(), AVIO_FLAG_WRITE) < 0) {
+                throw new IOException("avio_open " + outputFile);
+            }
+            output.pb(pb);
+            if (avformat_write_header(output, (PointerPointer) null) < 0) {
+                throw new IOException("avformat_write_header");
+            }
+
+            final avutil.AVRational timeBase = stream.time_base();
+            final long start = snapshot.getDecodeTime(0);
+            final avcodec.AVPacket outPacket = new avcodec.AVPacket();
+            for (int i = 0; i < snapshot.getPacketCount(); ++i) {
+                final int length = snapshot.getLength(i);
+                if (flushBuffer == null || flushBuffer.capacity() < length) {
+                    if (flushBuffer != null) {
+                        flushBuffer.deallocate();
+                    }
+                    flushBuffer = new BytePointer(Math.max(length, 64 * 1024));
+                }
+                flushBuffer.position(0).put(snapshot.getData(), snapshot.getOffset(i), length);
+
+                av_init_packet(outPacket);
+                outPacket.data(flushBuffer);
+                outPacket.size(length);
+                outPacket.stream_index(stream.index());
+                outPacket.pts(av_rescale_q(snapshot.getPresentationTime(i) - start, ENCODER_TIME_BASE, timeBase));
+                outPacket.dts(av_rescale_q(snapshot.getDecodeTime(i) - start, ENCODER_TIME_BASE, timeBase));
+                outPacket.flags(snapshot.isKeyFrame(i) ? AV_PKT_FLAG_KEY : 0);
+                if (av_write_frame(output, outPacket) < 0) {
+                    throw new IOException("av_write_frame");
+                }
+            }
+
+            if (av_write_trailer(output) < 0) {
+                throw new IOException("av_write_trailer");
+            }
+        } finally {
+            if (output.pb() != null) {
+                avio_close(output.pb());
+            }
+            avformat_free_context(output);
+        }
+    }
+
+    public long getLastFlushMicros() {
+        return lastFlushMicros;
+    }
+
+    public LatencyHistogram getFlushLatency() {
+        return flushLatency;
+    }
+
+    @Override
+    public void release() {
+        synchronized (flushLock) {
+            extradata = null;
+            if (context != null) {
+                avcodec_close(context);
+                av_free(context);
+                context = null;
+            }
+            if (flushBuffer != null) {
+                flushBuffer.deallocate();
+                flushBuffer = null;
+            }
+        }
+        if (frame != null) {
+            av_frame_free(frame);
+            frame = null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
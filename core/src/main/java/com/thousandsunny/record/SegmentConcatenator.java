@@ -0,0 +1,195 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avformat;
+import org.bytedeco.javacpp.avutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.bytedeco.javacpp.avcodec.CODEC_FLAG_GLOBAL_HEADER;
+import static org.bytedeco.javacpp.avcodec.av_free_packet;
+import static org.bytedeco.javacpp.avcodec.av_init_packet;
+import static org.bytedeco.javacpp.avcodec.avcodec_copy_context;
+import static org.bytedeco.javacpp.avformat.AVFMT_GLOBALHEADER;
+import static org.bytedeco.javacpp.avformat.AVFMT_NOFILE;
+import static org.bytedeco.javacpp.avformat.AVIO_FLAG_WRITE;
+import static org.bytedeco.javacpp.avformat.av_interleaved_write_frame;
+import static org.bytedeco.javacpp.avformat.av_read_frame;
+import static org.bytedeco.javacpp.avformat.av_register_all;
+import static org.bytedeco.javacpp.avformat.av_write_trailer;
+import static org.bytedeco.javacpp.avformat.avformat_alloc_output_context2;
+import static org.bytedeco.javacpp.avformat.avformat_close_input;
+import static org.bytedeco.javacpp.avformat.avformat_find_stream_info;
+import static org.bytedeco.javacpp.avformat.avformat_free_context;
+import static org.bytedeco.javacpp.avformat.avformat_new_stream;
+import static org.bytedeco.javacpp.avformat.avformat_open_input;
+import static org.bytedeco.javacpp.avformat.avformat_write_header;
+import static org.bytedeco.javacpp.avformat.avio_close;
+import static org.bytedeco.javacpp.avformat.avio_open;
+import static org.bytedeco.javacpp.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.javacpp.avutil.av_rescale_q;
+
+/**
+ * Joins MP4 segments written with the same encoder settings by copying their packets into one container, nothing
+ * is decoded or encoded so the cost is I/O only. Each segment is shifted to start where the previous one ended.
+ */
+public final class SegmentConcatenator {
+    /**
+     * Common time base of the stream ends, the muxer gives every stream its own: video 1/15360, audio 1/sampleRate.
+     */
+    private static final avutil.AVRational MICROSECONDS = new avutil.AVRational().num(1).den(1000000);
+
+    static {
+        av_register_all();
+    }
+
+    private SegmentConcatenator() {
+    }
+
+    public static void concat(final List<File> segments, final File outputFile) throws IOException {
+        if (segments.isEmpty()) {
+            throw new IllegalArgumentException("No segment");
+        }
+        if (segments.size() == 1) {
+            if (!segments.get(0).renameTo(outputFile)) {
+                throw new IOException("Cannot rename " + segments.get(0) + " to " + outputFile);
+            }
+            return;
+        }
+
+        avformat.AVFormatContext output = null;
+        try {
+            final avformat.AVFormatContext first = openInput(segments.get(0));
+            try {
+                output = openOutput(first, outputFile);
+            } finally {
+                avformat_close_input(first);
+            }
+
+            final int streamCount = output.nb_streams();
+            // end of the previous segments per stream, in the time base of the output stream
+            final long[] offsets = new long[streamCount];
+            final long[] ends = new long[streamCount];
+            for (final File segment : segments) {
+                final avformat.AVFormatContext input = openInput(segment);
+                try {
+                    if (input.nb_streams() != streamCount) {
+                        throw new IOException(segment + " has " + input.nb_streams() + " streams, expected "
+                                + streamCount);
+                    }
+                    copyPackets(input, output, offsets, ends);
+                } finally {
+                    avformat_close_input(input);
+                }
+
+                // the next segment starts after the longest stream, compared in a common time base
+                long endMicros = 0;
+                for (int i = 0; i < streamCount; ++i) {
+                    endMicros = Math.max(endMicros, av_rescale_q(ends[i], output.streams(i).time_base(), MICROSECONDS));
+                }
+                for (int i = 0; i < streamCount; ++i) {
+                    offsets[i] = av_rescale_q(endMicros, MICROSECONDS, output.streams(i).time_base());
+                }
+            }
+
+            check(av_write_trailer(output), "av_write_trailer");
+        } finally {
+            if (output != null) {
+                if ((output.oformat().flags() & AVFMT_NOFILE) == 0 && output.pb() != null) {
+                    avio_close(output.pb());
+                }
+                avformat_free_context(output);
+            }
+        }
+    }
+
+    private static avformat.AVFormatContext openInput(final File file) throws IOException {
+        final avformat.AVFormatContext input = new avformat.AVFormatContext(null);
+        check(avformat_open_input(input,
+                file.getAbsolutePath(),
+                (avformat.AVInputFormat) null,
+                (avutil.AVDictionary) null), "avformat_open_input " + file);
+        if (avformat_find_stream_info(input, (PointerPointer) null) < 0) {
+            avformat_close_input(input);
+            throw new IOException("avformat_find_stream_info " + file);
+        }
+        return input;
+    }
+
+    private static avformat.AVFormatContext openOutput(final avformat.AVFormatContext first,
+                                                       final File outputFile) throws IOException {
+        final avformat.AVFormatContext output = new avformat.AVFormatContext(null);
+        check(avformat_alloc_output_context2(output, (avformat.AVOutputFormat) null, "mp4",
+                outputFile.getAbsolutePath()),
+                "avformat_alloc_output_context2");
+
+        try {
+            for (int i = 0; i < first.nb_streams(); ++i) {
+                final avformat.AVStream inStream = first.streams(i);
+                final avformat.AVStream outStream = avformat_new_stream(output, inStream.codec().codec());
+                if (outStream == null) {
+                    throw new IOException("avformat_new_stream");
+                }
+                check(avcodec_copy_context(outStream.codec(), inStream.codec()), "avcodec_copy_context");
+                outStream.codec().codec_tag(0);
+                outStream.time_base(inStream.time_base());
+                if ((output.oformat().flags() & AVFMT_GLOBALHEADER) != 0) {
+                    outStream.codec().flags(outStream.codec().flags() | CODEC_FLAG_GLOBAL_HEADER);
+                }
+            }
+
+            final avformat.AVIOContext pb = new avformat.AVIOContext(null);
+            check(avio_open(pb, outputFile.getAbsolutePath(), AVIO_FLAG_WRITE), "avio_open " + outputFile);
+            output.pb(pb);
+            check(avformat_write_header(output, (PointerPointer) null), "avformat_write_header");
+            return output;
+        } catch (final IOException e) {
+            if (output.pb() != null) {
+                avio_close(output.pb());
+            }
+            avformat_free_context(output);
+            throw e;
+        }
+    }
+
+    private static void copyPackets(final avformat.AVFormatContext input,
+                                    final avformat.AVFormatContext output,
+                                    final long[] offsets,
+                                    final long[] ends) throws IOException {
+        final avcodec.AVPacket packet = new avcodec.AVPacket();
+        av_init_packet(packet);
+        while (av_read_frame(input, packet) >= 0) {
+            try {
+                final int index = packet.stream_index();
+                final avutil.AVRational inTimeBase = input.streams(index).time_base();
+                final avutil.AVRational outTimeBase = output.streams(index).time_base();
+                if (packet.pts() != AV_NOPTS_VALUE) {
+                    packet.pts(av_rescale_q(packet.pts(), inTimeBase, outTimeBase) + offsets[index]);
+                }
+                if (packet.dts() != AV_NOPTS_VALUE) {
+                    packet.dts(av_rescale_q(packet.dts(), inTimeBase, outTimeBase) + offsets[index]);
+                }
+                packet.duration((int) av_rescale_q(packet.duration(), inTimeBase, outTimeBase));
+                packet.pos(-1);
+
+                final long timestamp = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : packet.dts();
+                if (timestamp != AV_NOPTS_VALUE) {
+                    ends[index] = Math.max(ends[index], timestamp + Math.max(1, packet.duration()));
+                }
+
+                check(av_interleaved_write_frame(output, packet), "av_interleaved_write_frame");
+            } finally {
+                av_free_packet(packet);
+            }
+        }
+    }
+
+    private static void check(final int result, final String call) throws IOException {
+        if (result < 0) {
+            throw new IOException(call + " failed: " + result);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+
+/**
+ * Encodes the frames of a {@link FrameSpool} into a video on a background thread. It can run while the spool is
+ * still being written, it then waits for new frames until the spool is finished. The spool is deleted once the
+ * video has been written. The encode time of every frame goes to the governor, whose last rung is what sends a
+ * device into deferred encoding: without this feedback it could never step back up to live encoding.
+ */
+public class SpoolEncoder {
+    private static final Logger LOGGER = Logger.getLogger(SpoolEncoder.class.getSimpleName());
+
+    private static final long POLL_INTERVAL_MILLIS = 10;
+
+    public interface Listener {
+        /**
+         * @param total frames in the spool so far, it still grows while capture is running
+         */
+        void onProgress(int encoded, int total);
+
+        void onFinished(File videoFile);
+
+        void onFailed(File videoFile, Exception e);
+    }
+
+    private final FrameSpool spool;
+
+    private final File videoFile;
+
+    private final EncoderSettings settings;
+
+    private final List<VideoEncoder.Factory> encoderFactories;
+
+    private final EncoderGovernor governor;
+
+    private final Listener listener;
+
+    private final Thread thread;
+
+    private volatile boolean cancelled;
+
+    /**
+     * @param governor null if the encode times are not needed
+     */
+    public SpoolEncoder(final FrameSpool spool,
+                        final File videoFile,
+                        final EncoderSettings settings,
+                        final List<VideoEncoder.Factory> encoderFactories,
+                        final EncoderGovernor governor,
+                        final Listener listener) {
+        this.spool = spool;
+        this.videoFile = videoFile;
+        this.settings = settings;
+        this.encoderFactories = new ArrayList<>(encoderFactories);
+        this.governor = governor;
+        this.listener = listener;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encode();
+            }
+        }, SpoolEncoder.class.getSimpleName());
+        thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops encoding, the spool is kept.
+     */
+    public void cancel() {
+        cancelled = true;
+        thread.interrupt();
+    }
+
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    private void encode() {
+        final int side = settings.getOutputSide();
+        final opencv_core.IplImage image = opencv_core.IplImage.create(side, side, IPL_DEPTH_8U, 2);
+
+        VideoEncoder encoder = null;
+        try {
+            encoder = VideoEncoders.start(encoderFactories, videoFile, settings);
+
+            int index = 0;
+            while (!cancelled) {
+                final int available = spool.getFrameCount();
+                if (index >= available) {
+                    if (spool.isFinished() && index >= spool.getFrameCount()) {
+                        break;
+                    }
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                    continue;
+                }
+
+                final long encodeStart = System.nanoTime();
+                final long timestamp = spool.read(index, image.getByteBuffer());
+                encoder.encode(image, timestamp);
+                if (governor != null) {
+                    // nothing queues behind a spooled frame
+                    governor.onFrameRecorded((System.nanoTime() - encodeStart) / 1000, 0, 0);
+                }
+                index++;
+                if (listener != null) {
+                    listener.onProgress(index, available);
+                }
+            }
+            if (cancelled) {
+                throw new InterruptedException("Cancelled");
+            }
+
+            encoder.stop();
+            encoder.release();
+            encoder = null;
+            spool.delete();
+
+            if (listener != null) {
+                listener.onFinished(videoFile);
+            }
+        } catch (final EncoderException | IOException | InterruptedException e) {
+            LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+            if (listener != null) {
+                listener.onFailed(videoFile, e);
+            }
+        } finally {
+            if (encoder != null) {
+                encoder.release();
+            }
+            image.release();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.thousandsunny.record;
+
+/**
+ * Maps every pixel of the rotated, downscaled output square back to the source samples it covers in an NV21 preview
+ * frame.
+ * <p/>
+ * The centered square of the preview is cropped, rotated clockwise by {@code degree}, optionally mirrored
+ * horizontally and box-averaged to {@code outputSide}: every output pixel covers a footprint of whole source pixels,
+ * a single one when the square is not larger than the output. Because each output axis depends on exactly one source
+ * axis the mapping is separable: {@code lumaOuter[row] + lumaInner[col]} is the Y offset of the first source pixel of
+ * output pixel (row, col), its footprint spans {@code lumaOuterCount[row]} samples {@link #getLumaOuterStep()} apart
+ * times {@code lumaInnerCount[col]} samples {@link #getLumaInnerStep()} apart. The chroma tables describe the VU
+ * pairs under the 2x2 output block of a pixel the same way, so the tables only take O(outputSide) memory.
+ */
+public class SquareCropTransform {
+    private final int previewWidth;
+
+    private final int previewHeight;
+
+    private final int degree;
+
+    private final boolean mirror;
+
+    private final int squareSide;
+
+    private final int outputSide;
+
+    private final int[] lumaOuter;
+
+    private final int[] lumaInner;
+
+    private final int[] chromaOuter;
+
+    private final int[] chromaInner;
+
+    private final int[] lumaOuterCount;
+
+    private final int[] lumaInnerCount;
+
+    private final int[] chromaOuterCount;
+
+    private final int[] chromaInnerCount;
+
+    private final int lumaOuterStep;
+
+    private final int lumaInnerStep;
+
+    private final int chromaOuterStep;
+
+    private final int chromaInnerStep;
+
+    private final boolean pointSampled;
+
+    /**
+     * @param degree clockwise rotation of the sensor image, {@code CameraInfo.orientation} on portrait mode
+     */
+    public SquareCropTransform(final int previewWidth,
+                               final int previewHeight,
+                               final int degree,
+                               final int outputSide) {
+        this(previewWidth, previewHeight, degree, false, outputSide);
+    }
+
+    /**
+     * @param degree clockwise rotation of the sensor image, {@code CameraInfo.orientation} on portrait mode
+     * @param mirror flips the rotated image horizontally, for a front camera to look like its preview
+     */
+    public SquareCropTransform(final int previewWidth,
+                               final int previewHeight,
+                               final int degree,
+                               final boolean mirror,
+                               final int outputSide) {
+        if (degree != 0 && degree != 90 && degree != 180 && degree != 270) {
+            throw new IllegalArgumentException("Unknown degree:" + degree);
+        }
+        if (outputSide <= 0 || (outputSide & 1) != 0) {
+            throw new IllegalArgumentException("Output side must be a positive even number:" + outputSide);
+        }
+
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.degree = degree;
+        this.mirror = mirror;
+        this.outputSide = outputSide;
+        squareSide = Math.min(previewWidth, previewHeight);
+
+        final int xOffset = (previewWidth - squareSide) / 2;
+        final int yOffset = (previewHeight - squareSide) / 2;
+        final int frameSize = previewWidth * previewHeight;
+
+        lumaOuter = new int[outputSide];
+        lumaInner = new int[outputSide];
+        chromaOuter = new int[outputSide];
+        chromaInner = new int[outputSide];
+        lumaOuterCount = new int[outputSide];
+        lumaInnerCount = new int[outputSide];
+        chromaOuterCount = new int[outputSide];
+        chromaInnerCount = new int[outputSide];
+
+        // footprints along the source axis, [start[i], end[i]) for output index i
+        final int[] start = new int[outputSide];
+        final int[] end = new int[outputSide];
+        for (int i = 0; i < outputSide; ++i) {
+            if (squareSide <= outputSide) {
+                start[i] = (int) (((2L * i + 1) * squareSide) / (2L * outputSide));
+                end[i] = start[i] + 1;
+            } else {
+                start[i] = (int) ((long) i * squareSide / outputSide);
+                end[i] = (int) ((i + 1L) * squareSide / outputSide);
+            }
+        }
+
+        final boolean rowsOuter = degree == 0 || degree == 180;
+        final boolean outerReversed = degree == 180 || degree == 270;
+        final boolean innerReversed = degree == 180 || degree == 90;
+        for (int i = 0; i < outputSide; ++i) {
+            // the chroma of a pixel is that of its 2x2 block, which covers the footprints of an even and odd index
+            final int pair = i & ~1;
+            final int outerFirst = outerReversed ? squareSide - end[i] : start[i];
+            final int outerPairFirst = outerReversed ? squareSide - end[pair + 1] : start[pair];
+            final int outerPairLast = outerReversed ? squareSide - start[pair] : end[pair + 1];
+            final int innerFirst = innerReversed ? squareSide - end[i] : start[i];
+            final int innerPairFirst = innerReversed ? squareSide - end[pair + 1] : start[pair];
+            final int innerPairLast = innerReversed ? squareSide - start[pair] : end[pair + 1];
+
+            if (rowsOuter) {
+                setRow(lumaOuter, lumaOuterCount, chromaOuter, chromaOuterCount, i,
+                        yOffset + outerFirst, end[i] - start[i],
+                        yOffset + outerPairFirst, yOffset + outerPairLast, frameSize);
+                setColumn(lumaInner, lumaInnerCount, chromaInner, chromaInnerCount, i,
+                        xOffset + innerFirst, end[i] - start[i],
+                        xOffset + innerPairFirst, xOffset + innerPairLast);
+            } else {
+                setColumn(lumaOuter, lumaOuterCount, chromaOuter, chromaOuterCount, i,
+                        xOffset + outerFirst, end[i] - start[i],
+                        xOffset + outerPairFirst, xOffset + outerPairLast);
+                setRow(lumaInner, lumaInnerCount, chromaInner, chromaInnerCount, i,
+                        yOffset + innerFirst, end[i] - start[i],
+                        yOffset + innerPairFirst, yOffset + innerPairLast, frameSize);
+            }
+        }
+        lumaOuterStep = rowsOuter ? previewWidth : 1;
+        lumaInnerStep = rowsOuter ? 1 : previewWidth;
+        chromaOuterStep = rowsOuter ? previewWidth : 2;
+        chromaInnerStep = rowsOuter ? 2 : previewWidth;
+
+        if (mirror) {
+            reverse(lumaInner);
+            reverse(lumaInnerCount);
+            reverse(chromaInner);
+            reverse(chromaInnerCount);
+        }
+
+        boolean single = true;
+        for (int i = 0; i < outputSide && single; ++i) {
+            single = lumaOuterCount[i] == 1 && lumaInnerCount[i] == 1
+                    && chromaOuterCount[i] == 1 && chromaInnerCount[i] == 1;
+        }
+        pointSampled = single;
+    }
+
+    private static void reverse(final int[] table) {
+        for (int i = 0, j = table.length - 1; i < j; ++i, --j) {
+            final int swap = table[i];
+            table[i] = table[j];
+            table[j] = swap;
+        }
+    }
+
+    /**
+     * @param first      first source row of the luma footprint
+     * @param chromaFirst first source row under the 2x2 block
+     * @param chromaLast  source row after the 2x2 block
+     */
+    private void setRow(final int[] luma,
+                        final int[] lumaCount,
+                        final int[] chroma,
+                        final int[] chromaCount,
+                        final int i,
+                        final int first,
+                        final int count,
+                        final int chromaFirst,
+                        final int chromaLast,
+                        final int frameSize) {
+        luma[i] = first * previewWidth;
+        lumaCount[i] = count;
+        chroma[i] = frameSize + (chromaFirst >> 1) * previewWidth;
+        chromaCount[i] = ((chromaLast - 1) >> 1) - (chromaFirst >> 1) + 1;
+    }
+
+    private static void setColumn(final int[] luma,
+                                  final int[] lumaCount,
+                                  final int[] chroma,
+                                  final int[] chromaCount,
+                                  final int i,
+                                  final int first,
+                                  final int count,
+                                  final int chromaFirst,
+                                  final int chromaLast) {
+        luma[i] = first;
+        lumaCount[i] = count;
+        chroma[i] = chromaFirst & ~1;
+        chromaCount[i] = ((chromaLast - 1) >> 1) - (chromaFirst >> 1) + 1;
+    }
+
+    public int getPreviewWidth() {
+        return previewWidth;
+    }
+
+    public int getPreviewHeight() {
+        return previewHeight;
+    }
+
+    public int getDegree() {
+        return degree;
+    }
+
+    public boolean isMirror() {
+        return mirror;
+    }
+
+    public int getSquareSide() {
+        return squareSide;
+    }
+
+    public int getOutputSide() {
+        return outputSide;
+    }
+
+    public int[] getLumaOuter() {
+        return lumaOuter;
+    }
+
+    public int[] getLumaInner() {
+        return lumaInner;
+    }
+
+    public int[] getChromaOuter() {
+        return chromaOuter;
+    }
+
+    public int[] getChromaInner() {
+        return chromaInner;
+    }
+
+    public int[] getLumaOuterCount() {
+        return lumaOuterCount;
+    }
+
+    public int[] getLumaInnerCount() {
+        return lumaInnerCount;
+    }
+
+    public int[] getChromaOuterCount() {
+        return chromaOuterCount;
+    }
+
+    public int[] getChromaInnerCount() {
+        return chromaInnerCount;
+    }
+
+    /**
+     * @return bytes between two source samples along the outer axis of a luma footprint
+     */
+    public int getLumaOuterStep() {
+        return lumaOuterStep;
+    }
+
+    public int getLumaInnerStep() {
+        return lumaInnerStep;
+    }
+
+    /**
+     * @return bytes between two VU pairs along the outer axis of a chroma footprint
+     */
+    public int getChromaOuterStep() {
+        return chromaOuterStep;
+    }
+
+    public int getChromaInnerStep() {
+        return chromaInnerStep;
+    }
+
+    /**
+     * @return true if every footprint is a single sample, the kernels copy instead of averaging then
+     */
+    public boolean isPointSampled() {
+        return pointSampled;
+    }
+}
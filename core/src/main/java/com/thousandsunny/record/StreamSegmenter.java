@@ -0,0 +1,337 @@
+package com.thousandsunny.record;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits a live recording into self-contained MP4 segments of about a fixed duration, each a complete file with its
+ * own index that can be played, copied or uploaded as soon as it is listed. The segments are listed in an extended
+ * M3U playlist next to them, rewritten after every segment; a crash loses the segment being recorded only.
+ * <p>
+ * A background thread finalises the closed segments and opens the encoder of the next one ahead of time, so the
+ * recording thread swaps encoders without waiting for either. MP4 segments are not HLS segments, the playlist is
+ * meant for players reading M3U and for {@link SegmentConcatenator}.
+ */
+public class StreamSegmenter {
+    private static final Logger LOGGER = Logger.getLogger(StreamSegmenter.class.getSimpleName());
+
+    public static final String PLAYLIST_FILENAME = "playlist.m3u";
+
+    public interface Listener {
+        /**
+         * Called on the segmenter thread once the segment has been finalised and listed, in order.
+         */
+        void onSegment(File segment, int index, long durationMicros);
+
+        /**
+         * Called on the thread stopping the recording after the last segment.
+         *
+         * @param segments every segment listed, in order
+         */
+        void onFinished(File playlist, List<File> segments);
+    }
+
+    public interface EncoderStarter {
+        VideoEncoder start(File outputFile) throws EncoderException;
+    }
+
+    private final File directory;
+
+    private final long segmentDurationNanos;
+
+    private final Listener listener;
+
+    private final ExecutorService executor;
+
+    private final List<File> segments = new ArrayList<>();
+
+    private final List<Long> durations = new ArrayList<>();
+
+    private EncoderStarter starter;
+
+    private int currentIndex;
+
+    private int nextIndex;
+
+    private Future<VideoEncoder> next;
+
+    /**
+     * The next encoder could not be opened, it is tried again no sooner than this.
+     */
+    private long retryTime;
+
+    /**
+     * @param directory holds the segments and the playlist only, created if missing
+     */
+    public StreamSegmenter(final File directory, final long segmentDurationMicros, final Listener listener) {
+        this.directory = directory;
+        this.segmentDurationNanos = segmentDurationMicros * 1000;
+        this.listener = listener;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, StreamSegmenter.class.getSimpleName());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public File getPlaylistFile() {
+        return new File(directory, PLAYLIST_FILENAME);
+    }
+
+    public long getSegmentDurationNanos() {
+        return segmentDurationNanos;
+    }
+
+    /**
+     * Opens the first segment on the calling thread and the next one in the background.
+     */
+    public VideoEncoder open(final EncoderStarter starter) throws EncoderException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new EncoderException("Cannot create " + directory);
+        }
+        this.starter = starter;
+        final VideoEncoder encoder = starter.start(getSegmentFile(0));
+        currentIndex = 0;
+        nextIndex = 1;
+        startNext();
+        return encoder;
+    }
+
+    /**
+     * @return true if the encoder of the next segment is open, {@link #rotate(VideoEncoder, long)} does not block
+     */
+    public boolean isNextReady() {
+        if (!next.isDone()) {
+            return false;
+        }
+        try {
+            next.get();
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final ExecutionException e) {
+            if (System.nanoTime() >= retryTime) {
+                LOGGER.log(Level.WARNING, "Cannot open segment " + nextIndex + ", trying again", e.getCause());
+                retryTime = System.nanoTime() + segmentDurationNanos;
+                startNext();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Closes the current segment in the background and continues in the next one.
+     *
+     * @param durationMicros of the closing segment
+     * @return the encoder of the next segment, its timestamps start at 0 again
+     */
+    public VideoEncoder rotate(final VideoEncoder current, final long durationMicros) throws EncoderException {
+        final int index = currentIndex;
+        // the current segment goes on if the next one cannot be opened
+        final VideoEncoder encoder = takeNext();
+        close(current, index, durationMicros);
+        return encoder;
+    }
+
+    /**
+     * Closes the current segment in the background, recording goes on with {@link #takeNext()}.
+     */
+    public void close(final VideoEncoder current, final long durationMicros) {
+        close(current, currentIndex, durationMicros);
+    }
+
+    private void close(final VideoEncoder current, final int index, final long durationMicros) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                finishSegment(current, index, durationMicros);
+            }
+        });
+    }
+
+    /**
+     * @return the encoder of the next segment, waits for it to open if needed
+     */
+    public VideoEncoder takeNext() throws EncoderException {
+        final VideoEncoder encoder;
+        try {
+            encoder = next.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncoderException("Interrupted while opening segment " + nextIndex);
+        } catch (final ExecutionException e) {
+            startNext();
+            throw new EncoderException("Cannot open segment " + nextIndex, e.getCause());
+        }
+        currentIndex = nextIndex++;
+        startNext();
+        return encoder;
+    }
+
+    /**
+     * Finalises the last segment, waiting for those still being finalised, releases the encoder opened ahead and
+     * closes the playlist.
+     *
+     * @param current null if the recording ended paused
+     */
+    public void finish(final VideoEncoder current, final long durationMicros) {
+        if (current != null) {
+            close(current, durationMicros);
+        }
+        discardNext();
+        executor.shutdown();
+        awaitTermination();
+
+        final List<File> segments;
+        synchronized (this) {
+            writePlaylist(true);
+            segments = new ArrayList<>(this.segments);
+        }
+        if (listener != null) {
+            listener.onFinished(getPlaylistFile(), Collections.unmodifiableList(segments));
+        }
+    }
+
+    /**
+     * Releases everything and deletes the directory, for a recording that never started.
+     */
+    public void discard(final VideoEncoder current) {
+        if (current != null) {
+            current.release();
+        }
+        discardNext();
+        executor.shutdown();
+        awaitTermination();
+
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (!file.delete()) {
+                    LOGGER.warning("Cannot delete " + file);
+                }
+            }
+        }
+        if (!directory.delete()) {
+            LOGGER.warning("Cannot delete " + directory);
+        }
+    }
+
+    private void startNext() {
+        final File file = getSegmentFile(nextIndex);
+        next = executor.submit(new Callable<VideoEncoder>() {
+            @Override
+            public VideoEncoder call() throws EncoderException {
+                return starter.start(file);
+            }
+        });
+    }
+
+    private void discardNext() {
+        final Future<VideoEncoder> next = this.next;
+        final File file = getSegmentFile(nextIndex);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    next.get().release();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (final ExecutionException e) {
+                    // never opened
+                }
+                if (file.exists() && !file.delete()) {
+                    LOGGER.warning("Cannot delete " + file);
+                }
+            }
+        });
+    }
+
+    private void awaitTermination() {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOGGER.info("Waiting for the segments to be finalised");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finishSegment(final VideoEncoder encoder, final int index, final long durationMicros) {
+        final File file = getSegmentFile(index);
+        try {
+            encoder.stop();
+        } catch (final EncoderException e) {
+            // a truncated segment would stall players and the concatenation
+            LOGGER.log(Level.WARNING, "Cannot finalise " + file + ", leaving it out", e);
+            return;
+        } finally {
+            encoder.release();
+        }
+
+        synchronized (this) {
+            segments.add(file);
+            durations.add(durationMicros);
+            writePlaylist(false);
+        }
+        if (listener != null) {
+            listener.onSegment(file, index, durationMicros);
+        }
+    }
+
+    /**
+     * Written to a temporary file and renamed, a reader never sees half a playlist.
+     */
+    private void writePlaylist(final boolean ended) {
+        final File playlist = getPlaylistFile();
+        final File temporary = new File(directory, PLAYLIST_FILENAME + ".tmp");
+        try {
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), Charset.forName("UTF-8"));
+            try {
+                writer.write("#EXTM3U\n");
+                for (int i = 0; i < segments.size(); ++i) {
+                    writer.write(String.format(Locale.US, "#EXTINF:%.3f,\n", durations.get(i) / 1e6));
+                    writer.write(segments.get(i).getName() + "\n");
+                }
+                if (ended) {
+                    writer.write("#EXT-X-ENDLIST\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (!temporary.renameTo(playlist)) {
+                throw new IOException("Cannot rename " + temporary + " to " + playlist);
+            }
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, e.getLocalizedMessage(), e);
+        }
+    }
+
+    private File getSegmentFile(final int index) {
+        return new File(directory, String.format(Locale.US, "segment%05d.mp4", index));
+    }
+}
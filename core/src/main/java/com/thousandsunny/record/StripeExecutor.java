@@ -0,0 +1,169 @@
+package com.thousandsunny.record;
+
+/**
+ * Splits a row range into stripes and runs them on persistent worker threads, the calling thread takes the first
+ * stripe. {@link #execute(StripeTask, int, int)} returns once every stripe is done, nothing is allocated per call.
+ */
+public class StripeExecutor {
+    public static final int AUTO = 0;
+
+    public interface StripeTask {
+        /**
+         * @param start first row, inclusive
+         * @param end   last row, exclusive
+         */
+        void run(int start, int end);
+    }
+
+    private final Object lock = new Object();
+
+    private final int stripeCount;
+
+    private final Thread[] workers;
+
+    private StripeTask task;
+
+    private int rows;
+
+    private int rowsPerStripe;
+
+    private int generation;
+
+    private int pending;
+
+    private RuntimeException failure;
+
+    private boolean shutdown;
+
+    /**
+     * @param stripeCount number of stripes, {@link #AUTO} uses one per available core
+     */
+    public StripeExecutor(final int stripeCount) {
+        this.stripeCount = stripeCount == AUTO
+                ? Math.max(1, Runtime.getRuntime().availableProcessors())
+                : stripeCount;
+
+        workers = new Thread[this.stripeCount - 1];
+        for (int i = 0; i < workers.length; ++i) {
+            final int stripe = i + 1;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(stripe);
+                }
+            }, StripeExecutor.class.getSimpleName() + "-" + stripe);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public int getStripeCount() {
+        return stripeCount;
+    }
+
+    /**
+     * @param alignment every stripe but the last starts and ends on a multiple of it
+     */
+    public void execute(final StripeTask task, final int rows, final int alignment) {
+        final int perStripe = (rows + stripeCount - 1) / stripeCount;
+        final int aligned = ((perStripe + alignment - 1) / alignment) * alignment;
+
+        synchronized (lock) {
+            if (shutdown) {
+                throw new IllegalStateException("Executor already shut down");
+            }
+            this.task = task;
+            this.rows = rows;
+            this.rowsPerStripe = aligned;
+            pending = workers.length;
+            failure = null;
+            generation++;
+            lock.notifyAll();
+        }
+
+        RuntimeException callerFailure = null;
+        try {
+            runStripe(task, 0, aligned, rows);
+        } catch (final RuntimeException e) {
+            callerFailure = e;
+        }
+
+        synchronized (lock) {
+            boolean interrupted = false;
+            while (pending > 0) {
+                try {
+                    lock.wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            this.task = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (callerFailure == null) {
+                callerFailure = failure;
+            }
+        }
+
+        if (callerFailure != null) {
+            throw callerFailure;
+        }
+    }
+
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void work(final int stripe) {
+        int seen = 0;
+        while (true) {
+            final StripeTask task;
+            final int rows;
+            final int rowsPerStripe;
+            synchronized (lock) {
+                while (generation == seen && !shutdown) {
+                    try {
+                        lock.wait();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+                if (shutdown) {
+                    return;
+                }
+                seen = generation;
+                task = this.task;
+                rows = this.rows;
+                rowsPerStripe = this.rowsPerStripe;
+            }
+
+            RuntimeException stripeFailure = null;
+            try {
+                runStripe(task, stripe, rowsPerStripe, rows);
+            } catch (final RuntimeException e) {
+                stripeFailure = e;
+            }
+
+            synchronized (lock) {
+                if (stripeFailure != null && failure == null) {
+                    failure = stripeFailure;
+                }
+                if (--pending == 0) {
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static void runStripe(final StripeTask task, final int stripe, final int rowsPerStripe, final int rows) {
+        final int start = stripe * rowsPerStripe;
+        final int end = Math.min(rows, start + rowsPerStripe);
+        if (start < end) {
+            task.run(start, end);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+
+/**
+ * Base of the Java engines: converts into an int array, split into row stripes aligned to the 2-row chroma
+ * subsampling when a {@link StripeExecutor} is given, then copies it into the image in one bulk put. Every pixel is
+ * computed independently, so the parallel output is bit-identical to the serial one.
+ */
+abstract class StripedConversionEngine implements ConversionEngine {
+    protected final int width;
+
+    protected final int height;
+
+    private final StripeExecutor executor;
+
+    private final int[] bgr;
+
+    private final StripeExecutor.StripeTask stripeTask = new StripeExecutor.StripeTask() {
+        @Override
+        public void run(final int start, final int end) {
+            convertRows(bgr, yuv, start, end);
+        }
+    };
+
+    private byte[] yuv;
+
+    protected StripedConversionEngine(final int width, final int height, final StripeExecutor executor) {
+        this.width = width;
+        this.height = height;
+        this.executor = executor;
+        bgr = new int[width * height];
+    }
+
+    @Override
+    public void convert(final byte[] nv21, final opencv_core.IplImage image) {
+        if (executor == null || executor.getStripeCount() == 1) {
+            convertRows(bgr, nv21, 0, height);
+        } else {
+            yuv = nv21;
+            try {
+                executor.execute(stripeTask, height, 2);
+            } finally {
+                yuv = null;
+            }
+        }
+        image.getIntBuffer().put(bgr);
+    }
+
+    @Override
+    public void release() {
+    }
+
+    /**
+     * @param start first row, even
+     * @param end   last row, exclusive, even unless it is the height
+     */
+    protected abstract void convertRows(int[] bgr, byte[] yuv, int start, int end);
+}
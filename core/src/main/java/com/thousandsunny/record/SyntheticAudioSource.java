@@ -0,0 +1,85 @@
+package com.thousandsunny.record;
+
+/**
+ * A sine tone delivered at the pace of a real microphone, so audio can be recorded on a desktop JVM.
+ */
+public class SyntheticAudioSource implements AudioSource {
+    private static final double AMPLITUDE = 0.25 * Short.MAX_VALUE;
+
+    private final int sampleRate;
+
+    private final int channelCount;
+
+    private final double frequency;
+
+    private long startTime;
+
+    private long generatedFrameCount;
+
+    private volatile boolean stopped;
+
+    public SyntheticAudioSource(final int sampleRate, final int channelCount, final double frequency) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.frequency = frequency;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void start() {
+        startTime = System.nanoTime();
+        generatedFrameCount = 0;
+        stopped = false;
+    }
+
+    @Override
+    public int read(final short[] buffer, final int offset, final int length) {
+        final int frames = length / channelCount;
+        final long due = startTime + (generatedFrameCount + frames) * 1000000000L / sampleRate;
+        long wait;
+        while (!stopped && (wait = due - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        if (stopped) {
+            return 0;
+        }
+
+        int position = offset;
+        for (int i = 0; i < frames; ++i) {
+            final double phase = 2 * Math.PI * frequency * (generatedFrameCount + i) / sampleRate;
+            final short sample = (short) (AMPLITUDE * Math.sin(phase));
+            for (int c = 0; c < channelCount; ++c) {
+                buffer[position++] = sample;
+            }
+        }
+        generatedFrameCount += frames;
+        return frames * channelCount;
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,634 @@
+package com.thousandsunny.record;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Uploads files in fixed-size chunks through an {@link UploadTransport} on a bounded pool of threads, chunks of
+ * one file in parallel. Chunks are read with positional {@link FileChannel} reads into one direct buffer per thread.
+ * A failed chunk is sent again after an exponential backoff with jitter; after {@link #MAX_ATTEMPTS} the upload is
+ * suspended until {@link #retry()} or the next {@link #start()}.
+ * <p>
+ * Every upload is persisted in the state directory with the number of leading chunks acknowledged, updated as that
+ * watermark advances, so a restarted queue resumes from the last acknowledged chunk. Chunks acknowledged beyond a gap
+ * are sent again after a restart, the transport has to accept them twice.
+ */
+public class UploadQueue {
+    private static final Logger LOGGER = Logger.getLogger(UploadQueue.class.getSimpleName());
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    public static final int MAX_ATTEMPTS = 8;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    private static final String STATE_EXTENSION = ".upload";
+
+    /**
+     * Seconds the throughput is averaged over.
+     */
+    private static final int THROUGHPUT_WINDOW = 10;
+
+    public interface Listener {
+        /**
+         * Called on an upload thread whenever the acknowledged watermark advances.
+         */
+        void onProgress(Upload upload);
+
+        void onUploaded(Upload upload);
+
+        /**
+         * @param suspended true if the upload stays queued for {@link #retry()}, false if its file is gone
+         */
+        void onFailed(Upload upload, IOException e, boolean suspended);
+    }
+
+    public static class Upload {
+        private final String id;
+
+        private final File file;
+
+        private final String name;
+
+        private final long size;
+
+        private final int chunkSize;
+
+        private final int chunkCount;
+
+        private final BitSet acknowledged = new BitSet();
+
+        private int watermark;
+
+        private boolean suspended;
+
+        private Upload(final String id,
+                       final File file,
+                       final String name,
+                       final long size,
+                       final int chunkSize,
+                       final int watermark) {
+            this.id = id;
+            this.file = file;
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+            this.watermark = watermark;
+            acknowledged.set(0, watermark);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return what the backend stores the file as
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        /**
+         * @return leading chunks acknowledged, the upload resumes after them
+         */
+        public synchronized int getWatermark() {
+            return watermark;
+        }
+
+        public synchronized long getAcknowledgedBytes() {
+            return Math.min(size, (long) acknowledged.cardinality() * chunkSize);
+        }
+    }
+
+    private final File stateDirectory;
+
+    private final UploadTransport transport;
+
+    private final int chunkSize;
+
+    private final Listener listener;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final BlockingQueue<ByteBuffer> buffers;
+
+    private final Map<String, Upload> uploads = new LinkedHashMap<>();
+
+    private final Random random = new Random();
+
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    private final AtomicLong retryCount = new AtomicLong();
+
+    private final AtomicLong completedCount = new AtomicLong();
+
+    /**
+     * Bytes acknowledged per second of the last {@link #THROUGHPUT_WINDOW} seconds, indexed by second modulo the
+     * window.
+     */
+    private final long[] throughputBuckets = new long[THROUGHPUT_WINDOW];
+
+    private long throughputSecond;
+
+    /**
+     * @param stateDirectory holds one small file per queued upload, created if missing
+     * @param concurrency    chunks sent at the same time
+     */
+    public UploadQueue(final File stateDirectory,
+                       final UploadTransport transport,
+                       final int chunkSize,
+                       final int concurrency,
+                       final Listener listener) {
+        this.stateDirectory = stateDirectory;
+        this.transport = transport;
+        this.chunkSize = chunkSize;
+        this.listener = listener;
+        buffers = new ArrayBlockingQueue<>(concurrency);
+        for (int i = 0; i < concurrency; ++i) {
+            buffers.add(ByteBuffer.allocateDirect(chunkSize));
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(concurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable,
+                        UploadQueue.class.getSimpleName() + "-" + threadCount.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Resumes the uploads persisted by a previous queue, suspended ones included.
+     */
+    public void start() {
+        if (!stateDirectory.isDirectory() && !stateDirectory.mkdirs()) {
+            LOGGER.warning("Cannot create " + stateDirectory);
+            return;
+        }
+
+        final File[] stateFiles = stateDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String filename) {
+                return filename.endsWith(STATE_EXTENSION);
+            }
+        });
+        if (stateFiles == null) {
+            return;
+        }
+        for (final File stateFile : stateFiles) {
+            final Upload upload = readState(stateFile, chunkSize);
+            if (upload == null) {
+                continue;
+            }
+            synchronized (this) {
+                if (uploads.containsKey(upload.file.getPath())) {
+                    continue;
+                }
+                uploads.put(upload.file.getPath(), upload);
+            }
+            LOGGER.info("Resuming " + upload.file + " at chunk " + upload.watermark + "/" + upload.chunkCount);
+            schedule(upload);
+        }
+    }
+
+    /**
+     * Queues a finished file under its own name, see {@link #enqueue(File, String)}.
+     */
+    public void enqueue(final File file) {
+        enqueue(file, file.getName());
+    }
+
+    /**
+     * Queues a finished file, ignored if it is queued already or if it is missing or empty. May be called from any
+     * thread.
+     *
+     * @param name what the backend stores the file as, unique across recordings, e.g. prefixed with the recording
+     */
+    public void enqueue(final File file, final String name) {
+        if (!file.isFile() || file.length() == 0) {
+            LOGGER.warning("Not uploading " + file + ", it is missing or empty");
+            return;
+        }
+        if (!stateDirectory.isDirectory() && !stateDirectory.mkdirs()) {
+            LOGGER.warning("Cannot create " + stateDirectory);
+            return;
+        }
+
+        final Upload upload;
+        synchronized (this) {
+            if (uploads.containsKey(file.getPath())) {
+                return;
+            }
+            upload = new Upload(UUID.randomUUID().toString(), file, name, file.length(), chunkSize, 0);
+            uploads.put(file.getPath(), upload);
+        }
+        try {
+            writeState(upload);
+        } catch (final IOException e) {
+            // uploaded all the same, just not resumable
+            LOGGER.log(Level.WARNING, "Cannot persist the upload of " + file, e);
+        }
+        schedule(upload);
+    }
+
+    /**
+     * Resumes the suspended uploads, e.g. once the network is back.
+     */
+    public void retry() {
+        final List<Upload> suspended = new ArrayList<>();
+        synchronized (this) {
+            for (final Upload upload : uploads.values()) {
+                synchronized (upload) {
+                    if (upload.suspended) {
+                        upload.suspended = false;
+                        suspended.add(upload);
+                    }
+                }
+            }
+        }
+        for (final Upload upload : suspended) {
+            schedule(upload);
+        }
+    }
+
+    /**
+     * Stops sending, the chunks in flight are abandoned and sent again by the next queue.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return uploads not completed yet, suspended ones included
+     */
+    public synchronized int getQueuedCount() {
+        return uploads.size();
+    }
+
+    /**
+     * @return true until the upload of the file completes or is dropped, suspended uploads included
+     */
+    public synchronized boolean isQueued(final File file) {
+        return uploads.containsKey(file.getPath());
+    }
+
+    public synchronized long getPendingBytes() {
+        long pending = 0;
+        for (final Upload upload : uploads.values()) {
+            pending += upload.size - upload.getAcknowledgedBytes();
+        }
+        return pending;
+    }
+
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * @return chunks and completions sent again after a failure
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return bytes acknowledged per second, averaged over the last {@link #THROUGHPUT_WINDOW} seconds
+     */
+    public synchronized long getThroughput() {
+        advanceThroughput(System.nanoTime() / 1000000000L);
+        long bytes = 0;
+        for (final long bucket : throughputBuckets) {
+            bytes += bucket;
+        }
+        return bytes / THROUGHPUT_WINDOW;
+    }
+
+    private void schedule(final Upload upload) {
+        final int watermark;
+        synchronized (upload) {
+            watermark = upload.watermark;
+        }
+        if (watermark == upload.chunkCount) {
+            submitComplete(upload, 0, 0);
+            return;
+        }
+        for (int i = watermark; i < upload.chunkCount; ++i) {
+            synchronized (upload) {
+                if (upload.acknowledged.get(i)) {
+                    continue;
+                }
+            }
+            submitChunk(upload, i, 0, 0);
+        }
+    }
+
+    private void submitChunk(final Upload upload, final int index, final int attempt, final long delayMillis) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendChunk(upload, index, attempt);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void submitComplete(final Upload upload, final int attempt, final long delayMillis) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                complete(upload, attempt);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendChunk(final Upload upload, final int index, final int attempt) {
+        synchronized (upload) {
+            if (upload.suspended) {
+                return;
+            }
+        }
+
+        // never blocks, there is a buffer per thread
+        final ByteBuffer buffer = buffers.poll();
+        inFlightCount.incrementAndGet();
+        try {
+            final long offset = (long) index * chunkSize;
+            read(upload.file, offset, (int) Math.min(chunkSize, upload.size - offset), buffer);
+            transport.sendChunk(upload.id, upload.name, upload.size, offset, buffer);
+            onAcknowledged(upload, index, buffer.limit());
+        } catch (final IOException e) {
+            if (onFailure(upload, attempt, e)) {
+                submitChunk(upload, index, attempt + 1, getBackoffMillis(attempt));
+            }
+        } finally {
+            inFlightCount.decrementAndGet();
+            buffers.add(buffer);
+        }
+    }
+
+    private void complete(final Upload upload, final int attempt) {
+        synchronized (upload) {
+            if (upload.suspended) {
+                return;
+            }
+        }
+
+        try {
+            transport.complete(upload.id, upload.name, upload.size);
+        } catch (final IOException e) {
+            if (onFailure(upload, attempt, e)) {
+                submitComplete(upload, attempt + 1, getBackoffMillis(attempt));
+            }
+            return;
+        }
+
+        remove(upload);
+        completedCount.incrementAndGet();
+        LOGGER.info("Uploaded " + upload.file);
+        if (listener != null) {
+            listener.onUploaded(upload);
+        }
+    }
+
+    private static void read(final File file,
+                             final long offset,
+                             final int length,
+                             final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        final FileInputStream input = new FileInputStream(file);
+        try {
+            final FileChannel channel = input.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException(file + " is shorter than when it was queued");
+                }
+            }
+        } finally {
+            input.close();
+        }
+        buffer.flip();
+    }
+
+    private void onAcknowledged(final Upload upload, final int index, final int length) {
+        uploadedBytes.addAndGet(length);
+        synchronized (this) {
+            advanceThroughput(System.nanoTime() / 1000000000L);
+            throughputBuckets[(int) (throughputSecond % THROUGHPUT_WINDOW)] += length;
+        }
+
+        final boolean advanced;
+        final boolean done;
+        synchronized (upload) {
+            upload.acknowledged.set(index);
+            final int watermark = upload.watermark;
+            while (upload.watermark < upload.chunkCount && upload.acknowledged.get(upload.watermark)) {
+                upload.watermark++;
+            }
+            advanced = upload.watermark != watermark;
+            done = advanced && upload.watermark == upload.chunkCount;
+        }
+        if (!advanced) {
+            return;
+        }
+
+        try {
+            writeState(upload);
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot persist the upload of " + upload.file, e);
+        }
+        if (listener != null) {
+            listener.onProgress(upload);
+        }
+        if (done) {
+            submitComplete(upload, 0, 0);
+        }
+    }
+
+    /**
+     * @return true if the request should be sent again
+     */
+    private boolean onFailure(final Upload upload, final int attempt, final IOException e) {
+        if (!upload.file.isFile()) {
+            LOGGER.log(Level.WARNING, upload.file + " is gone, dropping its upload", e);
+            remove(upload);
+            if (listener != null) {
+                listener.onFailed(upload, e, false);
+            }
+            return false;
+        }
+
+        if (attempt + 1 < MAX_ATTEMPTS) {
+            retryCount.incrementAndGet();
+            LOGGER.fine("Attempt " + (attempt + 1) + " for " + upload.file + " failed: " + e);
+            return true;
+        }
+
+        synchronized (upload) {
+            if (upload.suspended) {
+                // another chunk got here first
+                return false;
+            }
+            upload.suspended = true;
+        }
+        LOGGER.log(Level.WARNING, "Suspending the upload of " + upload.file, e);
+        if (listener != null) {
+            listener.onFailed(upload, e, true);
+        }
+        return false;
+    }
+
+    private long getBackoffMillis(final int attempt) {
+        final long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << attempt);
+        // spreads the retries of the chunks that failed together
+        synchronized (random) {
+            return backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+        }
+    }
+
+    private void advanceThroughput(final long second) {
+        if (second - throughputSecond >= THROUGHPUT_WINDOW) {
+            Arrays.fill(throughputBuckets, 0);
+        } else {
+            for (long s = throughputSecond + 1; s <= second; ++s) {
+                throughputBuckets[(int) (s % THROUGHPUT_WINDOW)] = 0;
+            }
+        }
+        throughputSecond = Math.max(throughputSecond, second);
+    }
+
+    private void remove(final Upload upload) {
+        synchronized (this) {
+            uploads.remove(upload.file.getPath());
+        }
+        final File stateFile = getStateFile(upload.id);
+        if (stateFile.exists() && !stateFile.delete()) {
+            LOGGER.warning("Cannot delete " + stateFile);
+        }
+    }
+
+    private File getStateFile(final String id) {
+        return new File(stateDirectory, id + STATE_EXTENSION);
+    }
+
+    /**
+     * Written to a temporary file and renamed, a crash leaves either watermark.
+     */
+    private void writeState(final Upload upload) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("file", upload.file.getPath());
+        properties.setProperty("name", upload.name);
+        properties.setProperty("size", Long.toString(upload.size));
+        properties.setProperty("chunkSize", Integer.toString(upload.chunkSize));
+
+        final File stateFile = getStateFile(upload.id);
+        final File temporary = new File(stateDirectory, upload.id + ".tmp");
+        // a later watermark is never overwritten by an earlier one
+        synchronized (upload) {
+            properties.setProperty("watermark", Integer.toString(upload.watermark));
+            final OutputStream output = new FileOutputStream(temporary);
+            try {
+                properties.store(output, null);
+            } finally {
+                output.close();
+            }
+            if (!temporary.renameTo(stateFile)) {
+                throw new IOException("Cannot rename " + temporary + " to " + stateFile);
+            }
+        }
+    }
+
+    /**
+     * @return null if the state is unreadable or its file changed, the state is deleted then
+     */
+    private static Upload readState(final File stateFile, final int chunkSize) {
+        final String name = stateFile.getName();
+        final String id = name.substring(0, name.length() - STATE_EXTENSION.length());
+        final Properties properties = new Properties();
+        try {
+            final InputStream input = new FileInputStream(stateFile);
+            try {
+                properties.load(input);
+            } finally {
+                input.close();
+            }
+            final File file = new File(properties.getProperty("file"));
+            final long size = Long.parseLong(properties.getProperty("size"));
+            if (file.length() != size) {
+                throw new IOException(file + " changed since it was queued");
+            }
+            // queued with another chunk size, resumes at the last whole chunk of this one
+            final long acknowledgedBytes = (long) Integer.parseInt(properties.getProperty("watermark"))
+                    * Integer.parseInt(properties.getProperty("chunkSize"));
+            // queued before the name was persisted
+            final String uploadName = properties.getProperty("name", file.getName());
+            final Upload upload = new Upload(id,
+                    file,
+                    uploadName,
+                    size,
+                    chunkSize,
+                    (int) Math.min(acknowledgedBytes / chunkSize, Integer.MAX_VALUE));
+            if (upload.watermark > upload.chunkCount) {
+                throw new IOException("Watermark beyond the end");
+            }
+            return upload;
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Dropping the upload " + stateFile, e);
+            if (!stateFile.delete()) {
+                LOGGER.warning("Cannot delete " + stateFile);
+            }
+            return null;
+        }
+    }
+}
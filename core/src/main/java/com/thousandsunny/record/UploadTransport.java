@@ -0,0 +1,24 @@
+package com.thousandsunny.record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the chunks of an {@link UploadQueue} upload to the backend. Implementations are called from several upload
+ * threads at once, for chunks of the same upload too, and must be idempotent: a chunk is sent again when its
+ * acknowledgement was lost. The name of an upload is what the backend stores it as, it may hold a {@code /} below
+ * which the files of one recording are grouped.
+ */
+public interface UploadTransport {
+    /**
+     * Returns once the backend has acknowledged the chunk.
+     *
+     * @param data the chunk, from its position to its limit
+     */
+    void sendChunk(String uploadId, String name, long totalSize, long offset, ByteBuffer data) throws IOException;
+
+    /**
+     * Called once every chunk has been acknowledged.
+     */
+    void complete(String uploadId, String name, long totalSize) throws IOException;
+}
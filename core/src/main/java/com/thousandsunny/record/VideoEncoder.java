@@ -0,0 +1,58 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+
+import java.io.File;
+
+/**
+ * Turns processed frames into a video file. Implementations are driven by a single recording thread:
+ * {@link #start(File, EncoderSettings)}, any number of {@link #encode(opencv_core.IplImage, long)}, then
+ * {@link #stop()} and {@link #release()}; {@link #release()} is also called when start fails. Audio, when the backend
+ * supports it, is encoded by the same thread.
+ */
+public interface VideoEncoder {
+    interface Factory {
+        String getName();
+
+        VideoEncoder create();
+    }
+
+    /**
+     * @return false if the backend only records video
+     */
+    boolean supportsAudio();
+
+    /**
+     * Adds a 16-bit PCM audio track, must be called before {@link #start(File, EncoderSettings)}.
+     *
+     * @throws EncoderException if the backend does not {@link #supportsAudio()}
+     */
+    void setAudioFormat(int sampleRate, int channelCount) throws EncoderException;
+
+    /**
+     * Opens the codec and the container, the output is square with {@link EncoderSettings#getOutputSide()}.
+     */
+    void start(File outputFile, EncoderSettings settings) throws EncoderException;
+
+    /**
+     * @param image           a 2-channel image holding NV21, or a 4-channel packed BGR image
+     * @param timestampMicros presentation time since start
+     * @return false if the timestamp was not ahead of the previous frame and the encoder picked another one
+     */
+    boolean encode(opencv_core.IplImage image, long timestampMicros) throws EncoderException;
+
+    /**
+     * @param samples         interleaved samples, {@code length} of them
+     * @param timestampMicros capture time of the first sample since start, on the clock of the video timestamps
+     */
+    void encodeAudio(short[] samples, int length, long timestampMicros) throws EncoderException;
+
+    /**
+     * Flushes the codec and finalises the container.
+     */
+    void stop() throws EncoderException;
+
+    void release();
+
+    String getName();
+}
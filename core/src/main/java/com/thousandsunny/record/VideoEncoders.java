@@ -0,0 +1,72 @@
+package com.thousandsunny.record;
+
+import java.io.File;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class VideoEncoders {
+    private static final Logger LOGGER = Logger.getLogger(VideoEncoders.class.getSimpleName());
+
+    private VideoEncoders() {
+    }
+
+    /**
+     * Starts the first backend that manages to, in order of preference.
+     *
+     * @throws EncoderException the failure of the last backend if none could start
+     */
+    public static VideoEncoder start(final List<VideoEncoder.Factory> factories,
+                                     final File outputFile,
+                                     final EncoderSettings settings) throws EncoderException {
+        return start(factories, outputFile, settings, 0, 0);
+    }
+
+    /**
+     * With an audio format the backends supporting audio are tried first, in order of preference, and the others
+     * only record video if none of them could start; check {@link VideoEncoder#supportsAudio()} of the result.
+     *
+     * @param audioSampleRate 0 for video only
+     * @throws EncoderException the failure of the last backend if none could start
+     */
+    public static VideoEncoder start(final List<VideoEncoder.Factory> factories,
+                                     final File outputFile,
+                                     final EncoderSettings settings,
+                                     final int audioSampleRate,
+                                     final int audioChannelCount) throws EncoderException {
+        EncoderException failure = null;
+        if (audioSampleRate > 0) {
+            for (final VideoEncoder.Factory factory : factories) {
+                final VideoEncoder candidate = factory.create();
+                if (!candidate.supportsAudio()) {
+                    candidate.release();
+                    continue;
+                }
+
+                try {
+                    candidate.setAudioFormat(audioSampleRate, audioChannelCount);
+                    candidate.start(outputFile, settings);
+                    return candidate;
+                } catch (final EncoderException e) {
+                    LOGGER.log(Level.WARNING, "Encoder " + factory.getName() + " failed to start with audio", e);
+                    candidate.release();
+                    failure = e;
+                }
+            }
+            LOGGER.warning("No encoder backend could record audio, recording video only");
+        }
+
+        for (final VideoEncoder.Factory factory : factories) {
+            final VideoEncoder candidate = factory.create();
+            try {
+                candidate.start(outputFile, settings);
+                return candidate;
+            } catch (final EncoderException e) {
+                LOGGER.log(Level.WARNING, "Encoder " + factory.getName() + " failed to start, trying the next one", e);
+                candidate.release();
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+}
@@ -0,0 +1,124 @@
+package com.thousandsunny.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Crops, rotates and downscales an NV21 preview frame into an NV21 output square without going through RGB.
+ * Both the Y plane and the interleaved VU plane are box-averaged over the footprints of the same
+ * {@link SquareCropTransform}, a chroma sample of the output averages the source pairs under its 2x2 block. Frames
+ * which are only cropped and rotated are copied sample by sample.
+ */
+public class YUVSquareKernel {
+    private final SquareCropTransform transform;
+
+    private final byte[] row;
+
+    public YUVSquareKernel(final SquareCropTransform transform) {
+        this.transform = transform;
+        row = new byte[transform.getOutputSide()];
+    }
+
+    public SquareCropTransform getTransform() {
+        return transform;
+    }
+
+    /**
+     * @return the number of bytes of a {@code outputSide x outputSide} NV21 frame
+     */
+    public int getFrameSize() {
+        final int side = transform.getOutputSide();
+        return side * side * 3 / 2;
+    }
+
+    /**
+     * @param nv21 receives the Y plane followed by the interleaved VU plane, written from position 0
+     */
+    public void process(final byte[] yuv, final ByteBuffer nv21) {
+        nv21.position(0);
+        if (transform.isPointSampled()) {
+            copy(yuv, nv21);
+        } else {
+            average(yuv, nv21);
+        }
+        nv21.position(0);
+    }
+
+    private void copy(final byte[] yuv, final ByteBuffer nv21) {
+        final int side = transform.getOutputSide();
+        final int[] lumaOuter = transform.getLumaOuter();
+        final int[] lumaInner = transform.getLumaInner();
+        final int[] chromaOuter = transform.getChromaOuter();
+        final int[] chromaInner = transform.getChromaInner();
+
+        for (int i = 0; i < side; ++i) {
+            final int lumaRow = lumaOuter[i];
+            for (int j = 0; j < side; ++j) {
+                row[j] = yuv[lumaRow + lumaInner[j]];
+            }
+            nv21.put(row, 0, side);
+        }
+
+        for (int i = 0; i < side; i += 2) {
+            final int chromaRow = chromaOuter[i];
+            for (int j = 0; j < side; j += 2) {
+                final int c = chromaRow + chromaInner[j];
+                row[j] = yuv[c];
+                row[j + 1] = yuv[c + 1];
+            }
+            nv21.put(row, 0, side);
+        }
+    }
+
+    private void average(final byte[] yuv, final ByteBuffer nv21) {
+        final int side = transform.getOutputSide();
+        final int[] lumaOuter = transform.getLumaOuter();
+        final int[] lumaInner = transform.getLumaInner();
+        final int[] lumaOuterCount = transform.getLumaOuterCount();
+        final int[] lumaInnerCount = transform.getLumaInnerCount();
+        final int lumaOuterStep = transform.getLumaOuterStep();
+        final int lumaInnerStep = transform.getLumaInnerStep();
+        final int[] chromaOuter = transform.getChromaOuter();
+        final int[] chromaInner = transform.getChromaInner();
+        final int[] chromaOuterCount = transform.getChromaOuterCount();
+        final int[] chromaInnerCount = transform.getChromaInnerCount();
+        final int chromaOuterStep = transform.getChromaOuterStep();
+        final int chromaInnerStep = transform.getChromaInnerStep();
+
+        for (int i = 0; i < side; ++i) {
+            final int lumaRow = lumaOuter[i];
+            final int outerCount = lumaOuterCount[i];
+            for (int j = 0; j < side; ++j) {
+                final int innerCount = lumaInnerCount[j];
+                int sum = 0;
+                for (int a = 0, o = lumaRow + lumaInner[j]; a < outerCount; ++a, o += lumaOuterStep) {
+                    for (int b = 0, p = o; b < innerCount; ++b, p += lumaInnerStep) {
+                        sum += 0xff & yuv[p];
+                    }
+                }
+                final int count = outerCount * innerCount;
+                row[j] = (byte) ((sum + count / 2) / count);
+            }
+            nv21.put(row, 0, side);
+        }
+
+        for (int i = 0; i < side; i += 2) {
+            final int chromaRow = chromaOuter[i];
+            final int outerCount = chromaOuterCount[i];
+            for (int j = 0; j < side; j += 2) {
+                final int innerCount = chromaInnerCount[j];
+                int v = 0;
+                int u = 0;
+                for (int a = 0, o = chromaRow + chromaInner[j]; a < outerCount; ++a, o += chromaOuterStep) {
+                    for (int b = 0, p = o; b < innerCount; ++b, p += chromaInnerStep) {
+                        v += 0xff & yuv[p];
+                        u += 0xff & yuv[p + 1];
+                    }
+                }
+                final int count = outerCount * innerCount;
+                row[j] = (byte) ((v + count / 2) / count);
+                row[j + 1] = (byte) ((u + count / 2) / count);
+            }
+            nv21.put(row, 0, side);
+        }
+    }
+}
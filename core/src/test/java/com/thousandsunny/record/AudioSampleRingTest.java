@@ -0,0 +1,62 @@
+package com.thousandsunny.record;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class AudioSampleRingTest {
+    @Test
+    public void testDeliversBuffersInOrder() {
+        final AudioSampleRing ring = new AudioSampleRing(4, 8);
+        for (int i = 1; i <= 3; ++i) {
+            publish(ring, i);
+        }
+
+        for (int i = 1; i <= 3; ++i) {
+            final short[] samples = ring.peek();
+            assertEquals(i, samples[0]);
+            assertEquals(i, ring.getLength());
+            assertEquals(i * 1000L, ring.getTimestamp());
+            ring.release();
+        }
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void testDropsWhileFull() {
+        final AudioSampleRing ring = new AudioSampleRing(2, 8);
+        publish(ring, 1);
+        publish(ring, 2);
+
+        assertNull(ring.claim());
+        assertEquals(1, ring.getDroppedCount());
+
+        ring.peek();
+        ring.release();
+        assertNotNull(ring.claim());
+    }
+
+    @Test
+    public void testWrapsAround() {
+        final AudioSampleRing ring = new AudioSampleRing(3, 8);
+        for (int i = 1; i <= 10; ++i) {
+            publish(ring, i);
+            assertEquals(i, ring.peek()[0]);
+            assertEquals(i * 1000L, ring.getTimestamp());
+            ring.release();
+        }
+        assertEquals(10, ring.getPublishedCount());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    /**
+     * Publishes {@code value} samples of {@code value}, captured at {@code value} microseconds.
+     */
+    private static void publish(final AudioSampleRing ring, final int value) {
+        final short[] buffer = ring.claim();
+        buffer[0] = (short) value;
+        ring.publish(value, value * 1000L);
+    }
+}
@@ -0,0 +1,102 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_imgproc;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+
+/**
+ * The Java engines are bit-identical to the {@link NV21Converter} reference, serial and striped; the native one is
+ * within {@link ConversionEngines#TOLERANCE} of it.
+ */
+public class ConversionEngineTest {
+    /**
+     * Not a multiple of the stripe count, the last stripe is shorter.
+     */
+    private static final int WIDTH = 64;
+
+    private static final int HEIGHT = 46;
+
+    private final byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+
+    private StripeExecutor executor;
+
+    @Before
+    public void setUp() {
+        // random samples cover the clamping at both ends of every channel
+        new Random(42).nextBytes(frame);
+        executor = new StripeExecutor(3);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLUTMatchesReference() {
+        assertArrayEquals(convert(NV21Converter.FACTORY, null), convert(LUTConversionEngine.FACTORY, null));
+    }
+
+    @Test
+    public void testStripedReferenceMatchesSerial() {
+        assertArrayEquals(convert(NV21Converter.FACTORY, null), convert(NV21Converter.FACTORY, executor));
+    }
+
+    @Test
+    public void testStripedLUTMatchesReference() {
+        assertArrayEquals(convert(NV21Converter.FACTORY, null), convert(LUTConversionEngine.FACTORY, executor));
+    }
+
+    @Test
+    public void testNativeWithinTolerance() {
+        try {
+            Loader.load(opencv_imgproc.class);
+        } catch (final UnsatisfiedLinkError e) {
+            // no OpenCV build for this platform
+            assumeNoException(e);
+        }
+
+        final int[] expected = convert(NV21Converter.FACTORY, null);
+        final int[] actual = convert(NativeConversionEngine.FACTORY, executor);
+        int max = 0;
+        for (int i = 0; i < expected.length; ++i) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                max = Math.max(max, Math.abs(((expected[i] >> shift) & 0xff) - ((actual[i] >> shift) & 0xff)));
+            }
+        }
+        assertTrue("Differs by " + max, max <= ConversionEngines.TOLERANCE);
+    }
+
+    @Test
+    public void testCalibrationPicksAccurateEngine() {
+        final ConversionEngine.Factory fastest = ConversionEngines.calibrate(ConversionEngines.FACTORIES,
+                WIDTH,
+                HEIGHT,
+                executor);
+        assertTrue(ConversionEngines.FACTORIES.contains(fastest));
+    }
+
+    private int[] convert(final ConversionEngine.Factory factory, final StripeExecutor executor) {
+        final opencv_core.IplImage image = opencv_core.IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 4);
+        final ConversionEngine engine = factory.create(WIDTH, HEIGHT, executor);
+        try {
+            engine.convert(frame, image);
+            final int[] bgr = new int[WIDTH * HEIGHT];
+            image.getIntBuffer().get(bgr);
+            return bgr;
+        } finally {
+            engine.release();
+            image.release();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.thousandsunny.record;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncodedPacketRingTest {
+    private static final long FRAME_MICROS = 100000;
+
+    @Test
+    public void testWaitsForKeyFrame() {
+        final EncodedPacketRing ring = new EncodedPacketRing(1024, 16, 1000000);
+        assertFalse(append(ring, 0, 10, false));
+        assertEquals(1, ring.getDroppedPacketCount());
+
+        assertTrue(append(ring, 1, 10, true));
+        assertTrue(append(ring, 2, 10, false));
+        assertEquals(2, ring.getPacketCount());
+        assertTrue(ring.isKeyFrame(0));
+    }
+
+    @Test
+    public void testEvictsWholeGopsOutsideWindow() {
+        // a GOP of 10 packets per second, 3 of them against a 1s window
+        final EncodedPacketRing ring = new EncodedPacketRing(4096, 64, 1000000);
+        for (int i = 0; i < 30; ++i) {
+            assertTrue(append(ring, i, 10, i % 10 == 0));
+        }
+
+        assertEquals(20, ring.getPacketCount());
+        assertEquals(10, ring.getEvictedPacketCount());
+        assertTrue(ring.isKeyFrame(0));
+        assertEquals(10 * FRAME_MICROS, ring.getPresentationTime(0));
+        assertEquals(19 * FRAME_MICROS, ring.getDurationMicros());
+    }
+
+    @Test
+    public void testWrapsAroundWhenFull() {
+        // room for 3 packets of 30 bytes, a GOP of 2 packets
+        final EncodedPacketRing ring = new EncodedPacketRing(100, 16, Long.MAX_VALUE / 2);
+        assertTrue(append(ring, 0, 30, true));
+        assertTrue(append(ring, 1, 30, false));
+        assertTrue(append(ring, 2, 30, true));
+        assertTrue(append(ring, 3, 30, false));
+
+        // the first GOP made room at the start of the array
+        assertEquals(2, ring.getPacketCount());
+        assertEquals(2, ring.getEvictedPacketCount());
+        assertEquals(60, ring.getOffset(0));
+        assertEquals(0, ring.getOffset(1));
+        assertPacket(ring, 0, 2, 30);
+        assertPacket(ring, 1, 3, 30);
+
+        final EncodedPacketRing copy = new EncodedPacketRing(100, 16, Long.MAX_VALUE / 2);
+        ring.copyTo(copy);
+        assertEquals(2, copy.getPacketCount());
+        assertEquals(0, copy.getOffset(0));
+        assertEquals(30, copy.getOffset(1));
+        assertPacket(copy, 0, 2, 30);
+        assertPacket(copy, 1, 3, 30);
+    }
+
+    @Test
+    public void testDropsPacketLargerThanRingUntilNextKeyFrame() {
+        final EncodedPacketRing ring = new EncodedPacketRing(100, 16, 1000000);
+        assertTrue(append(ring, 0, 10, true));
+        assertFalse(append(ring, 1, 101, false));
+        assertFalse("the GOP is broken", append(ring, 2, 10, false));
+        assertTrue(append(ring, 3, 10, true));
+
+        assertEquals(2, ring.getDroppedPacketCount());
+        assertEquals(2, ring.getPacketCount());
+    }
+
+    /**
+     * Appends a packet of {@code length} bytes filled with {@code frame}, presented at frame times.
+     */
+    private static boolean append(final EncodedPacketRing ring,
+                                  final int frame,
+                                  final int length,
+                                  final boolean keyFrame) {
+        final byte[] packet = new byte[length];
+        Arrays.fill(packet, (byte) frame);
+        return ring.append(packet, 0, length, frame * FRAME_MICROS, frame * FRAME_MICROS, keyFrame);
+    }
+
+    private static void assertPacket(final EncodedPacketRing ring, final int packet, final int frame, final int length) {
+        assertEquals(length, ring.getLength(packet));
+        assertEquals(frame * FRAME_MICROS, ring.getPresentationTime(packet));
+        final int offset = ring.getOffset(packet);
+        for (int i = offset; i < offset + length; ++i) {
+            assertEquals(frame, ring.getData()[i]);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.thousandsunny.record;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_core.IPL_DEPTH_8U;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The {@link VideoEncoder} contract against the software backend, and the fallback of {@link VideoEncoders} to it.
+ */
+public class FFmpegVideoEncoderTest {
+    private static final int SIDE = 64;
+
+    private static final long FRAME_MICROS = 33333;
+
+    private static final EncoderSettings SETTINGS = new EncoderSettings(false, 30, "ultrafast", SIDE, 168000);
+
+    private File outputFile;
+
+    private opencv_core.IplImage image;
+
+    @Before
+    public void setUp() throws IOException {
+        outputFile = File.createTempFile("encoder", ".mp4");
+        image = opencv_core.IplImage.create(SIDE, SIDE, IPL_DEPTH_8U, 2);
+        final byte[] nv21 = new byte[SIDE * SIDE * 3 / 2];
+        Arrays.fill(nv21, 0, SIDE * SIDE, (byte) 0x80);
+        Arrays.fill(nv21, SIDE * SIDE, nv21.length, (byte) 0x40);
+        image.getByteBuffer().put(nv21);
+    }
+
+    @After
+    public void tearDown() {
+        image.release();
+        outputFile.delete();
+    }
+
+    @Test
+    public void testEncodesFrames() throws EncoderException {
+        final VideoEncoder encoder = FFmpegVideoEncoder.FACTORY.create();
+        try {
+            encoder.start(outputFile, SETTINGS);
+            for (int i = 1; i <= 30; ++i) {
+                assertTrue(encoder.encode(image, i * FRAME_MICROS));
+            }
+            encoder.stop();
+        } finally {
+            encoder.release();
+        }
+        assertTrue(outputFile.length() > 0);
+    }
+
+    @Test
+    public void testReportsTimestampNotAhead() throws EncoderException {
+        final VideoEncoder encoder = FFmpegVideoEncoder.FACTORY.create();
+        try {
+            encoder.start(outputFile, SETTINGS);
+            assertTrue(encoder.encode(image, 2 * FRAME_MICROS));
+            assertFalse(encoder.encode(image, 2 * FRAME_MICROS));
+            assertFalse(encoder.encode(image, FRAME_MICROS));
+            encoder.stop();
+        } finally {
+            encoder.release();
+        }
+    }
+
+    @Test
+    public void testEncodesAudio() throws EncoderException {
+        final VideoEncoder encoder = FFmpegVideoEncoder.FACTORY.create();
+        assertTrue(encoder.supportsAudio());
+        final short[] samples = new short[1024];
+        try {
+            encoder.setAudioFormat(44100, 1);
+            encoder.start(outputFile, SETTINGS);
+            for (int i = 1; i <= 30; ++i) {
+                encoder.encode(image, i * FRAME_MICROS);
+                encoder.encodeAudio(samples, samples.length, i * FRAME_MICROS);
+            }
+            encoder.stop();
+        } finally {
+            encoder.release();
+        }
+        assertTrue(outputFile.length() > 0);
+    }
+
+    @Test
+    public void testFallsBackWhenBackendCannotStart() throws EncoderException {
+        final FailingEncoder failing = new FailingEncoder();
+        final VideoEncoder encoder = VideoEncoders.start(Arrays.asList(failing.factory, FFmpegVideoEncoder.FACTORY),
+                outputFile,
+                SETTINGS);
+        try {
+            assertEquals(FFmpegVideoEncoder.NAME, encoder.getName());
+            assertTrue(failing.released);
+            assertTrue(encoder.encode(image, FRAME_MICROS));
+            encoder.stop();
+        } finally {
+            encoder.release();
+        }
+    }
+
+    @Test
+    public void testPrefersBackendWithAudio() throws EncoderException {
+        final FailingEncoder videoOnly = new FailingEncoder();
+        final VideoEncoder encoder = VideoEncoders.start(Arrays.asList(videoOnly.factory, FFmpegVideoEncoder.FACTORY),
+                outputFile,
+                SETTINGS,
+                44100,
+                1);
+        try {
+            assertEquals(FFmpegVideoEncoder.NAME, encoder.getName());
+            assertFalse("a backend without audio is not even started", videoOnly.started);
+            encoder.stop();
+        } finally {
+            encoder.release();
+        }
+    }
+
+    @Test(expected = EncoderException.class)
+    public void testThrowsWhenNoBackendCanStart() throws EncoderException {
+        VideoEncoders.start(Arrays.asList(new FailingEncoder().factory, new FailingEncoder().factory),
+                outputFile,
+                SETTINGS);
+    }
+
+    /**
+     * A video-only backend which never starts.
+     */
+    private static class FailingEncoder implements VideoEncoder {
+        private boolean started;
+
+        private boolean released;
+
+        private final Factory factory = new Factory() {
+            @Override
+            public String getName() {
+                return "failing";
+            }
+
+            @Override
+            public VideoEncoder create() {
+                return FailingEncoder.this;
+            }
+        };
+
+        @Override
+        public boolean supportsAudio() {
+            return false;
+        }
+
+        @Override
+        public void setAudioFormat(final int sampleRate, final int channelCount) throws EncoderException {
+            throw new EncoderException("No audio");
+        }
+
+        @Override
+        public void start(final File outputFile, final EncoderSettings settings) throws EncoderException {
+            started = true;
+            throw new EncoderException("Cannot start");
+        }
+
+        @Override
+        public boolean encode(final opencv_core.IplImage image, final long timestampMicros) {
+            throw new IllegalStateException("Not started");
+        }
+
+        @Override
+        public void encodeAudio(final short[] samples, final int length, final long timestampMicros) {
+            throw new IllegalStateException("Not started");
+        }
+
+        @Override
+        public void stop() {
+            throw new IllegalStateException("Not started");
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+
+        @Override
+        public String getName() {
+            return factory.getName();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.thousandsunny.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link FrameDumpWriter} to {@link FrameDumpReader} round trips.
+ */
+public class FrameDumpTest {
+    private static final int WIDTH = 4;
+
+    private static final int HEIGHT = 2;
+
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+
+    private File dumpFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dumpFile = File.createTempFile("frames", FrameDump.EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        dumpFile.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final FrameDumpWriter writer = new FrameDumpWriter(dumpFile, WIDTH, HEIGHT, FrameDump.FORMAT_NV21, 270, true);
+        // fewer frames than the writer queues, none is dropped
+        for (int i = 1; i <= 3; ++i) {
+            assertTrue(writer.write(frame(i), i * 33000000L));
+        }
+        writer.close();
+
+        final FrameDumpReader reader = new FrameDumpReader(dumpFile);
+        try {
+            assertEquals(WIDTH, reader.getWidth());
+            assertEquals(HEIGHT, reader.getHeight());
+            assertEquals(FrameDump.FORMAT_NV21, reader.getFormat());
+            assertEquals(270, reader.getDegree());
+            assertTrue(reader.isMirror());
+
+            final byte[] payload = new byte[FRAME_SIZE];
+            for (int i = 1; i <= 3; ++i) {
+                assertTrue(reader.next());
+                assertEquals(i * 33000000L, reader.getTimestamp());
+                assertEquals(FRAME_SIZE, reader.getLength());
+                reader.read(payload);
+                assertArrayEquals(frame(i), payload);
+            }
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testReadsVersion1() throws IOException {
+        final DataOutputStream output = new DataOutputStream(new FileOutputStream(dumpFile));
+        try {
+            output.writeInt(FrameDump.MAGIC);
+            output.writeInt(1);
+            output.writeInt(WIDTH);
+            output.writeInt(HEIGHT);
+            output.writeInt(FrameDump.FORMAT_NV21);
+            output.writeInt(90);
+            output.writeLong(1000);
+            output.writeInt(FRAME_SIZE);
+            output.write(frame(7));
+            // a truncated last frame
+            output.writeLong(2000);
+            output.writeInt(FRAME_SIZE);
+            output.write(frame(8), 0, FRAME_SIZE - 1);
+        } finally {
+            output.close();
+        }
+
+        final FrameDumpReader reader = new FrameDumpReader(dumpFile);
+        try {
+            assertEquals(90, reader.getDegree());
+            assertFalse(reader.isMirror());
+
+            final byte[] payload = new byte[FRAME_SIZE];
+            assertTrue(reader.next());
+            assertEquals(1000, reader.getTimestamp());
+            reader.read(payload);
+            assertArrayEquals(frame(7), payload);
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        final FileOutputStream output = new FileOutputStream(dumpFile);
+        try {
+            output.write(new byte[FrameDump.HEADER_SIZE]);
+        } finally {
+            output.close();
+        }
+        new FrameDumpReader(dumpFile);
+    }
+
+    private static byte[] frame(final int value) {
+        final byte[] frame = new byte[FRAME_SIZE];
+        for (int i = 0; i < frame.length; ++i) {
+            frame[i] = (byte) (value * 16 + i);
+        }
+        return frame;
+    }
+}
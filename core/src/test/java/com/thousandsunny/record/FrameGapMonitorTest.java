@@ -0,0 +1,104 @@
+package com.thousandsunny.record;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link FrameGapMonitor} against a simulated camera with 3 buffers at 30fps, whose callbacks run one at a time and
+ * return their buffer when they end.
+ */
+public class FrameGapMonitorTest {
+    private static final int BUFFER_COUNT = 3;
+
+    private static final long FRAME_INTERVAL_NANOS = 1000000000L / 30;
+
+    private static final long QUICK_NANOS = 5000000L;
+
+    @Test
+    public void testCountsNothingWhileOnTime() {
+        final FrameGapMonitor monitor = new FrameGapMonitor(30);
+        assertEquals(0, run(monitor, callbacks(60), 1));
+        assertEquals(0, monitor.getExhaustedCount());
+    }
+
+    @Test
+    public void testCountsFramesDroppedBehindLateCallback() {
+        final long[] durations = callbacks(60);
+        // 4.5 frame intervals, the 2 free buffers fill up and the camera drops 2 frames
+        durations[10] = FRAME_INTERVAL_NANOS * 9 / 2;
+        final FrameGapMonitor monitor = new FrameGapMonitor(30);
+        final int dropped = run(monitor, durations, 1);
+
+        assertEquals(2, dropped);
+        assertEquals(dropped, monitor.getDroppedFrameCount());
+        assertEquals(1, monitor.getExhaustedCount());
+    }
+
+    @Test
+    public void testCountsRepeatedExhaustions() {
+        final long[] durations = callbacks(120);
+        durations[10] = FRAME_INTERVAL_NANOS * 4;
+        durations[50] = FRAME_INTERVAL_NANOS * 7;
+        // late, but the queued frames still find a buffer
+        durations[90] = FRAME_INTERVAL_NANOS * 3 / 2;
+        final FrameGapMonitor monitor = new FrameGapMonitor(30);
+        final int dropped = run(monitor, durations, 1);
+
+        assertTrue(dropped > 0);
+        assertEquals(dropped, monitor.getDroppedFrameCount());
+        assertEquals(2, monitor.getExhaustedCount());
+    }
+
+    @Test
+    public void testIgnoresCameraSlowingDown() {
+        // a longer exposure halves the frame rate, every callback is quick
+        final FrameGapMonitor monitor = new FrameGapMonitor(30);
+        assertEquals(0, run(monitor, callbacks(60), 2));
+        assertEquals(0, monitor.getDroppedFrameCount());
+    }
+
+    private static long[] callbacks(final int count) {
+        final long[] durations = new long[count];
+        Arrays.fill(durations, QUICK_NANOS);
+        return durations;
+    }
+
+    /**
+     * @param durations how long the callback of each captured frame takes
+     * @param period    the camera captures every {@code period} frame intervals
+     * @return the frames the camera dropped for want of a buffer
+     */
+    private static int run(final FrameGapMonitor monitor, final long[] durations, final int period) {
+        // end of the callback of every frame holding a buffer
+        final List<Long> ends = new ArrayList<>();
+        long previousEnd = 0;
+        int dropped = 0;
+        for (int i = 0; i < durations.length; ++i) {
+            // away from 0, the monitor takes 0 for no callback yet
+            final long captured = FRAME_INTERVAL_NANOS * (i * period + 1);
+            int held = 0;
+            for (final long end : ends) {
+                if (end > captured) {
+                    held++;
+                }
+            }
+            if (held >= BUFFER_COUNT) {
+                dropped++;
+                continue;
+            }
+
+            final long start = Math.max(captured, previousEnd);
+            previousEnd = start + durations[i];
+            ends.add(previousEnd);
+            monitor.onDelivered(start);
+            monitor.onReturned(previousEnd);
+        }
+        return dropped;
+    }
+}
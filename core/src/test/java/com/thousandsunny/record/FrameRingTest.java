@@ -0,0 +1,101 @@
+package com.thousandsunny.record;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRingTest {
+    private static final int FRAME_SIZE = 8;
+
+    @Test
+    public void testDropOldestKeepsNewestFrames() throws InterruptedException {
+        final FrameRing ring = new FrameRing(2, FRAME_SIZE, FrameRing.OverflowPolicy.DROP_OLDEST);
+        assertTrue(ring.offer(frame(1), FRAME_SIZE, 1));
+        assertTrue(ring.offer(frame(2), FRAME_SIZE, 2));
+        assertTrue(ring.offer(frame(3), FRAME_SIZE, 3));
+
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(3, ring.getQueuedCount());
+        assertTake(ring, 2);
+        assertTake(ring, 3);
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void testDropNewestKeepsQueuedFrames() throws InterruptedException {
+        final FrameRing ring = new FrameRing(2, FRAME_SIZE, FrameRing.OverflowPolicy.DROP_NEWEST);
+        assertTrue(ring.offer(frame(1), FRAME_SIZE, 1));
+        assertTrue(ring.offer(frame(2), FRAME_SIZE, 2));
+        assertFalse(ring.offer(frame(3), FRAME_SIZE, 3));
+
+        assertEquals(1, ring.getDroppedCount());
+        assertTake(ring, 1);
+        assertTake(ring, 2);
+    }
+
+    @Test
+    public void testBlockWaitsForFreeSlot() throws InterruptedException {
+        final FrameRing ring = new FrameRing(2, FRAME_SIZE, FrameRing.OverflowPolicy.BLOCK);
+        ring.offer(frame(1), FRAME_SIZE, 1);
+        ring.offer(frame(2), FRAME_SIZE, 2);
+
+        final AtomicBoolean offered = new AtomicBoolean();
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                offered.set(ring.offer(frame(3), FRAME_SIZE, 3));
+            }
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue("blocks while the ring is full", producer.isAlive());
+
+        assertTake(ring, 1);
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(offered.get());
+        assertEquals(0, ring.getDroppedCount());
+        assertTake(ring, 2);
+        assertTake(ring, 3);
+    }
+
+    @Test
+    public void testCloseDrainsQueuedFrames() throws InterruptedException {
+        final FrameRing ring = new FrameRing(2, FRAME_SIZE, FrameRing.OverflowPolicy.BLOCK);
+        ring.offer(frame(1), FRAME_SIZE, 1);
+        ring.close();
+
+        assertFalse(ring.offer(frame(2), FRAME_SIZE, 2));
+        assertTake(ring, 1);
+        assertNull(ring.take());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsFrameLargerThanSlot() {
+        new FrameRing(2, FRAME_SIZE, FrameRing.OverflowPolicy.DROP_NEWEST).offer(new byte[FRAME_SIZE + 1],
+                FRAME_SIZE + 1,
+                1);
+    }
+
+    private static byte[] frame(final int value) {
+        final byte[] frame = new byte[FRAME_SIZE];
+        frame[0] = (byte) value;
+        return frame;
+    }
+
+    /**
+     * Takes the next frame, which must be the one offered with {@code value}, and hands its slot back.
+     */
+    private static void assertTake(final FrameRing ring, final int value) throws InterruptedException {
+        final FrameRing.Slot slot = ring.take();
+        assertEquals(value, slot.getTimestamp());
+        assertEquals(value, slot.getData()[0]);
+        assertEquals(FRAME_SIZE, slot.getLength());
+        ring.release(slot);
+    }
+}
@@ -0,0 +1,86 @@
+package com.thousandsunny.record;
+
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FusedBGRKernelTest {
+    @Test
+    public void testCropsCentredSquare() {
+        // a 12x8 preview, the 8x8 square starts at column 2
+        final byte[] frame = frame(12, 8);
+        final int[] bgr = process(new SquareCropTransform(12, 8, 0, 8), frame);
+        for (int i = 0; i < 8; ++i) {
+            for (int j = 0; j < 8; ++j) {
+                assertEquals(convert(frame, 12, 8, i, 2 + j), bgr[i * 8 + j]);
+            }
+        }
+    }
+
+    @Test
+    public void testRotatesClockwise() {
+        final byte[] frame = frame(8, 8);
+        final int[] bgr = process(new SquareCropTransform(8, 8, 90, 8), frame);
+        for (int i = 0; i < 8; ++i) {
+            for (int j = 0; j < 8; ++j) {
+                // the output row is the source column read bottom up
+                assertEquals(convert(frame, 8, 8, 7 - j, i), bgr[i * 8 + j]);
+            }
+        }
+    }
+
+    @Test
+    public void testDownscaleAveragesFootprints() {
+        // an 8x8 preview halved, every output pixel averages a 2x2 block and its chroma the 4x4 block under its own
+        final byte[] frame = frame(8, 8);
+        final int[] bgr = process(new SquareCropTransform(8, 8, 0, 4), frame);
+        for (int i = 0; i < 4; ++i) {
+            for (int j = 0; j < 4; ++j) {
+                final int y = average(frame, 2 * i * 8 + 2 * j, 8, 1);
+                final int c = 64 + (i >> 1) * 16 + (j >> 1) * 4;
+                assertEquals(ColorConversion.toPackedBGR(y, average(frame, c, 8, 2), average(frame, c + 1, 8, 2)),
+                        bgr[i * 4 + j]);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsOddOutputSide() {
+        new SquareCropTransform(8, 8, 0, 3);
+    }
+
+    private static byte[] frame(final int width, final int height) {
+        final byte[] frame = new byte[width * height * 3 / 2];
+        new Random(42).nextBytes(frame);
+        return frame;
+    }
+
+    private static int[] process(final SquareCropTransform transform, final byte[] frame) {
+        final int side = transform.getOutputSide();
+        final IntBuffer bgr = IntBuffer.allocate(side * side);
+        new FusedBGRKernel(transform).process(frame, bgr);
+        return bgr.array();
+    }
+
+    /**
+     * The reference conversion of the source pixel at (row, column) with the VU pair of its 2x2 block.
+     */
+    private static int convert(final byte[] frame, final int width, final int height, final int row, final int column) {
+        final int c = width * height + (row >> 1) * width + (column & ~1);
+        return ColorConversion.toPackedBGR(frame[row * width + column] & 0xff, frame[c] & 0xff, frame[c + 1] & 0xff);
+    }
+
+    /**
+     * Rounded average of the 2x2 samples from {@code offset}, {@code step} apart in a row.
+     */
+    private static int average(final byte[] frame, final int offset, final int width, final int step) {
+        final int sum = (frame[offset] & 0xff)
+                + (frame[offset + step] & 0xff)
+                + (frame[offset + width] & 0xff)
+                + (frame[offset + width + step] & 0xff);
+        return (sum + 2) / 4;
+    }
+}
@@ -0,0 +1,155 @@
+package com.thousandsunny.record;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the upload backend, speaking the protocol of {@link HttpUploadTransport}: chunks are
+ * written into {@code <uploadId>.part} at their offset, the completion renames it to the uploaded name. Fails the
+ * given share of requests with a 503 to exercise the retries.
+ */
+public class LocalUploadServer {
+    private static final String PATH = "/uploads/";
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private final File directory;
+
+    private final double failureRate;
+
+    private final Random random = new Random();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    public LocalUploadServer(final File directory, final double failureRate) {
+        this.directory = directory;
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @param port 0 for any free port
+     */
+    public void start(final int port) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    exchange.sendResponseHeaders(handleRequest(exchange), -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        // idle request threads would keep the JVM alive for another minute
+        executor.shutdown();
+    }
+
+    /**
+     * @return the endpoint to hand to {@link HttpUploadTransport}
+     */
+    public URL getEndpoint() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + PATH);
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    private int handleRequest(final HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        final InputStream body = exchange.getRequestBody();
+        final boolean fail;
+        synchronized (random) {
+            fail = random.nextDouble() < failureRate;
+        }
+        if (fail) {
+            failureCount.incrementAndGet();
+            return 503;
+        }
+
+        final String uploadId = exchange.getRequestURI().getPath().substring(PATH.length());
+        if (uploadId.isEmpty() || uploadId.contains("/") || uploadId.contains("..")) {
+            return 400;
+        }
+        final File part = new File(directory, uploadId + ".part");
+        // may name a directory of the recording, never one outside the upload directory
+        final String name = exchange.getRequestHeaders().getFirst("X-Upload-Name");
+        if (name == null || name.isEmpty() || name.startsWith("/") || name.contains("..")) {
+            return 400;
+        }
+        switch (exchange.getRequestMethod()) {
+            case "PUT":
+                final Matcher range = CONTENT_RANGE.matcher(exchange.getRequestHeaders().getFirst("Content-Range"));
+                if (!range.matches()) {
+                    return 400;
+                }
+                final RandomAccessFile output = new RandomAccessFile(part, "rw");
+                try {
+                    output.seek(Long.parseLong(range.group(1)));
+                    final byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = body.read(buffer)) >= 0) {
+                        output.write(buffer, 0, read);
+                    }
+                } finally {
+                    output.close();
+                }
+                return 204;
+            case "POST":
+                final long size = Long.parseLong(exchange.getRequestHeaders().getFirst("X-Upload-Size"));
+                final File target = new File(directory, name);
+                if (target.isFile() && target.length() == size && !part.exists()) {
+                    // the acknowledgement of an earlier completion was lost
+                    return 204;
+                }
+                if (size == 0 && !part.exists() && !part.createNewFile()) {
+                    return 500;
+                }
+                if (part.length() != size) {
+                    return 409;
+                }
+                final File targetDirectory = target.getParentFile();
+                if (!targetDirectory.isDirectory() && !targetDirectory.mkdirs()) {
+                    return 500;
+                }
+                return part.renameTo(target) ? 204 : 500;
+            default:
+                return 405;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.thousandsunny.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class NV21ScalerTest {
+    @Test
+    public void testAveragesFootprints() {
+        final byte[] src = new byte[4 * 4 * 3 / 2];
+        for (int i = 0; i < 16; ++i) {
+            src[i] = (byte) (i * 10);
+        }
+        // V U V U rows
+        final int[] chroma = {10, 20, 30, 40, 50, 60, 70, 80};
+        for (int i = 0; i < chroma.length; ++i) {
+            src[16 + i] = (byte) chroma[i];
+        }
+
+        assertArrayEquals(new byte[]{25, 45, (byte) 105, (byte) 125, 40, 50}, scale(src, 4, 2));
+    }
+
+    @Test
+    public void testAveragesUnevenFootprints() {
+        // 6 to 4: luma footprints of 1 or 2 pixels, chroma ones of 1 or 2 samples
+        final byte[] src = new byte[6 * 6 * 3 / 2];
+        for (int y = 0; y < 6; ++y) {
+            for (int x = 0; x < 6; ++x) {
+                src[y * 6 + x] = (byte) (x * 10);
+            }
+        }
+        final byte[] dst = scale(src, 6, 4);
+        assertArrayEquals(new byte[]{0, 15, 30, 45}, Arrays.copyOf(dst, 4));
+    }
+
+    @Test
+    public void testRoundsAverages() {
+        // like the crop kernels, so the renditions are as bright as the main video
+        final byte[] src = new byte[4 * 4 * 3 / 2];
+        src[5] = 3;
+        src[7] = 2;
+        src[16] = 3;
+        src[17] = 1;
+        assertArrayEquals(new byte[]{1, 1, 0, 0, 1, 0}, scale(src, 4, 2));
+    }
+
+    @Test
+    public void testCopiesSameSide() {
+        final byte[] src = new byte[4 * 4 * 3 / 2];
+        for (int i = 0; i < src.length; ++i) {
+            src[i] = (byte) i;
+        }
+        assertArrayEquals(src, scale(src, 4, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUpscaling() {
+        new NV21Scaler(4, 8);
+    }
+
+    private static byte[] scale(final byte[] src, final int srcSide, final int dstSide) {
+        final ByteBuffer dst = ByteBuffer.allocate(dstSide * dstSide * 3 / 2);
+        new NV21Scaler(srcSide, dstSide).scale(src, dst);
+        return dst.array();
+    }
+}
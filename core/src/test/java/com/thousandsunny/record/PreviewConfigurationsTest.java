@@ -0,0 +1,66 @@
+package com.thousandsunny.record;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PreviewConfigurationsTest {
+    private static final List<Integer> NV21 = Collections.singletonList(FrameDump.FORMAT_NV21);
+
+    private static final List<int[]> SIZES = Arrays.asList(
+            new int[]{1920, 1080},
+            new int[]{1280, 720},
+            new int[]{720, 720},
+            new int[]{640, 480},
+            new int[]{320, 240});
+
+    private static final List<int[]> FPS_RANGES = Arrays.asList(
+            new int[]{15000, 30000},
+            new int[]{30000, 30000},
+            new int[]{7500, 60000});
+
+    @Test
+    public void testPicksSmallestSizeCoveringSide() {
+        final PreviewConfiguration configuration = PreviewConfigurations.choose(SIZES, FPS_RANGES, NV21, 480, 30);
+        assertEquals(640, configuration.getWidth());
+        assertEquals(480, configuration.getHeight());
+        assertEquals(FrameDump.FORMAT_NV21, configuration.getFormat());
+    }
+
+    @Test
+    public void testPrefersSquareOfEqualArea() {
+        final List<int[]> sizes = Arrays.asList(new int[]{800, 450}, new int[]{600, 600});
+        final PreviewConfiguration configuration = PreviewConfigurations.choose(sizes, FPS_RANGES, NV21, 450, 30);
+        assertEquals(600, configuration.getWidth());
+    }
+
+    @Test
+    public void testFallsBackToLargestSize() {
+        final PreviewConfiguration configuration = PreviewConfigurations.choose(SIZES, FPS_RANGES, NV21, 2000, 30);
+        assertEquals(1920, configuration.getWidth());
+    }
+
+    @Test
+    public void testPicksSteadiestRangeReachingFrameRate() {
+        final PreviewConfiguration configuration = PreviewConfigurations.choose(SIZES, FPS_RANGES, NV21, 480, 30);
+        assertEquals(30000, configuration.getMinFps());
+        assertEquals(30000, configuration.getMaxFps());
+    }
+
+    @Test
+    public void testFallsBackToFastestRange() {
+        final PreviewConfiguration configuration = PreviewConfigurations.choose(SIZES, FPS_RANGES, NV21, 480, 120);
+        assertEquals(7500, configuration.getMinFps());
+        assertEquals(60000, configuration.getMaxFps());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCameraWithoutNV21() {
+        // YV12
+        PreviewConfigurations.choose(SIZES, FPS_RANGES, Collections.singletonList(0x32315659), 480, 30);
+    }
+}
@@ -0,0 +1,87 @@
+package com.thousandsunny.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripeExecutorTest {
+    private StripeExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new StripeExecutor(3);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRunsEveryRowOnce() {
+        for (final int rows : new int[]{1, 2, 5, 46, 480}) {
+            final AtomicIntegerArray runs = new AtomicIntegerArray(rows);
+            executor.execute(new StripeExecutor.StripeTask() {
+                @Override
+                public void run(final int start, final int end) {
+                    for (int i = start; i < end; ++i) {
+                        runs.incrementAndGet(i);
+                    }
+                }
+            }, rows, 2);
+
+            for (int i = 0; i < rows; ++i) {
+                assertEquals("row " + i + " of " + rows, 1, runs.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testAlignsStripes() {
+        final AtomicBoolean aligned = new AtomicBoolean(true);
+        executor.execute(new StripeExecutor.StripeTask() {
+            @Override
+            public void run(final int start, final int end) {
+                if (start % 2 != 0 || (end != 46 && end % 2 != 0)) {
+                    aligned.set(false);
+                }
+            }
+        }, 46, 2);
+        assertTrue(aligned.get());
+    }
+
+    @Test
+    public void testRethrowsStripeFailure() {
+        try {
+            executor.execute(new StripeExecutor.StripeTask() {
+                @Override
+                public void run(final int start, final int end) {
+                    if (start > 0) {
+                        throw new IllegalStateException("stripe " + start);
+                    }
+                }
+            }, 46, 2);
+            fail();
+        } catch (final IllegalStateException expected) {
+        }
+        // the workers survive a failed stripe
+        testRunsEveryRowOnce();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsAfterShutdown() {
+        executor.shutdown();
+        executor.execute(new StripeExecutor.StripeTask() {
+            @Override
+            public void run(final int start, final int end) {
+            }
+        }, 46, 2);
+    }
+}
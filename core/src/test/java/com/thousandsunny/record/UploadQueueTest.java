@@ -0,0 +1,204 @@
+package com.thousandsunny.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link UploadQueue} against a {@link LocalUploadServer}.
+ */
+public class UploadQueueTest {
+    private static final int CHUNK_SIZE = 1024;
+
+    private File directory;
+
+    private File stateDirectory;
+
+    private File receivedDirectory;
+
+    private File file;
+
+    private LocalUploadServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("uploads", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        stateDirectory = new File(directory, "state");
+        receivedDirectory = new File(directory, "received");
+        file = new File(directory, "video.mp4");
+
+        // two and a half chunks
+        final byte[] content = new byte[CHUNK_SIZE * 5 / 2];
+        new Random(42).nextBytes(content);
+        final FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+
+        server = new LocalUploadServer(receivedDirectory, 0);
+        server.start(0);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        delete(directory);
+    }
+
+    @Test
+    public void testUploadsUnderName() throws IOException, InterruptedException {
+        final UploadedListener listener = new UploadedListener();
+        final UploadQueue queue = new UploadQueue(stateDirectory,
+                new HttpUploadTransport(server.getEndpoint()),
+                CHUNK_SIZE,
+                2,
+                listener);
+        queue.start();
+        try {
+            queue.enqueue(file, "video.stream/video.mp4");
+            assertTrue(listener.uploaded.await(10, TimeUnit.SECONDS));
+        } finally {
+            queue.shutdown();
+        }
+
+        assertArrayEquals(read(file), read(new File(receivedDirectory, "video.stream/video.mp4")));
+        assertEquals(0, queue.getQueuedCount());
+        assertEquals(0, stateDirectory.list().length);
+    }
+
+    @Test
+    public void testIgnoresEmptyFile() throws IOException {
+        final File empty = new File(directory, "empty.mp4");
+        assertTrue(empty.createNewFile());
+        final UploadQueue queue = new UploadQueue(stateDirectory,
+                new HttpUploadTransport(server.getEndpoint()),
+                CHUNK_SIZE,
+                2,
+                null);
+        try {
+            queue.enqueue(empty);
+            assertEquals(0, queue.getQueuedCount());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testResumesAfterLastAcknowledgedChunk() throws IOException, InterruptedException {
+        // the first queue goes away while sending the third chunk
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final UploadTransport transport = new HttpUploadTransport(server.getEndpoint());
+        final UploadQueue first = new UploadQueue(stateDirectory, new UploadTransport() {
+            @Override
+            public void sendChunk(final String uploadId,
+                                  final String name,
+                                  final long totalSize,
+                                  final long offset,
+                                  final ByteBuffer data) throws IOException {
+                if (offset >= 2 * CHUNK_SIZE) {
+                    stalled.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (final InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                transport.sendChunk(uploadId, name, totalSize, offset, data);
+            }
+
+            @Override
+            public void complete(final String uploadId, final String name, final long totalSize) throws IOException {
+                transport.complete(uploadId, name, totalSize);
+            }
+        }, CHUNK_SIZE, 1, null);
+        first.enqueue(file);
+        assertTrue(stalled.await(10, TimeUnit.SECONDS));
+        first.shutdown();
+
+        final AtomicLong firstOffset = new AtomicLong(-1);
+        final UploadedListener listener = new UploadedListener();
+        final UploadQueue second = new UploadQueue(stateDirectory, new UploadTransport() {
+            @Override
+            public void sendChunk(final String uploadId,
+                                  final String name,
+                                  final long totalSize,
+                                  final long offset,
+                                  final ByteBuffer data) throws IOException {
+                firstOffset.compareAndSet(-1, offset);
+                transport.sendChunk(uploadId, name, totalSize, offset, data);
+            }
+
+            @Override
+            public void complete(final String uploadId, final String name, final long totalSize) throws IOException {
+                transport.complete(uploadId, name, totalSize);
+            }
+        }, CHUNK_SIZE, 1, listener);
+        second.start();
+        try {
+            assertTrue(listener.uploaded.await(10, TimeUnit.SECONDS));
+        } finally {
+            second.shutdown();
+        }
+
+        assertEquals(2 * CHUNK_SIZE, firstOffset.get());
+        assertArrayEquals(read(file), read(new File(receivedDirectory, file.getName())));
+    }
+
+    private static class UploadedListener implements UploadQueue.Listener {
+        private final CountDownLatch uploaded = new CountDownLatch(1);
+
+        @Override
+        public void onProgress(final UploadQueue.Upload upload) {
+        }
+
+        @Override
+        public void onUploaded(final UploadQueue.Upload upload) {
+            uploaded.countDown();
+        }
+
+        @Override
+        public void onFailed(final UploadQueue.Upload upload, final IOException e, final boolean suspended) {
+        }
+    }
+
+    private static byte[] read(final File file) throws IOException {
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            final byte[] content = new byte[(int) input.length()];
+            input.readFully(content);
+            return content;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,91 @@
+package com.thousandsunny.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class YUVSquareKernelTest {
+    @Test
+    public void testAveragesFootprints() {
+        // an 8x8 preview halved, every output pixel covers a 2x2 block
+        final byte[] frame = new byte[8 * 8 * 3 / 2];
+        for (int i = 0; i < frame.length; ++i) {
+            frame[i] = (byte) (i * 3);
+        }
+        final SquareCropTransform transform = new SquareCropTransform(8, 8, 0, 4);
+        assertFalse(transform.isPointSampled());
+
+        final byte[] output = process(transform, frame);
+        for (int i = 0; i < 4; ++i) {
+            for (int j = 0; j < 4; ++j) {
+                assertEquals(average(frame, 2 * i * 8 + 2 * j, 8, 1), output[i * 4 + j] & 0xff);
+            }
+        }
+        // every output chroma pair covers 2x2 source pairs
+        for (int i = 0; i < 2; ++i) {
+            for (int j = 0; j < 4; ++j) {
+                final int source = 64 + 2 * i * 8 + 2 * (j & ~1) + (j & 1);
+                assertEquals(average(frame, source, 8, 2), output[16 + i * 4 + j] & 0xff);
+            }
+        }
+    }
+
+    @Test
+    public void testRotationOnlyCopies() {
+        final byte[] frame = new byte[8 * 8 * 3 / 2];
+        new Random(42).nextBytes(frame);
+        final SquareCropTransform transform = new SquareCropTransform(8, 8, 90, 8);
+        assertTrue(transform.isPointSampled());
+
+        final byte[] output = process(transform, frame);
+        for (int i = 0; i < 8; ++i) {
+            for (int j = 0; j < 8; ++j) {
+                // clockwise: the output row is the source column read bottom up
+                assertEquals(frame[(7 - j) * 8 + i], output[i * 8 + j]);
+            }
+        }
+    }
+
+    @Test
+    public void testFusedKernelConvertsAveragedLuma() {
+        // flat chroma, so the fused kernel only differs from the NV21 kernel by the conversion
+        final byte[] frame = new byte[16 * 12 * 3 / 2];
+        new Random(7).nextBytes(frame);
+        Arrays.fill(frame, 16 * 12, frame.length, (byte) 100);
+        for (final int degree : new int[]{0, 90, 180, 270}) {
+            final SquareCropTransform transform = new SquareCropTransform(16, 12, degree, true, 4);
+            final byte[] nv21 = process(transform, frame);
+            final IntBuffer bgr = IntBuffer.allocate(4 * 4);
+            new FusedBGRKernel(transform).process(frame, bgr);
+
+            for (int i = 0; i < 16; ++i) {
+                assertEquals(ColorConversion.toPackedBGR(nv21[i] & 0xff, 100, 100), bgr.get(i));
+            }
+        }
+    }
+
+    private static byte[] process(final SquareCropTransform transform, final byte[] frame) {
+        final YUVSquareKernel kernel = new YUVSquareKernel(transform);
+        final ByteBuffer output = ByteBuffer.allocate(kernel.getFrameSize());
+        kernel.process(frame, output);
+        return output.array();
+    }
+
+    /**
+     * Rounded average of the 2x2 samples from {@code offset}, {@code step} apart in a row.
+     */
+    private static int average(final byte[] frame, final int offset, final int width, final int step) {
+        final int sum = (frame[offset] & 0xff)
+                + (frame[offset + step] & 0xff)
+                + (frame[offset + width] & 0xff)
+                + (frame[offset + width + step] & 0xff);
+        return (sum + 2) / 4;
+    }
+}
@@ -0,0 +1,119 @@
+package com.thousandsunny.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Replays a {@link FrameDump} capture through {@link OpenCVRecorder} on a desktop JVM, either paced by the recorded
+ * timestamps or as fast as the recorder accepts frames, and prints the session metrics. {@code --tone} adds an audio
+ * track from a {@link SyntheticAudioSource} of that frequency.
+ * <pre>
+ * ReplayRunner capture.nv21dump output.mp4 [--max-speed] [--mode YUV|FUSED|FULL_FRAME] [--pipelined 3]
+ *              [--side 120] [--stripes 0] [--tone 440]
+ * </pre>
+ */
+public class ReplayRunner {
+    public static void main(final String[] args) throws IOException, EncoderException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: ReplayRunner <dump> <output.mp4> [--max-speed] [--mode YUV|FUSED|FULL_FRAME]"
+                    + " [--pipelined <slots>] [--side <pixels>] [--stripes <count>] [--tone <hz>]");
+            System.exit(1);
+        }
+
+        final File dumpFile = new File(args[0]);
+        final File outputFile = new File(args[1]);
+        boolean maxSpeed = false;
+        OpenCVRecorder.FrameMode frameMode = OpenCVRecorder.FrameMode.YUV;
+        int pipelineCapacity = 0;
+        int side = 120;
+        int stripes = StripeExecutor.AUTO;
+        double tone = 0;
+        for (int i = 2; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--max-speed":
+                    maxSpeed = true;
+                    break;
+                case "--mode":
+                    frameMode = OpenCVRecorder.FrameMode.valueOf(args[++i]);
+                    break;
+                case "--pipelined":
+                    pipelineCapacity = Integer.parseInt(args[++i]);
+                    break;
+                case "--side":
+                    side = Integer.parseInt(args[++i]);
+                    break;
+                case "--stripes":
+                    stripes = Integer.parseInt(args[++i]);
+                    break;
+                case "--tone":
+                    tone = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option:" + args[i]);
+            }
+        }
+
+        final FrameDumpReader reader = new FrameDumpReader(dumpFile);
+        try {
+            if (reader.getFormat() != FrameDump.FORMAT_NV21) {
+                throw new IOException("Only NV21 captures can be replayed, format=" + reader.getFormat());
+            }
+
+            final OpenCVRecorder recorder = new OpenCVRecorder(reader.getWidth(),
+                    reader.getHeight(),
+                    reader.getDegree(),
+                    reader.isMirror(),
+                    side,
+                    outputFile);
+            recorder.setFrameMode(frameMode);
+            recorder.setConversionStripes(stripes);
+            if (pipelineCapacity > 0) {
+                recorder.setPipelined(pipelineCapacity, FrameRing.OverflowPolicy.BLOCK);
+            }
+            if (tone > 0) {
+                recorder.setAudioSource(new SyntheticAudioSource(44100, 1, tone));
+            }
+
+            final byte[] frame = new byte[reader.getWidth() * reader.getHeight() * 3 / 2];
+            long frameCount = 0;
+            long firstTimestamp = -1;
+
+            // as the app does while the preview is shown, the metrics then report the start alone
+            recorder.prepare();
+            recorder.start();
+            final long replayStart = System.nanoTime();
+            while (reader.next()) {
+                if (reader.getLength() > frame.length) {
+                    throw new IOException("Frame larger than the capture size: " + reader.getLength());
+                }
+                reader.read(frame);
+
+                if (firstTimestamp < 0) {
+                    firstTimestamp = reader.getTimestamp();
+                }
+                final long offset = reader.getTimestamp() - firstTimestamp;
+                if (!maxSpeed) {
+                    final long wait = replayStart + offset - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                }
+                recorder.onPreviewFrame(frame, replayStart + offset);
+                frameCount++;
+            }
+            recorder.stop();
+            final long elapsed = System.nanoTime() - replayStart;
+
+            System.out.println(String.format(Locale.US,
+                    "%d frames in %.3f s, %.1f frames/s, %d encoded",
+                    frameCount,
+                    elapsed / 1e9,
+                    frameCount * 1e9 / elapsed,
+                    recorder.getEncodedFrameCount()));
+            System.out.println(recorder.getMetrics().toJson());
+        } finally {
+            reader.close();
+        }
+    }
+}
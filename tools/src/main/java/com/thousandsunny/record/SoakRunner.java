@@ -0,0 +1,384 @@
+package com.thousandsunny.record;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Feeds synthetic NV21 frames through {@link OpenCVRecorder} at a fixed rate for hours and samples the Java heap
+ * after GC, the GC time, direct buffers, the resident set size (where javacpp's native allocations show up), the
+ * open file descriptors and the time {@link OpenCVRecorder#onPreviewFrame(byte[], long)} takes. The recording is
+ * restarted every session so start and stop leak too. Once the warm-up is over each metric gets a least-squares
+ * slope, the run fails with exit code 3 if any grows faster per hour than its threshold times {@code --tolerance}.
+ * <pre>
+ * SoakRunner output.mp4 [--duration 3600] [--fps 30] [--size 1280x720] [--mode YUV|FUSED|FULL_FRAME] [--side 120]
+ *            [--pipelined 3] [--session 600] [--interval 10] [--warmup 60] [--tolerance 1] [--csv soak.csv]
+ * </pre>
+ * With {@code --pipelined} the latency is that of handing the frame over, the encoding itself is timed by the
+ * recorder's metrics only.
+ */
+public class SoakRunner {
+    /**
+     * Distinct frames cycled through, the content moves so the encoder does not see a still image.
+     */
+    private static final int FRAME_COUNT = 30;
+
+    private static final int EXIT_TREND = 3;
+
+    private static final double MB = 1024 * 1024;
+
+    private static final Metric[] METRICS = {
+            new Metric("heapAfterGcMB", 8),
+            new Metric("directMB", 4),
+            new Metric("rssMB", 32),
+            new Metric("fds", 2),
+            new Metric("gcPercent", 1),
+            new Metric("meanLatencyMicros", 1000)
+    };
+
+    private static class Metric {
+        private final String name;
+
+        /**
+         * Largest growth per hour tolerated, in the unit of the metric.
+         */
+        private final double maxSlopePerHour;
+
+        private Metric(final String name, final double maxSlopePerHour) {
+            this.name = name;
+            this.maxSlopePerHour = maxSlopePerHour;
+        }
+    }
+
+    public static void main(final String[] args) throws IOException, EncoderException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: SoakRunner <output.mp4> [--duration <s>] [--fps <rate>] [--size <w>x<h>]"
+                    + " [--mode YUV|FUSED|FULL_FRAME] [--side <pixels>] [--pipelined <slots>] [--session <s>]"
+                    + " [--interval <s>] [--warmup <s>] [--tolerance <factor>] [--csv <file>]");
+            System.exit(1);
+        }
+
+        final File outputFile = new File(args[0]);
+        long durationSeconds = 3600;
+        double fps = 30;
+        int width = 1280;
+        int height = 720;
+        OpenCVRecorder.FrameMode frameMode = OpenCVRecorder.FrameMode.YUV;
+        int side = 120;
+        int pipelineCapacity = 0;
+        long sessionSeconds = 600;
+        long intervalSeconds = 10;
+        long warmupSeconds = 60;
+        double tolerance = 1;
+        File csvFile = null;
+        for (int i = 1; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--duration":
+                    durationSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--fps":
+                    fps = Double.parseDouble(args[++i]);
+                    break;
+                case "--size":
+                    final String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--mode":
+                    frameMode = OpenCVRecorder.FrameMode.valueOf(args[++i]);
+                    break;
+                case "--side":
+                    side = Integer.parseInt(args[++i]);
+                    break;
+                case "--pipelined":
+                    pipelineCapacity = Integer.parseInt(args[++i]);
+                    break;
+                case "--session":
+                    sessionSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--interval":
+                    intervalSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--tolerance":
+                    tolerance = Double.parseDouble(args[++i]);
+                    break;
+                case "--csv":
+                    csvFile = new File(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option:" + args[i]);
+            }
+        }
+
+        final byte[][] frames = createFrames(width, height);
+        final PrintStream csv = csvFile != null ? new PrintStream(csvFile, "UTF-8") : null;
+        final String header = "seconds,frames,lateFrames,encoded,heapAfterGcMB,directMB,rssMB,fds,gcPercent,"
+                + "meanLatencyMicros,p99LatencyMicros,maxLatencyMicros";
+        System.out.println(header);
+        if (csv != null) {
+            csv.println(header);
+        }
+
+        final List<double[]> samples = new ArrayList<>();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final long frameInterval = (long) (1e9 / fps);
+        final long start = System.nanoTime();
+        final long end = start + durationSeconds * 1000000000L;
+        long nextFrame = start;
+        long nextSample = start + intervalSeconds * 1000000000L;
+        long sessionEnd = start + sessionSeconds * 1000000000L;
+        long gcMillis = getGcMillis();
+        long lastSample = start;
+        long frameCount = 0;
+        long lateCount = 0;
+        long encodedCount = 0;
+        int sessionCount = 1;
+
+        OpenCVRecorder recorder = startRecorder(width, height, side, frameMode, pipelineCapacity, outputFile);
+        while (true) {
+            final long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            if (now < nextFrame) {
+                final long wait = nextFrame - now;
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                continue;
+            }
+
+            final long callStart = System.nanoTime();
+            recorder.onPreviewFrame(frames[(int) (frameCount % FRAME_COUNT)], callStart);
+            latency.record((System.nanoTime() - callStart) / 1000);
+            frameCount++;
+            nextFrame += frameInterval;
+            if (System.nanoTime() > nextFrame) {
+                // behind: skip the slots already missed like a camera would, instead of bursting
+                lateCount++;
+                nextFrame = System.nanoTime() + frameInterval;
+            }
+
+            if (now >= sessionEnd) {
+                recorder.stop();
+                encodedCount += recorder.getEncodedFrameCount();
+                deleteOutputs(outputFile);
+                recorder = startRecorder(width, height, side, frameMode, pipelineCapacity, outputFile);
+                sessionEnd = now + sessionSeconds * 1000000000L;
+                sessionCount++;
+            }
+
+            if (now >= nextSample) {
+                final long totalGcMillis = getGcMillis();
+                final double[] sample = {
+                        (now - start) / 1e9,
+                        getHeapAfterGc() / MB,
+                        getDirectMemory() / MB,
+                        getResidentSetSize() / MB,
+                        getFileDescriptorCount(),
+                        (totalGcMillis - gcMillis) * 100.0 / ((now - lastSample) / 1e6),
+                        latency.getMean()
+                };
+                samples.add(sample);
+                final String line = String.format(Locale.US, "%.0f,%d,%d,%d,%.2f,%.2f,%.2f,%.0f,%.3f,%.0f,%d,%d",
+                        sample[0],
+                        frameCount,
+                        lateCount,
+                        encodedCount + recorder.getEncodedFrameCount(),
+                        sample[1],
+                        sample[2],
+                        sample[3],
+                        sample[4],
+                        sample[5],
+                        sample[6],
+                        latency.getPercentile(99),
+                        latency.getMax());
+                System.out.println(line);
+                if (csv != null) {
+                    csv.println(line);
+                    csv.flush();
+                }
+                latency.reset();
+                gcMillis = totalGcMillis;
+                lastSample = now;
+                nextSample += intervalSeconds * 1000000000L;
+            }
+        }
+        recorder.stop();
+        deleteOutputs(outputFile);
+        if (csv != null) {
+            csv.close();
+        }
+
+        System.out.println(String.format(Locale.US, "%d frames in %d sessions, %d late", frameCount, sessionCount,
+                lateCount));
+        boolean failed = false;
+        for (int m = 0; m < METRICS.length; ++m) {
+            final double slope = getSlopePerHour(samples, m + 1, warmupSeconds);
+            if (Double.isNaN(slope)) {
+                System.out.println(METRICS[m].name + ": not enough samples after the warm-up");
+                continue;
+            }
+            final double maxSlope = METRICS[m].maxSlopePerHour * tolerance;
+            final boolean trending = slope > maxSlope;
+            failed |= trending;
+            System.out.println(String.format(Locale.US, "%s: %+.3f/h (max %.3f/h)%s",
+                    METRICS[m].name,
+                    slope,
+                    maxSlope,
+                    trending ? " TRENDING UP" : ""));
+        }
+        if (failed) {
+            System.exit(EXIT_TREND);
+        }
+    }
+
+    private static OpenCVRecorder startRecorder(final int width,
+                                                final int height,
+                                                final int side,
+                                                final OpenCVRecorder.FrameMode frameMode,
+                                                final int pipelineCapacity,
+                                                final File outputFile) throws EncoderException {
+        final OpenCVRecorder recorder = new OpenCVRecorder(width, height, 90, side, outputFile);
+        recorder.setFrameMode(frameMode);
+        if (pipelineCapacity > 0) {
+            recorder.setPipelined(pipelineCapacity, FrameRing.OverflowPolicy.DROP_OLDEST);
+        }
+        recorder.start();
+        return recorder;
+    }
+
+    private static void deleteOutputs(final File outputFile) {
+        for (final File file : new File[]{
+                outputFile,
+                RecordingMetrics.getSummaryFile(outputFile),
+                PosterFrame.getPosterFile(outputFile)}) {
+            if (file.exists() && !file.delete()) {
+                System.err.println("Cannot delete " + file);
+            }
+        }
+    }
+
+    /**
+     * A diagonal luma gradient shifted a little every frame over a flat chroma.
+     */
+    private static byte[][] createFrames(final int width, final int height) {
+        final byte[][] frames = new byte[FRAME_COUNT][width * height * 3 / 2];
+        for (int f = 0; f < FRAME_COUNT; ++f) {
+            final byte[] frame = frames[f];
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    frame[y * width + x] = (byte) (x + y + f * 4);
+                }
+            }
+            for (int i = width * height; i < frame.length; i += 2) {
+                frame[i] = (byte) (128 + f);
+                frame[i + 1] = (byte) (128 - f);
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * @return least-squares slope of the column over the samples after the warm-up, NaN with fewer than 3
+     */
+    private static double getSlopePerHour(final List<double[]> samples, final int column, final long warmupSeconds) {
+        double n = 0;
+        double sumT = 0;
+        double sumV = 0;
+        double sumTT = 0;
+        double sumTV = 0;
+        for (final double[] sample : samples) {
+            if (sample[0] < warmupSeconds || sample[column] < 0) {
+                continue;
+            }
+            final double t = sample[0] / 3600;
+            n++;
+            sumT += t;
+            sumV += sample[column];
+            sumTT += t * t;
+            sumTV += t * sample[column];
+        }
+        final double denominator = n * sumTT - sumT * sumT;
+        if (n < 3 || denominator == 0) {
+            return Double.NaN;
+        }
+        return (n * sumTV - sumT * sumV) / denominator;
+    }
+
+    /**
+     * @return heap in use after the last collection of every pool, what survives rather than what is garbage
+     */
+    private static long getHeapAfterGc() {
+        long used = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static long getDirectMemory() {
+        long used = 0;
+        for (final BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            used += pool.getMemoryUsed();
+        }
+        return used;
+    }
+
+    /**
+     * @return bytes, negative where there is no {@code /proc}
+     */
+    private static long getResidentSetSize() {
+        final File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return -1;
+        }
+        try {
+            final BufferedReader reader = new BufferedReader(new FileReader(status));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final IOException | NumberFormatException e) {
+            // reported as unavailable
+        }
+        return -1;
+    }
+
+    /**
+     * @return negative where there is no {@code /proc}
+     */
+    private static long getFileDescriptorCount() {
+        final String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+}
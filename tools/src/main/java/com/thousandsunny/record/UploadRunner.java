@@ -0,0 +1,164 @@
+package com.thousandsunny.record;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Uploads files through an {@link UploadQueue}, to the given endpoint or to a {@link LocalUploadServer} started in
+ * the process, whose received files are then compared to the originals. Interrupting it and running it again with
+ * the same state directory resumes the uploads.
+ * <pre>
+ * UploadRunner state-dir [file...] [--url http://host/uploads/] [--fail-rate 0.2] [--chunk 1048576]
+ *              [--concurrency 2]
+ * </pre>
+ */
+public class UploadRunner {
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: UploadRunner <state dir> [file...] [--url <endpoint>] [--fail-rate <share>]"
+                    + " [--chunk <bytes>] [--concurrency <count>]");
+            System.exit(1);
+        }
+
+        final File stateDirectory = new File(args[0]);
+        final List<File> files = new ArrayList<>();
+        URL url = null;
+        double failureRate = 0;
+        int chunkSize = UploadQueue.DEFAULT_CHUNK_SIZE;
+        int concurrency = 2;
+        for (int i = 1; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--url":
+                    url = new URL(args[++i]);
+                    break;
+                case "--fail-rate":
+                    failureRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--chunk":
+                    chunkSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option:" + args[i]);
+                    }
+                    files.add(new File(args[i]));
+                    break;
+            }
+        }
+
+        LocalUploadServer server = null;
+        final File receivedDirectory = new File(stateDirectory, "received");
+        if (url == null) {
+            server = new LocalUploadServer(receivedDirectory, failureRate);
+            server.start(0);
+            url = server.getEndpoint();
+        }
+
+        final List<File> failed = new ArrayList<>();
+        final UploadQueue queue = new UploadQueue(new File(stateDirectory, "queue"),
+                new HttpUploadTransport(url),
+                chunkSize,
+                concurrency,
+                new UploadQueue.Listener() {
+                    @Override
+                    public void onProgress(final UploadQueue.Upload upload) {
+                    }
+
+                    @Override
+                    public void onUploaded(final UploadQueue.Upload upload) {
+                        System.out.println("Uploaded " + upload.getFile());
+                    }
+
+                    @Override
+                    public void onFailed(final UploadQueue.Upload upload, final IOException e, final boolean suspended) {
+                        System.out.println("Failed " + upload.getFile() + ": " + e);
+                        synchronized (failed) {
+                            failed.add(upload.getFile());
+                        }
+                    }
+                });
+        final long start = System.nanoTime();
+        queue.start();
+        for (final File file : files) {
+            queue.enqueue(file);
+        }
+
+        while (true) {
+            final int queued = queue.getQueuedCount();
+            synchronized (failed) {
+                if (queued <= failed.size()) {
+                    break;
+                }
+            }
+            Thread.sleep(1000);
+            System.out.println(String.format(Locale.US,
+                    "%d queued, %d bytes pending, %d in flight, %.1f KB/s, %d retries",
+                    queued,
+                    queue.getPendingBytes(),
+                    queue.getInFlightCount(),
+                    queue.getThroughput() / 1024.0,
+                    queue.getRetryCount()));
+        }
+        queue.shutdown();
+        final long elapsed = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US,
+                "%d uploads, %d bytes in %.3f s, %.1f KB/s, %d retries",
+                queue.getCompletedCount(),
+                queue.getUploadedBytes(),
+                elapsed / 1e9,
+                queue.getUploadedBytes() / 1024.0 / (elapsed / 1e9),
+                queue.getRetryCount()));
+
+        if (server != null) {
+            System.out.println(server.getRequestCount() + " requests, " + server.getFailureCount() + " failed");
+            server.stop();
+            for (final File file : files) {
+                final File received = new File(receivedDirectory, file.getName());
+                if (!failed.contains(file) && !sameContent(file, received)) {
+                    System.err.println(received + " differs from " + file);
+                    System.exit(2);
+                }
+            }
+        }
+    }
+
+    private static boolean sameContent(final File expected, final File actual) throws IOException {
+        if (expected.length() != actual.length()) {
+            return false;
+        }
+        final InputStream expectedInput = new FileInputStream(expected);
+        final InputStream actualInput = new FileInputStream(actual);
+        try {
+            final byte[] expectedBuffer = new byte[64 * 1024];
+            final byte[] actualBuffer = new byte[expectedBuffer.length];
+            int read;
+            while ((read = expectedInput.read(expectedBuffer)) > 0) {
+                int offset = 0;
+                while (offset < read) {
+                    final int actualRead = actualInput.read(actualBuffer, offset, read - offset);
+                    if (actualRead < 0) {
+                        return false;
+                    }
+                    offset += actualRead;
+                }
+                if (!Arrays.equals(expectedBuffer, actualBuffer)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            expectedInput.close();
+            actualInput.close();
+        }
+    }
+}